@@ -0,0 +1,66 @@
+package snowblossom.lib;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import snowblossom.proto.BlockHeader;
+
+/**
+ * The header part of the first PoW hash, serialized once per header.
+ *
+ * The nonce goes into the hash first, so this is not a real hash midstate,
+ * but it means each nonce tried is just the nonce and these cached bytes
+ * rather than building them up from the header again.
+ */
+public class HeaderMidstate
+{
+  private final BlockHeader header;
+  private final byte[] header_bits;
+
+  public HeaderMidstate(BlockHeader header)
+  {
+    this.header = header;
+    this.header_bits = PowUtil.getHeaderBits(header);
+  }
+
+  /**
+   * @return prev if it was made from this same header object, otherwise a new one
+   */
+  public static HeaderMidstate update(HeaderMidstate prev, BlockHeader header)
+  {
+    if ((prev != null) && (prev.header == header)) return prev;
+    return new HeaderMidstate(header);
+  }
+
+  public BlockHeader getHeader()
+  {
+    return header;
+  }
+
+  /**
+   * Same as PowUtil.hashHeaderBits
+   */
+  public byte[] hashHeaderBits(byte[] nonce, MessageDigest md)
+  {
+    byte[] out = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    hashHeaderBits(nonce, md, out);
+    return out;
+  }
+
+  /**
+   * Same as PowUtil.hashHeaderBits, without allocating anything
+   */
+  public void hashHeaderBits(byte[] nonce, MessageDigest md, byte[] out)
+  {
+    try
+    {
+      md.update(nonce);
+      md.update(header_bits);
+      md.digest(out, 0, Globals.BLOCKCHAIN_HASH_LEN);
+    }
+    catch(DigestException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+}
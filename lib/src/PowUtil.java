@@ -1,13 +1,14 @@
 package snowblossom.lib;
 
 import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.text.DecimalFormat;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.junit.Assert;
 import snowblossom.lib.trie.ByteStringComparator;
 import snowblossom.lib.trie.HashUtils;
 import snowblossom.proto.BlockHeader;
@@ -29,43 +30,43 @@ public class PowUtil
   }
   public static byte[] hashHeaderBits(BlockHeader header, byte[] nonce, MessageDigest md)
   {
+      md.update(nonce);
+      md.update(getHeaderBits(header));
 
-      byte[] int_data = new byte[3*4 + 1*8];
-      ByteBuffer bb = ByteBuffer.wrap(int_data);
+      return md.digest();
+  }
 
-      bb.putInt(header.getVersion());
-      bb.putInt(header.getBlockHeight());
-      bb.putLong(header.getTimestamp());
-      bb.putInt(header.getSnowField());
+  /**
+   * Everything from the header that goes into the first PoW hash, after the nonce.
+   * None of it changes with the nonce, see HeaderMidstate.
+   */
+  public static byte[] getHeaderBits(BlockHeader header)
+  {
+    try
+    {
+      ByteArrayOutputStream b_out = new ByteArrayOutputStream(256);
+      DataOutputStream out = new DataOutputStream(b_out);
 
-      Assert.assertEquals(0, bb.remaining());
-      
-      md.update(nonce);
-      md.update(int_data);
-      md.update(header.getPrevBlockHash().toByteArray());
-      md.update(header.getMerkleRootHash().toByteArray());
-      md.update(header.getUtxoRootHash().toByteArray());
-      md.update(header.getTarget().toByteArray());
+      out.writeInt(header.getVersion());
+      out.writeInt(header.getBlockHeight());
+      out.writeLong(header.getTimestamp());
+      out.writeInt(header.getSnowField());
+
+      header.getPrevBlockHash().writeTo(out);
+      header.getMerkleRootHash().writeTo(out);
+      header.getUtxoRootHash().writeTo(out);
+      header.getTarget().writeTo(out);
 
       if (header.getVersion() == 2)
       {
-        {
-          byte[] shard_id = new byte[12];
-          ByteBuffer bb_s = ByteBuffer.wrap(shard_id);
-          bb_s.putInt(header.getShardId());
-          bb_s.putInt(header.getTxDataSizeSum());
-          bb_s.putInt(header.getTxCount());
+        out.writeInt(header.getShardId());
+        out.writeInt(header.getTxDataSizeSum());
+        out.writeInt(header.getTxCount());
 
-          md.update(shard_id);
-        }
         for(Map.Entry<Integer, ByteString> me : header.getShardExportRootHashMap().entrySet())
         {
-          int id = me.getKey();
-          byte[] shard_id = new byte[4];
-          ByteBuffer bb_s = ByteBuffer.wrap(shard_id);
-          bb_s.putInt(id);
-          md.update(shard_id);
-          md.update(me.getValue().toByteArray());
+          out.writeInt(me.getKey());
+          me.getValue().writeTo(out);
         }
 
         for(int import_shard_id : inOrder(header.getShardImportMap().keySet()))
@@ -73,19 +74,21 @@ public class PowUtil
           BlockImportList bil = header.getShardImportMap().get(import_shard_id);
           for(int import_height : inOrder(bil.getHeightMap().keySet()))
           {
-            byte[] shard_id = new byte[8];
-            ByteBuffer bb_s = ByteBuffer.wrap(shard_id);
-            bb_s.putInt(import_shard_id);
-            bb_s.putInt(import_height);
-            md.update(shard_id);
+            out.writeInt(import_shard_id);
+            out.writeInt(import_height);
 
-            md.update(bil.getHeightMap().get(import_height).toByteArray());
+            bil.getHeightMap().get(import_height).writeTo(out);
           }
         }
 
       }
-
-      return md.digest();
+      out.flush();
+      return b_out.toByteArray();
+    }
+    catch(java.io.IOException e)
+    {
+      throw new RuntimeException(e);
+    }
   }
 
   public static TreeSet<Integer> inOrder(Set<Integer> in)
@@ -0,0 +1,200 @@
+package snowblossom.lib;
+
+import com.google.protobuf.ByteString;
+import duckutil.TimeRecord;
+import duckutil.TimeRecordAuto;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import snowblossom.proto.SigSpec;
+
+/**
+ * Collects the signature checks of a block so they can be run on a bounded
+ * pool of threads instead of one after another on the ingest thread.
+ *
+ * Checks are numbered in the order they are added and are claimed by workers
+ * in that order.  Once a check fails, no check with a higher number is started
+ * and the failure reported is always the one with the lowest number, so the
+ * error does not depend on thread timing.
+ */
+public class SignatureBatch
+{
+  /** Below this many checks it isn't worth waking up other threads */
+  public static final int MIN_PARALLEL_CHECKS = 4;
+
+  private static int thread_count = Runtime.getRuntime().availableProcessors();
+  private static ThreadPoolExecutor exec;
+
+  /**
+   * Sets the number of threads (including the calling thread) used
+   * to check a batch.  One means everything runs on the caller.
+   */
+  public static synchronized void setThreadCount(int threads)
+  {
+    thread_count = Math.max(1, threads);
+    if (exec != null)
+    {
+      int pool_size = Math.max(1, thread_count - 1);
+      if (pool_size > exec.getMaximumPoolSize())
+      {
+        exec.setMaximumPoolSize(pool_size);
+        exec.setCorePoolSize(pool_size);
+      }
+      else
+      {
+        exec.setCorePoolSize(pool_size);
+        exec.setMaximumPoolSize(pool_size);
+      }
+    }
+  }
+
+  public static synchronized int getThreadCount()
+  {
+    return thread_count;
+  }
+
+  private static synchronized ThreadPoolExecutor getExec()
+  {
+    if (exec == null)
+    {
+      int pool_size = Math.max(1, thread_count - 1);
+      exec = new ThreadPoolExecutor(
+        pool_size,
+        pool_size,
+        2, TimeUnit.DAYS,
+        new LinkedBlockingQueue<Runnable>(),
+        new DaemonThreadFactory("sig_check"));
+    }
+    return exec;
+  }
+
+  private final ArrayList<SigCheck> checks = new ArrayList<>();
+
+  private final AtomicInteger next_check = new AtomicInteger(0);
+  private int failed_idx = Integer.MAX_VALUE;
+  private ValidationException failed_exception;
+
+  public void add(SigSpec sig_spec, ByteString signed_data, ByteString signature)
+  {
+    checks.add(new SigCheck(sig_spec, signed_data, signature));
+  }
+
+  public int size()
+  {
+    return checks.size();
+  }
+
+  /**
+   * Runs all the checks in the batch.
+   * @throws ValidationException for the lowest numbered check that failed
+   */
+  public void checkAll()
+    throws ValidationException
+  {
+    try(TimeRecordAuto tra_blk = TimeRecord.openAuto("Validation.checkSignatures"))
+    {
+      int threads = Math.min(getThreadCount(), checks.size());
+
+      if ((threads <= 1) || (checks.size() < MIN_PARALLEL_CHECKS))
+      {
+        runChecks();
+      }
+      else
+      {
+        LinkedList<Future<?>> futures = new LinkedList<>();
+        for(int i=1; i<threads; i++)
+        {
+          futures.add(getExec().submit(() -> runChecks()));
+        }
+
+        // The calling thread does its share rather than just waiting
+        runChecks();
+
+        for(Future<?> f : futures)
+        {
+          try
+          {
+            f.get();
+          }
+          catch(InterruptedException e)
+          {
+            throw new RuntimeException(e);
+          }
+          catch(java.util.concurrent.ExecutionException e)
+          {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+
+      synchronized(this)
+      {
+        if (failed_exception != null) throw failed_exception;
+      }
+    }
+  }
+
+  private void runChecks()
+  {
+    while(true)
+    {
+      int idx = next_check.getAndIncrement();
+      if (idx >= checks.size()) return;
+      synchronized(this)
+      {
+        // Something before us already failed, no point continuing
+        if (idx > failed_idx) return;
+      }
+
+      try
+      {
+        long t1 = System.nanoTime();
+        boolean ok = checks.get(idx).check();
+        TimeRecord.record(t1, "Validation.checkSignature");
+
+        if (!ok)
+        {
+          recordFailure(idx, new ValidationException("signature failed"));
+        }
+      }
+      catch(ValidationException e)
+      {
+        recordFailure(idx, e);
+      }
+    }
+  }
+
+  private synchronized void recordFailure(int idx, ValidationException e)
+  {
+    if (idx < failed_idx)
+    {
+      failed_idx = idx;
+      failed_exception = e;
+    }
+  }
+
+  public static class SigCheck
+  {
+    private final SigSpec sig_spec;
+    private final ByteString signed_data;
+    private final ByteString signature;
+
+    public SigCheck(SigSpec sig_spec, ByteString signed_data, ByteString signature)
+    {
+      this.sig_spec = sig_spec;
+      this.signed_data = signed_data;
+      this.signature = signature;
+    }
+
+    public boolean check()
+      throws ValidationException
+    {
+      return SignatureCache.checkSignature(sig_spec, signed_data, signature);
+    }
+  }
+
+}
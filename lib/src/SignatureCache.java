@@ -0,0 +1,140 @@
+package snowblossom.lib;
+
+import com.google.protobuf.ByteString;
+import duckutil.LRUCache;
+import duckutil.TimeRecord;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+import snowblossom.proto.SigSpec;
+
+/**
+ * Remembers signatures that have already been checked and found good.
+ *
+ * A transaction gets its signatures checked when it enters the mempool and then
+ * again when it shows up in a block.  With this cache, the second check is just
+ * a hash and a map lookup.
+ *
+ * Entries are keyed on a hash of (sig_spec, signed_data, signature) so each entry
+ * is a fixed small size regardless of key type.  Only successes are stored,
+ * a failed check is not worth remembering and would just let someone
+ * fill the cache with junk.
+ */
+public class SignatureCache
+{
+  /** Rough heap cost of one entry - the key hash plus the map entry around it */
+  public static final long ENTRY_BYTES = 160L;
+
+  public static final long DEFAULT_MAX_BYTES = 32L * 1024L * 1024L;
+
+  private static int max_entries = (int)(DEFAULT_MAX_BYTES / ENTRY_BYTES);
+  private static LRUCache<ChainHash, Boolean> cache = new LRUCache<>(max_entries);
+
+  private static final AtomicLong hits = new AtomicLong(0L);
+  private static final AtomicLong misses = new AtomicLong(0L);
+
+  /**
+   * Sets the approximate memory to use for the cache.  Clears anything
+   * cached so far.  Zero disables the cache.
+   */
+  public static void setMaxBytes(long max_bytes)
+  {
+    int entries = (int)Math.min(Integer.MAX_VALUE, Math.max(0L, max_bytes / ENTRY_BYTES));
+    synchronized(SignatureCache.class)
+    {
+      max_entries = entries;
+      cache = new LRUCache<>(entries);
+    }
+  }
+
+  private static synchronized LRUCache<ChainHash, Boolean> getCache()
+  {
+    return cache;
+  }
+
+  public static synchronized int getMaxEntries()
+  {
+    return max_entries;
+  }
+
+  /**
+   * Same as SignatureUtil.checkSignature() but skips the work if
+   * this exact signature has been found good before.
+   */
+  public static boolean checkSignature(SigSpec sig_spec, ByteString signed_data, ByteString signature)
+    throws ValidationException
+  {
+    if (getMaxEntries() == 0)
+    {
+      return SignatureUtil.checkSignature(sig_spec, signed_data, signature);
+    }
+
+    long t1 = System.nanoTime();
+    ChainHash key = getKey(sig_spec, signed_data, signature);
+    LRUCache<ChainHash, Boolean> c = getCache();
+    synchronized(c)
+    {
+      if (c.get(key) != null)
+      {
+        hits.incrementAndGet();
+        TimeRecord.record(t1, "SignatureCache.hit");
+        return true;
+      }
+    }
+    misses.incrementAndGet();
+
+    boolean ok = SignatureUtil.checkSignature(sig_spec, signed_data, signature);
+    TimeRecord.record(t1, "SignatureCache.miss");
+
+    if (ok)
+    {
+      synchronized(c)
+      {
+        c.put(key, true);
+      }
+    }
+    return ok;
+  }
+
+  public static ChainHash getKey(SigSpec sig_spec, ByteString signed_data, ByteString signature)
+  {
+    MessageDigest md = DigestUtil.getMD();
+    ByteString spec_bytes = sig_spec.toByteString();
+
+    // Length prefixed so that moving bytes between fields can't produce the same key
+    ByteBuffer bb = ByteBuffer.allocate(12);
+    bb.putInt(spec_bytes.size());
+    bb.putInt(signed_data.size());
+    bb.putInt(signature.size());
+
+    md.update(bb.array());
+    md.update(spec_bytes.toByteArray());
+    md.update(signed_data.toByteArray());
+    md.update(signature.toByteArray());
+
+    return new ChainHash(md.digest());
+  }
+
+  public static long getHitCount(){ return hits.get(); }
+  public static long getMissCount(){ return misses.get(); }
+
+  public static int getSize()
+  {
+    LRUCache<ChainHash, Boolean> c = getCache();
+    synchronized(c)
+    {
+      return c.size();
+    }
+  }
+
+  public static String getReport()
+  {
+    long h = getHitCount();
+    long m = getMissCount();
+    double rate = 0.0;
+    if (h + m > 0) rate = (double) h / (double)(h + m);
+
+    return String.format("SignatureCache{size:%d hits:%d misses:%d hit_rate:%.3f}", getSize(), h, m, rate);
+  }
+
+}
@@ -2,6 +2,9 @@ package snowblossom.lib;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.protobuf.ByteString;
+import duckutil.LRUCache;
+import duckutil.TimeRecord;
+import duckutil.TimeRecordAuto;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -29,8 +32,40 @@ public class SignatureUtil
   public static final int SIG_TYPE_RSA=4;
   public static final int SIG_TYPE_DSTU4145=5;
 
+  public static final int PUBLIC_KEY_CACHE_SIZE = 25000;
+
+  /**
+   * Maps encoded SigSpec to the decoded key.  Only keys that made it through
+   * all the checks in decodePublicKeyUncached() get in here, so a hit means
+   * these exact bytes were already found acceptable.
+   */
+  private static LRUCache<ByteString, PublicKey> public_key_cache = new LRUCache<>(PUBLIC_KEY_CACHE_SIZE);
+
   public static PublicKey decodePublicKey(SigSpec sig_spec)
     throws ValidationException
+  {
+    ByteString key = sig_spec.toByteString();
+    synchronized(public_key_cache)
+    {
+      PublicKey pub_key = public_key_cache.get(key);
+      if (pub_key != null) return pub_key;
+    }
+
+    PublicKey pub_key;
+    try(TimeRecordAuto tra = TimeRecord.openAuto("SignatureUtil.decodePublicKey"))
+    {
+      pub_key = decodePublicKeyUncached(sig_spec);
+    }
+
+    synchronized(public_key_cache)
+    {
+      public_key_cache.put(key, pub_key);
+    }
+    return pub_key;
+  }
+
+  public static PublicKey decodePublicKeyUncached(SigSpec sig_spec)
+    throws ValidationException
   {
     int sig_type = sig_spec.getSignatureType();
     ByteString encoded = sig_spec.getPublicKey();
@@ -2,10 +2,14 @@ package snowblossom.lib;
 
 import com.google.protobuf.ByteString;
 import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.lib.trie.HashUtils;
 import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.IncrementalMerge;
 import snowblossom.proto.TransactionInput;
 import snowblossom.proto.TransactionOutput;
 import snowblossom.proto.TxOutPoint;
@@ -19,6 +23,10 @@ public class UtxoUpdateBuffer
 
   private HashMap<ByteString, ByteString> updates;
 
+  // Values read ahead from the trie at utxo_root.  A key mapped to
+  // null means we looked and it is not there.
+  private HashMap<ByteString, ByteString> prefetched;
+
   public static final ChainHash EMPTY = new ChainHash(HashUtils.hashOfEmpty());
 
   public UtxoUpdateBuffer(HashedTrie trie, ChainHash utxo_root)
@@ -32,6 +40,7 @@ public class UtxoUpdateBuffer
   {
     UtxoUpdateBuffer n = new UtxoUpdateBuffer(trie, utxo_root);
     n.updates.putAll(this.updates);
+    n.prefetched = this.prefetched;
 
     return n;
   }
@@ -39,7 +48,16 @@ public class UtxoUpdateBuffer
   public void commitIfEqual(ByteString expected_hash)
     throws ValidationException
   {
-    if (!trie.mergeIfNewRoot(utxo_root.getBytes(), updates, expected_hash))
+    commitIfEqual(expected_hash, null);
+  }
+
+  /**
+   * @param batch batch to add the new trie nodes to, or null to save them now
+   */
+  public void commitIfEqual(ByteString expected_hash, DBBatch batch)
+    throws ValidationException
+  {
+    if (!trie.mergeIfNewRoot(utxo_root.getBytes(), updates, expected_hash, batch))
     {
       throw new ValidationException("New utxo root does not match");
     }
@@ -49,12 +67,45 @@ public class UtxoUpdateBuffer
     return new ChainHash(trie.simulateMerge(utxo_root.getBytes(), updates));
   }
 
+  /**
+   * Same result as simulateUpdates() but reuses the work from
+   * previous simulations from the same utxo_root
+   */
+  public ChainHash simulateUpdates(IncrementalMerge inc_merge)
+  {
+    return new ChainHash(inc_merge.simulateMerge(utxo_root.getBytes(), updates));
+  }
+
   /** Generally don't want to do this, used only in test */
   public ChainHash commit()
   {
     return new ChainHash(trie.mergeBatch(utxo_root.getBytes(), updates));
   }
 
+  /**
+   * Read the outputs for all these inputs from the trie in one pass,
+   * so that later getOutputMatching() calls for them don't each walk
+   * down from the root.
+   */
+  public void prefetchInputs(Collection<TransactionInput> inputs)
+  {
+    HashSet<ByteString> keys = new HashSet<>();
+    for(TransactionInput in : inputs)
+    {
+      keys.add(getKey(in));
+    }
+
+    HashMap<ByteString, ByteString> fetched = new HashMap<>(keys.size() * 2, 0.5f);
+    if (prefetched != null) fetched.putAll(prefetched);
+
+    fetched.putAll( trie.getLeafDataBatch(utxo_root.getBytes(), keys) );
+    for(ByteString key : keys)
+    {
+      if (!fetched.containsKey(key)) fetched.put(key, null);
+    }
+    prefetched = fetched;
+  }
+
   public TransactionOutput getOutputMatching(TransactionInput in)
   {
     ByteString key = getKey(in);
@@ -64,6 +115,10 @@ public class UtxoUpdateBuffer
     {
       data = updates.get(key);
     }
+    else if ((prefetched != null) && (prefetched.containsKey(key)))
+    {
+      data = prefetched.get(key);
+    }
     else
     {
       data = trie.getLeafData(utxo_root.getBytes(), key);
@@ -8,6 +8,7 @@ import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.util.*;
 import org.junit.Assert;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.lib.trie.HashedTrie;
 import snowblossom.lib.trie.TrieDBMem;
 import snowblossom.proto.*;
@@ -189,13 +190,17 @@ public class Validation
           throw new ValidationException("Must be at least one transaction in a block");
         }
 
+        // Signatures are the expensive part, so they are collected
+        // and checked together once everything else about the transactions is known good
+        SignatureBatch sig_batch = new SignatureBatch();
+
         ArrayList<ChainHash> tx_list = new ArrayList<>();
         for(int i=0; i<blk.getTransactionsCount(); i++)
         {
           Transaction tx = blk.getTransactions(i);
           boolean coinbase = false;
           if (i == 0) coinbase = true;
-          checkTransactionBasics(tx, coinbase);
+          checkTransactionBasics(tx, coinbase, sig_batch);
 
           tx_list.add(new ChainHash(tx.getTxHash()));
         }
@@ -207,6 +212,8 @@ public class Validation
             merkle_root.toString(),
             new ChainHash(header.getMerkleRootHash()).toString()));
         }
+
+        sig_batch.checkAll();
       }
     }
 
@@ -282,6 +289,15 @@ public class Validation
 
   public static void deepBlockValidation(NetworkParams params, HashedTrie utxo_hashed_trie, Block blk, BlockSummary prev_summary)
     throws ValidationException
+  {
+    deepBlockValidation(params, utxo_hashed_trie, blk, prev_summary, null);
+  }
+
+  /**
+   * @param batch if not null, the new utxo trie nodes are added to this instead of saved right away
+   */
+  public static void deepBlockValidation(NetworkParams params, HashedTrie utxo_hashed_trie, Block blk, BlockSummary prev_summary, DBBatch batch)
+    throws ValidationException
   {
     try(TimeRecordAuto tra_blk = TimeRecord.openAuto("Validation.deepBlockValidation"))
     {
@@ -391,6 +407,25 @@ public class Validation
       Set<Integer> cover_set = ShardUtil.getCoverSet( blk.getHeader().getShardId(), params );
       Map<Integer, UtxoUpdateBuffer> export_utxo_buffer = new TreeMap<>();
 
+      // Gather every input of the block in one walk of the utxo trie
+      // rather than a walk from the root for each one
+      try(TimeRecordAuto tra_pre = TimeRecord.openAuto("Validation.prefetchInputs"))
+      {
+        ArrayList<TransactionInput> all_inputs = new ArrayList<>();
+        for(Transaction tx : blk.getTransactionsList())
+        {
+          try
+          {
+            all_inputs.addAll( TransactionInner.parseFrom(tx.getInnerData()).getInputsList() );
+          }
+          catch(java.io.IOException e)
+          {
+            throw new ValidationException("error parsing tx on second pass somehow", e);
+          }
+        }
+        utxo_buffer.prefetchInputs(all_inputs);
+      }
+
       for(Transaction tx : blk.getTransactionsList())
       {
         fee_sum += deepTransactionCheck(tx, utxo_buffer, blk.getHeader(), params, cover_set, export_utxo_buffer);
@@ -440,7 +475,7 @@ public class Validation
         throw new ValidationException(String.format("Coinbase could have spent %d but spent %d", coinbase_sum, coinbase_spent));
       }
 
-      utxo_buffer.commitIfEqual(blk.getHeader().getUtxoRootHash());
+      utxo_buffer.commitIfEqual(blk.getHeader().getUtxoRootHash(), batch);
     }
   
   }
@@ -921,6 +956,17 @@ public class Validation
    */
   public static void checkTransactionBasics(Transaction tx, boolean must_be_coinbase)
     throws ValidationException
+  {
+    checkTransactionBasics(tx, must_be_coinbase, null);
+  }
+
+  /**
+   * Check the things about a transaction that can be checked without the database
+   * @param sig_batch if not null, the signature checks are added to this batch
+   * for the caller to run rather than being checked here
+   */
+  public static void checkTransactionBasics(Transaction tx, boolean must_be_coinbase, SignatureBatch sig_batch)
+    throws ValidationException
   {
     try(TimeRecordAuto tra_blk = TimeRecord.openAuto("Validation.checkTransactionBasics"))
     {
@@ -1069,11 +1115,16 @@ public class Validation
         if (spec.getSigSpecsCount() <= se.getKeyIdx()) throw new ValidationException("Signature entry for non-existant sig spec");
         SigSpec sig_spec = spec.getSigSpecs(se.getKeyIdx());
 
-        if (!SignatureUtil.checkSignature( sig_spec, tx.getTxHash(), se.getSignature()))
+        if (sig_batch != null)
+        {
+          sig_batch.add( sig_spec, tx.getTxHash(), se.getSignature());
+        }
+        else if (!SignatureCache.checkSignature( sig_spec, tx.getTxHash(), se.getSignature()))
         {
           throw new ValidationException("signature failed");
         }
         //So we have a valid signature on a valid claim!  woot
+        //(or will know shortly when the batch is checked)
 
         if (!signed_claim_map.containsKey(se.getClaimIdx())) signed_claim_map.put(se.getClaimIdx(), new TreeSet<Integer>());
 
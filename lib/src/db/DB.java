@@ -3,6 +3,7 @@ package snowblossom.lib.db;
 import com.google.protobuf.ByteString;
 import duckutil.Config;
 import java.nio.ByteBuffer;
+import java.util.TreeMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -13,6 +14,7 @@ import snowblossom.lib.ChainHash;
 import snowblossom.lib.DaemonThreadFactory;
 import snowblossom.lib.trie.HashedTrie;
 import snowblossom.lib.trie.TrieDBMap;
+import snowblossom.lib.trie.TrieNodeCache;
 import snowblossom.proto.Block;
 import snowblossom.proto.BlockSummary;
 import snowblossom.proto.BlockHeader;
@@ -46,6 +48,10 @@ public class DB implements DBFace
   protected DBMap chain_index_map;
   protected HashedTrie chain_index_trie;
   protected HashedTrie utxo_hashed_trie;
+  protected TrieDBMap utxo_trie_db;
+  protected TrieNodeCache trie_node_cache;
+
+  public static final int DEFAULT_TRIE_CACHE_MB = 256;
 
   private Config config;
   private DBProvider prov;
@@ -60,6 +66,14 @@ public class DB implements DBFace
 
   }
 
+  /**
+   * Start a batch of writes that are saved together on commit
+   */
+  public DBBatch newBatch()
+  {
+    return prov.newBatch();
+  }
+
   public void interactiveMaint()
     throws Exception
   {
@@ -88,8 +102,20 @@ public class DB implements DBFace
     best_block_map = prov.openMap("bbm");
     trust_map = prov.openMap("trust");
 
-    chain_index_trie = new HashedTrie(new TrieDBMap(chain_index_map), true, true);
-    utxo_hashed_trie = new HashedTrie(new TrieDBMap(utxo_node_map), true, false);
+    if (trie_node_cache == null)
+    {
+      long trie_cache_mb = config.getIntWithDefault("trie_cache_mb", DEFAULT_TRIE_CACHE_MB);
+      if (trie_cache_mb > 0)
+      {
+        trie_node_cache = new TrieNodeCache(trie_cache_mb * 1048576L);
+      }
+    }
+
+    // Both tries share the one node cache, with a different key prefix for each
+    chain_index_trie = new HashedTrie(
+      new TrieDBMap(chain_index_map, trie_node_cache, ByteString.copyFrom("c".getBytes())), true, true);
+    utxo_trie_db = new TrieDBMap(utxo_node_map, trie_node_cache, ByteString.copyFrom("u".getBytes()));
+    utxo_hashed_trie = new HashedTrie(utxo_trie_db, true, false);
 
 
     try
@@ -134,6 +160,7 @@ public class DB implements DBFace
 
   @Override
   public HashedTrie getUtxoHashedTrie() { return utxo_hashed_trie; }
+  public TrieDBMap getUtxoTrieDB() { return utxo_trie_db; }
 
   /**
    * This is a hashed trie that holds data other than the UTXO.
@@ -145,6 +172,29 @@ public class DB implements DBFace
   public HashedTrie getChainIndexTrie() { return chain_index_trie; }
 
 
+  /**
+   * Cache of parsed trie nodes shared by the utxo and chain index tries.
+   * Null if disabled with trie_cache_mb=0
+   */
+  public TrieNodeCache getTrieNodeCache() { return trie_node_cache; }
+
+  /**
+   * Operation counts and latencies from the DB provider and trie cache stats
+   */
+  public TreeMap<String, Long> getStats()
+  {
+    TreeMap<String, Long> stats = new TreeMap<>();
+    prov.addStats(stats);
+    if (trie_node_cache != null)
+    {
+      stats.put("trie_cache.hits", trie_node_cache.getHitCount());
+      stats.put("trie_cache.misses", trie_node_cache.getMissCount());
+      stats.put("trie_cache.nodes", trie_node_cache.getNodeCount());
+      stats.put("trie_cache.bytes", trie_node_cache.getSizeBytes());
+    }
+    return stats;
+  }
+
   /**
    * Used by things like the mining pool, not actually used in the node
    */
@@ -211,6 +261,14 @@ public class DB implements DBFace
   
   @Override
   public void setBestBlockAt(int shard, int height, BigInteger work_sum)
+  {
+    setBestBlockAt(shard, height, work_sum, null);
+  }
+
+  /**
+   * @param batch batch to add the write to, or null to write now
+   */
+  public void setBestBlockAt(int shard, int height, BigInteger work_sum, DBBatch batch)
   {
     // There is a race condition here, but as the worst case scenario is we end up burning
     // some cycles making blocks that are not in fact better, not a huge deal
@@ -223,7 +281,16 @@ public class DB implements DBFace
       ByteBuffer bb = ByteBuffer.allocate(8);
       bb.putInt(shard);
       bb.putInt(height);
-      best_block_map.put(ByteString.copyFrom(bb.array()), ByteString.copyFrom(work_sum.toByteArray()));
+      ByteString key = ByteString.copyFrom(bb.array());
+      ByteString value = ByteString.copyFrom(work_sum.toByteArray());
+      if (batch != null)
+      {
+        batch.put(best_block_map, key, value);
+      }
+      else
+      {
+        best_block_map.put(key, value);
+      }
     }
 
   }
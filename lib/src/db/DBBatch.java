@@ -0,0 +1,103 @@
+package snowblossom.lib.db;
+
+import com.google.protobuf.ByteString;
+import duckutil.TimeRecord;
+import java.util.ArrayList;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A set of writes to any number of maps, saved together on commit().
+ *
+ * This version is for providers that can't do an atomic write across maps.
+ * It just does the writes one after another on commit(), in the order they were added,
+ * so the last write can still be used as a commit marker.
+ * Providers that can do better return their own from DBProvider.newBatch().
+ *
+ * Writes in a batch are not visible to reads until commit().
+ */
+public class DBBatch implements AutoCloseable
+{
+  private ArrayList<Runnable> ops = new ArrayList<>();
+  private ArrayList<Runnable> commit_hooks = new ArrayList<>();
+  private boolean done = false;
+
+  public void put(DBMap map, ByteString key, ByteString value)
+  {
+    checkOpen();
+    ops.add( () -> map.put(key, value) );
+  }
+
+  public void putAll(DBMap map, SortedMap<ByteString, ByteString> m)
+  {
+    checkOpen();
+    TreeMap<ByteString, ByteString> copy = new TreeMap<>(m);
+    ops.add( () -> map.putAll(copy) );
+  }
+
+  public void remove(DBMap map, ByteString key)
+  {
+    checkOpen();
+    ops.add( () -> map.remove(key) );
+  }
+
+  public void add(DBMapMutationSet set, ByteString key, ByteString value)
+  {
+    checkOpen();
+    ops.add( () -> set.add(key, value) );
+  }
+
+  /**
+   * Runs r once the writes have been saved by commit().
+   * If the batch is closed without a commit, r is never run.
+   */
+  public void addCommitHook(Runnable r)
+  {
+    checkOpen();
+    commit_hooks.add(r);
+  }
+
+  public void commit()
+  {
+    checkOpen();
+    done = true;
+    long t1 = System.nanoTime();
+    for(Runnable r : ops)
+    {
+      r.run();
+    }
+    ops = null;
+    TimeRecord.record(t1, "db_batch_seq");
+    runCommitHooks();
+  }
+
+  /**
+   * For subclasses to call once their writes are saved
+   */
+  protected void runCommitHooks()
+  {
+    ArrayList<Runnable> hooks = commit_hooks;
+    commit_hooks = null;
+    if (hooks == null) return;
+    for(Runnable r : hooks)
+    {
+      r.run();
+    }
+  }
+
+  protected void checkOpen()
+  {
+    if (done) throw new RuntimeException("Batch already commited");
+  }
+
+  /**
+   * Frees anything the batch is holding.  Anything not commited is dropped.
+   */
+  @Override
+  public void close()
+  {
+    ops = null;
+    commit_hooks = null;
+    done = true;
+  }
+}
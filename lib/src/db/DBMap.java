@@ -5,6 +5,7 @@ import duckutil.TimeRecord;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.function.Consumer;
 
 public abstract class DBMap
 {
@@ -55,6 +56,15 @@ public abstract class DBMap
     TimeRecord.record(t1, "db_putall_seq");
   }
 
+  /**
+   * Call the consumer with every key in the map.  Keys added or removed
+   * while the scan is running may or may not be seen.
+   */
+  public void scanKeys(Consumer<ByteString> consumer)
+  {
+    throw new RuntimeException("NOT IMPLEMENTED");
+  }
+
   /** 
    * Return a list of keys near target 'key'.  Doing 'count' before and 'count' after.
    * Includes wraping around the end of the map as needed to get the count.
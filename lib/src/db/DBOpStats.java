@@ -0,0 +1,88 @@
+package snowblossom.lib.db;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts and latency histogram for one kind of operation on one map.
+ *
+ * The histogram buckets are powers of two of microseconds, so percentiles
+ * are only good to within a factor of two, but recording is just a couple
+ * of atomic increments.
+ */
+public class DBOpStats
+{
+  /** Bucket i holds operations that took less than 2^i microseconds */
+  public static final int BUCKETS = 32;
+
+  private final AtomicLong count = new AtomicLong(0L);
+  private final AtomicLong total_ns = new AtomicLong(0L);
+  private final AtomicLong bytes = new AtomicLong(0L);
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+  /**
+   * @param start_ns System.nanoTime() from when the operation started
+   * @param op_bytes bytes of keys and values read or written
+   */
+  public void record(long start_ns, long op_bytes)
+  {
+    long ns = Math.max(0L, System.nanoTime() - start_ns);
+    count.incrementAndGet();
+    total_ns.addAndGet(ns);
+    bytes.addAndGet(op_bytes);
+
+    long micros = ns / 1000L;
+    int b = 64 - Long.numberOfLeadingZeros(micros);
+    buckets.incrementAndGet(Math.min(b, BUCKETS - 1));
+  }
+
+  public long getCount(){ return count.get(); }
+  public long getTotalNanos(){ return total_ns.get(); }
+  public long getBytes(){ return bytes.get(); }
+
+  public long getAverageMicros()
+  {
+    long c = getCount();
+    if (c == 0) return 0L;
+    return getTotalNanos() / c / 1000L;
+  }
+
+  /**
+   * @param p fraction, such as 0.99
+   * @return upper bound in microseconds of the bucket the percentile falls in
+   */
+  public long getPercentileMicros(double p)
+  {
+    long c = getCount();
+    if (c == 0) return 0L;
+
+    long target = (long)Math.ceil(c * p);
+    long seen = 0;
+    for(int i=0; i<BUCKETS; i++)
+    {
+      seen += buckets.get(i);
+      if (seen >= target) return 1L << i;
+    }
+    return 1L << (BUCKETS - 1);
+  }
+
+  /**
+   * Add these stats to the map, with keys starting with prefix
+   */
+  public void addTo(Map<String, Long> stats, String prefix)
+  {
+    stats.put(prefix + ".count", getCount());
+    stats.put(prefix + ".bytes", getBytes());
+    stats.put(prefix + ".avg_us", getAverageMicros());
+    stats.put(prefix + ".p50_us", getPercentileMicros(0.50));
+    stats.put(prefix + ".p99_us", getPercentileMicros(0.99));
+  }
+
+  public String getReport()
+  {
+    return String.format("{n:%d avg:%dus p50:<%dus p99:<%dus bytes:%d}",
+      getCount(), getAverageMicros(), getPercentileMicros(0.50), getPercentileMicros(0.99), getBytes());
+  }
+
+}
@@ -1,6 +1,7 @@
 package snowblossom.lib.db;
 
 import duckutil.Config;
+import java.util.Map;
 import java.util.logging.Logger;
 
 public abstract class DBProvider
@@ -18,9 +19,25 @@ public abstract class DBProvider
   {
   }
 
+  /**
+   * Start a batch of writes to be saved together.
+   * Providers that can write to several maps atomically should override this,
+   * the default just does the writes in order on commit.
+   */
+  public DBBatch newBatch()
+  {
+    return new DBBatch();
+  }
+
   public abstract DBMap openMap(String name) throws Exception;
   public abstract DBMapMutationSet openMutationMapSet(String name) throws Exception;
 
+  /**
+   * Add whatever operation counts and internal stats the provider keeps to the map.
+   */
+  public void addStats(Map<String, Long> stats)
+  {}
+
   /**
    * Do any maintenance or checks or tuning or cleanup that is helpful to run
    * infrequently but does not make the database not usable by other threads.
@@ -29,6 +29,10 @@ public class ProtoDBMap<M extends Message>
   {
     inner.put(key, m.toByteString());
   }
+  public void put(DBBatch batch, ByteString key, Message m)
+  {
+    batch.put(inner, key, m.toByteString());
+  }
   public void remove(ByteString key)
   {
     inner.remove(key);
@@ -105,12 +109,22 @@ public class ProtoDBMap<M extends Message>
   }
 
   public void putAll(Map<ByteString, M> map)
+  {
+    inner.putAll(toSorted(map));
+  }
+
+  public void putAll(DBBatch batch, Map<ByteString, M> map)
+  {
+    batch.putAll(inner, toSorted(map));
+  }
+
+  private TreeMap<ByteString, ByteString> toSorted(Map<ByteString, M> map)
   {
     TreeMap<ByteString, ByteString> sorted = new TreeMap<>(new ByteStringComparator());
     for(Map.Entry<ByteString, M> me : map.entrySet())
     {
       sorted.put(me.getKey(), me.getValue().toByteString());
     }
-    inner.putAll(sorted);
+    return sorted;
   }
 } 
@@ -0,0 +1,75 @@
+package snowblossom.lib.db.rocksdb;
+
+import com.google.protobuf.ByteString;
+import java.nio.ByteBuffer;
+
+/**
+ * Per thread direct buffers for the RocksDB ByteBuffer get and put calls,
+ * which only take direct buffers.  Saves making byte arrays of every key and value
+ * just to hand them over to JNI.
+ *
+ * The buffers are reused by the next call on the same thread, so whatever is read
+ * out of them has to be copied before then.
+ */
+class DirectBuffers
+{
+  public static final int KEY_SIZE = 1024;
+  public static final int INITIAL_VALUE_SIZE = 65536;
+  /** Values bigger than this go by byte array rather than growing the buffer */
+  public static final int MAX_VALUE_SIZE = 4 * 1048576;
+
+  private static final ThreadLocal<DirectBuffers> local = ThreadLocal.withInitial(DirectBuffers::new);
+
+  public static DirectBuffers get()
+  {
+    return local.get();
+  }
+
+  private final ByteBuffer key_buf = ByteBuffer.allocateDirect(KEY_SIZE);
+  private ByteBuffer value_buf = ByteBuffer.allocateDirect(INITIAL_VALUE_SIZE);
+
+  /**
+   * Can prefix plus key go in the key buffer
+   */
+  public static boolean fitsKey(ByteString prefix, ByteString key)
+  {
+    return prefix.size() + key.size() <= KEY_SIZE;
+  }
+
+  /**
+   * @return the key buffer with prefix and key in it, ready to read
+   */
+  public ByteBuffer putKey(ByteString prefix, ByteString key)
+  {
+    key_buf.clear();
+    prefix.copyTo(key_buf);
+    key.copyTo(key_buf);
+    key_buf.flip();
+    return key_buf;
+  }
+
+  /**
+   * @return the value buffer with value in it, ready to read
+   */
+  public ByteBuffer putValue(ByteString value)
+  {
+    ByteBuffer buf = getValueBuffer(value.size());
+    value.copyTo(buf);
+    buf.flip();
+    return buf;
+  }
+
+  /**
+   * @return the value buffer, cleared and with room for at least size bytes
+   */
+  public ByteBuffer getValueBuffer(int size)
+  {
+    if (value_buf.capacity() < size)
+    {
+      value_buf = ByteBuffer.allocateDirect(Math.max(size, Math.min(MAX_VALUE_SIZE, value_buf.capacity() * 2)));
+    }
+    value_buf.clear();
+    return value_buf;
+  }
+
+}
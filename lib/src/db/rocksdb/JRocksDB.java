@@ -4,16 +4,33 @@ import com.google.common.collect.ImmutableList;
 import duckutil.Config;
 import duckutil.PeriodicThread;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.Cache;
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.CompressionType;
+import org.rocksdb.DBOptions;
 import org.rocksdb.FlushOptions;
 import org.rocksdb.Options;
+import org.rocksdb.ReadOptions;
 import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.Statistics;
+import org.rocksdb.TickerType;
 import org.rocksdb.WriteOptions;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.lib.db.DBMap;
 import snowblossom.lib.db.DBMapMutationSet;
+import snowblossom.lib.db.DBOpStats;
 import snowblossom.lib.db.DBProvider;
 
 public class JRocksDB extends DBProvider
@@ -23,10 +40,36 @@ public class JRocksDB extends DBProvider
   private RocksDB shared_db;
   private Options options;
   private boolean use_separate_dbs;
+  private boolean use_column_families;
 
   private TreeMap<String, RocksDB> separate_db_map;
+  private TreeMap<String, ColumnFamilyHandle> family_map;
+  private Cache block_cache;
+  private Statistics statistics;
+  private TreeMap<String, DBOpStats> op_stats = new TreeMap<>();
+
+  /** The RocksDB counters that go in the stats */
+  private static final TickerType[] REPORT_TICKERS = {
+    TickerType.BLOCK_CACHE_HIT,
+    TickerType.BLOCK_CACHE_MISS,
+    TickerType.BLOCK_CACHE_DATA_HIT,
+    TickerType.BLOCK_CACHE_DATA_MISS,
+    TickerType.BLOOM_FILTER_USEFUL,
+    TickerType.GET_HIT_L0,
+    TickerType.GET_HIT_L1,
+    TickerType.GET_HIT_L2_AND_UP,
+    TickerType.NUMBER_KEYS_READ,
+    TickerType.BYTES_READ,
+    TickerType.BYTES_WRITTEN,
+    TickerType.COMPACT_READ_BYTES,
+    TickerType.COMPACT_WRITE_BYTES,
+    TickerType.STALL_MICROS,
+  };
+
+  public static final long DEFAULT_BLOCK_CACHE_MB = 256L;
 
   private WriteOptions sharedWriteOptions;
+  private ReadOptions sharedReadOptions;
 
   private File base_path;
 
@@ -36,6 +79,11 @@ public class JRocksDB extends DBProvider
     super(config);
 
     use_separate_dbs=config.getBoolean("db_separate");
+    use_column_families=config.getBoolean("db_column_families");
+    if (use_separate_dbs && use_column_families)
+    {
+      throw new RuntimeException("Only one of db_separate and db_column_families may be set");
+    }
     
     config.require("db_path");
     
@@ -48,9 +96,16 @@ public class JRocksDB extends DBProvider
     logger.info(String.format("Loading RocksDB with path %s", path));
 
     RocksDB.loadLibrary();
+
+    // On unless turned off, costs a little on each operation
+    if ((!config.isSet("db_statistics")) || (config.getBoolean("db_statistics")))
+    {
+      statistics = new Statistics();
+    }
     sharedWriteOptions = new WriteOptions();
     sharedWriteOptions.setDisableWAL(false);
     sharedWriteOptions.setSync(false);
+    sharedReadOptions = new ReadOptions();
 
 
     // Separate DBs should only be used when you don't care about syncing between
@@ -59,10 +114,18 @@ public class JRocksDB extends DBProvider
     // For example, in combined DBs if you write a to A then b to B, you will either get {}, {a}, or {a,b} 
     // on a bad shutdown.  If you use separate, you could very well get {b}.
 
+    // Column families keep the combined behavior, since they are all one DB with one WAL
+    // but let each map have its own tuning.
+
     if (use_separate_dbs)
     {
       separate_db_map = new TreeMap<>();
     }
+    else if (use_column_families)
+    {
+      block_cache = new org.rocksdb.LRUCache(config.getLongWithDefault("db_cache_mb", DEFAULT_BLOCK_CACHE_MB) * 1048576L);
+      openFamilyDB(path);
+    }
     else
     {
       shared_db = openRocksDB(path);
@@ -81,15 +144,211 @@ public class JRocksDB extends DBProvider
     options.setAllowMmapReads(true);
     options.setKeepLogFileNum(5);
     //options.setAllowMmapWrites(true);
+    if (statistics != null) options.setStatistics(statistics);
 
     return RocksDB.open(options, path);
   }
 
+  /**
+   * Opens the shared DB with all the column families it already has.
+   * Families for new maps are made as the maps are opened.
+   */
+  private void openFamilyDB(String path)
+    throws Exception
+  {
+    DBOptions db_options = new DBOptions();
+    db_options.setIncreaseParallelism(16);
+    db_options.setCreateIfMissing(true);
+    db_options.setCreateMissingColumnFamilies(true);
+    db_options.setAllowMmapReads(true);
+    db_options.setKeepLogFileNum(5);
+    if (statistics != null) db_options.setStatistics(statistics);
+
+    List<byte[]> names = new ArrayList<>();
+    try(Options options = new Options())
+    {
+      names.addAll(RocksDB.listColumnFamilies(options, path));
+    }
+    catch(RocksDBException e)
+    {
+      // No DB there yet
+    }
+    if (names.isEmpty()) names.add(RocksDB.DEFAULT_COLUMN_FAMILY);
+
+    List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+    for(byte[] name : names)
+    {
+      descriptors.add(new ColumnFamilyDescriptor(name, getFamilyOptions(new String(name))));
+    }
+    List<ColumnFamilyHandle> handles = new ArrayList<>();
+
+    shared_db = RocksDB.open(db_options, path, descriptors, handles);
+
+    family_map = new TreeMap<>();
+    for(int i=0; i<names.size(); i++)
+    {
+      String name = new String(names.get(i));
+      if (name.equals(new String(RocksDB.DEFAULT_COLUMN_FAMILY))) continue;
+      family_map.put(name, handles.get(i));
+    }
+
+    if (family_map.isEmpty())
+    {
+      // Everything goes in named families, so data in the default
+      // one means this DB was made without db_column_families
+      try(RocksIterator it = shared_db.newIterator())
+      {
+        it.seekToFirst();
+        if (it.isValid())
+        {
+          throw new RuntimeException(String.format(
+            "DB at %s was not created with db_column_families.  Use a new db_path.", path));
+        }
+      }
+    }
+    logger.info(String.format("Opened RocksDB with %d column families", family_map.size()));
+  }
+
+  private synchronized ColumnFamilyHandle getFamily(String name)
+    throws Exception
+  {
+    ColumnFamilyHandle h = family_map.get(name);
+    if (h == null)
+    {
+      h = shared_db.createColumnFamily(new ColumnFamilyDescriptor(name.getBytes(), getFamilyOptions(name)));
+      family_map.put(name, h);
+    }
+    return h;
+  }
+
+  /**
+   * Tuning for each map, based on what it holds:
+   * - trie nodes, looked up by hash at random: bloom filters and cached index and filter blocks
+   * - blocks and transactions, big values read in bulk: large blocks with compression
+   * - everything else is keyed by hashes which don't compress, so no compression
+   */
+  protected ColumnFamilyOptions getFamilyOptions(String name)
+  {
+    ColumnFamilyOptions options = new ColumnFamilyOptions();
+    BlockBasedTableConfig table = new BlockBasedTableConfig();
+    if (block_cache != null) table.setBlockCache(block_cache);
+
+    if (name.equals("u") || name.equals("cit"))
+    {
+      table.setFilterPolicy(new BloomFilter(10, false));
+      table.setCacheIndexAndFilterBlocks(true);
+      table.setPinL0FilterAndIndexBlocksInCache(true);
+      table.setBlockSize(4096);
+      options.setCompressionType(CompressionType.NO_COMPRESSION);
+    }
+    else if (name.equals("block") || name.equals("tx") || name.equals("ib"))
+    {
+      table.setBlockSize(65536);
+      options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+    }
+    else
+    {
+      table.setFilterPolicy(new BloomFilter(10, false));
+      options.setCompressionType(CompressionType.NO_COMPRESSION);
+    }
+    options.setTableFormatConfig(table);
+    return options;
+  }
+
+  /**
+   * Get the stats for an operation on a map, shared by everything using that map name
+   */
+  protected synchronized DBOpStats getOpStats(String name, String op)
+  {
+    String key = name + "." + op;
+    DBOpStats s = op_stats.get(key);
+    if (s == null)
+    {
+      s = new DBOpStats();
+      op_stats.put(key, s);
+    }
+    return s;
+  }
+
+  @Override
+  public void addStats(Map<String, Long> stats)
+  {
+    synchronized(this)
+    {
+      for(Map.Entry<String, DBOpStats> me : op_stats.entrySet())
+      {
+        me.getValue().addTo(stats, "db." + me.getKey());
+      }
+    }
+
+    if (statistics != null)
+    {
+      for(TickerType t : REPORT_TICKERS)
+      {
+        stats.put("rocksdb." + t.name().toLowerCase(), statistics.getTickerCount(t));
+      }
+    }
+
+    try
+    {
+      if (family_map != null)
+      {
+        for(Map.Entry<String, ColumnFamilyHandle> me : getFamilyMap().entrySet())
+        {
+          addProperties(stats, "rocksdb." + me.getKey(), shared_db, me.getValue());
+        }
+      }
+      else if (shared_db != null)
+      {
+        addProperties(stats, "rocksdb", shared_db, shared_db.getDefaultColumnFamily());
+      }
+      else
+      {
+        for(Map.Entry<String, RocksDB> me : getSeparateDBMap().entrySet())
+        {
+          addProperties(stats, "rocksdb." + me.getKey(), me.getValue(), me.getValue().getDefaultColumnFamily());
+        }
+      }
+    }
+    catch(RocksDBException e)
+    {
+      logger.log(Level.WARNING, "rocks stats", e);
+    }
+  }
+
+  /**
+   * Files in level 0 each have to be checked on a read, so that and the
+   * compaction backlog are the things that tell us reads are getting expensive
+   */
+  private void addProperties(Map<String, Long> stats, String prefix, RocksDB db, ColumnFamilyHandle h)
+    throws RocksDBException
+  {
+    stats.put(prefix + ".sst_bytes", db.getLongProperty(h, "rocksdb.total-sst-files-size"));
+    stats.put(prefix + ".estimate_keys", db.getLongProperty(h, "rocksdb.estimate-num-keys"));
+    stats.put(prefix + ".l0_files", Long.parseLong(db.getProperty(h, "rocksdb.num-files-at-level0").trim()));
+    stats.put(prefix + ".pending_compaction_bytes", db.getLongProperty(h, "rocksdb.estimate-pending-compaction-bytes"));
+  }
+
+  private synchronized Map<String, ColumnFamilyHandle> getFamilyMap()
+  {
+    return new TreeMap<>(family_map);
+  }
+
+  private synchronized Map<String, RocksDB> getSeparateDBMap()
+  {
+    return new TreeMap<>(separate_db_map);
+  }
+
   protected WriteOptions getWriteOption()
   {
     return sharedWriteOptions;
   }
 
+  protected ReadOptions getReadOption()
+  {
+    return sharedReadOptions;
+  }
+
   @Override
   public synchronized DBMapMutationSet openMutationMapSet(String name) throws Exception
   {
@@ -105,6 +364,10 @@ public class JRocksDB extends DBProvider
         separate_db_map.put(name, db);
       }
     }
+    else if (use_column_families)
+    {
+      return new RocksDBMapMutationSet(this, shared_db, name, getFamily(name));
+    }
     else
     {
       db = shared_db;
@@ -113,6 +376,18 @@ public class JRocksDB extends DBProvider
     return new RocksDBMapMutationSet(this, db, name);
   }
 
+  /**
+   * With one shared DB (including the column family mode) the batch is one atomic write.
+   * Separate DBs can't do that, so those get the plain in order batch.
+   */
+  @Override
+  public DBBatch newBatch()
+  {
+    if (use_separate_dbs) return super.newBatch();
+
+    return new RocksDBBatch(this, shared_db);
+  }
+
   @Override
   public synchronized DBMap openMap(String name) throws Exception
   {
@@ -128,6 +403,10 @@ public class JRocksDB extends DBProvider
         separate_db_map.put(name, db);
       }
     }
+    else if (use_column_families)
+    {
+      return new RocksDBMap(this, shared_db, name, getFamily(name));
+    }
     else
     {
       db = shared_db;
@@ -136,6 +415,11 @@ public class JRocksDB extends DBProvider
     return new RocksDBMap(this, db, name);
   }
 
+  private synchronized List<ColumnFamilyHandle> getFamilyList()
+  {
+    return ImmutableList.copyOf(family_map.values());
+  }
+
   private synchronized List<RocksDB> getDBList()
   {
     if (!use_separate_dbs)
@@ -156,7 +440,11 @@ public class JRocksDB extends DBProvider
     {
       FlushOptions fl = new FlushOptions();
       fl.setWaitForFlush(true);
-      if (shared_db != null)
+      if (family_map != null)
+      {
+        shared_db.flush(fl, getFamilyList());
+      }
+      else if (shared_db != null)
       {
         shared_db.flush(fl);
       }
@@ -182,9 +470,19 @@ public class JRocksDB extends DBProvider
   {
     logger.info("Compaction started");
     long t1 = System.currentTimeMillis();
-    for(RocksDB db : getDBList())
+    if (use_column_families)
     {
-      db.compactRange();
+      for(ColumnFamilyHandle h : getFamilyList())
+      {
+        shared_db.compactRange(h);
+      }
+    }
+    else
+    {
+      for(RocksDB db : getDBList())
+      {
+        db.compactRange();
+      }
     }
     long t2 = System.currentTimeMillis();
     double sec = (t2 - t1) / 1000.0;
@@ -0,0 +1,125 @@
+package snowblossom.lib.db.rocksdb;
+
+import com.google.protobuf.ByteString;
+import duckutil.TimeRecord;
+import java.util.Map;
+import java.util.SortedMap;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import snowblossom.lib.db.DBBatch;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.DBMapMutationSet;
+
+/**
+ * Collects writes to any maps in the one RocksDB into a WriteBatch,
+ * which is written in a single atomic write on commit().
+ */
+public class RocksDBBatch extends DBBatch
+{
+  private final JRocksDB jdb;
+  private final RocksDB db;
+  private WriteBatch batch;
+
+  public RocksDBBatch(JRocksDB jdb, RocksDB db)
+  {
+    this.jdb = jdb;
+    this.db = db;
+    this.batch = new WriteBatch();
+  }
+
+  @Override
+  public void put(DBMap map, ByteString key, ByteString value)
+  {
+    checkOpen();
+    getRocksMap(map).putToBatch(batch, key, value);
+  }
+
+  @Override
+  public void putAll(DBMap map, SortedMap<ByteString, ByteString> m)
+  {
+    checkOpen();
+    RocksDBMap rmap = getRocksMap(map);
+    for(Map.Entry<ByteString, ByteString> me : m.entrySet())
+    {
+      rmap.putToBatch(batch, me.getKey(), me.getValue());
+    }
+  }
+
+  @Override
+  public void remove(DBMap map, ByteString key)
+  {
+    checkOpen();
+    getRocksMap(map).removeToBatch(batch, key);
+  }
+
+  @Override
+  public void add(DBMapMutationSet set, ByteString key, ByteString value)
+  {
+    checkOpen();
+    if (!(set instanceof RocksDBMapMutationSet))
+    {
+      throw new RuntimeException("Set is not from this DB: " + set);
+    }
+    RocksDBMapMutationSet rset = (RocksDBMapMutationSet) set;
+    if (rset.db != db)
+    {
+      throw new RuntimeException("Set is not from this DB: " + rset.name);
+    }
+    rset.addToBatch(batch, key, value);
+  }
+
+  private RocksDBMap getRocksMap(DBMap map)
+  {
+    if (!(map instanceof RocksDBMap))
+    {
+      throw new RuntimeException("Map is not from this DB: " + map);
+    }
+    RocksDBMap rmap = (RocksDBMap) map;
+    if (rmap.db != db)
+    {
+      throw new RuntimeException("Map is not from this DB");
+    }
+    return rmap;
+  }
+
+  @Override
+  public void commit()
+  {
+    checkOpen();
+    long t1 = System.nanoTime();
+    long size_bytes = batch.getDataSize();
+    try
+    {
+      db.write(jdb.getWriteOption(), batch);
+    }
+    catch(RocksDBException e)
+    {
+      close();
+      throw new RuntimeException(e);
+    }
+    batch.close();
+    batch = null;
+    TimeRecord.record(t1, "db_batch_rocks");
+    jdb.getOpStats("batch", "commit").record(t1, size_bytes);
+    try
+    {
+      runCommitHooks();
+    }
+    finally
+    {
+      close();
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    super.close();
+    if (batch != null)
+    {
+      batch.close();
+      batch = null;
+    }
+  }
+}
@@ -1,16 +1,21 @@
 package snowblossom.lib.db.rocksdb;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.function.Consumer;
+import org.rocksdb.ColumnFamilyHandle;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.RocksIterator;
 import org.rocksdb.WriteBatch;
 import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.DBOpStats;
 import snowblossom.lib.db.DBTooManyResultsException;
 
 public class RocksDBMap extends DBMap
@@ -18,27 +23,95 @@ public class RocksDBMap extends DBMap
   RocksDB db;
   ByteString prefix;
   JRocksDB jdb;
+  ColumnFamilyHandle family;
+
+  private final DBOpStats get_stats;
+  private final DBOpStats put_stats;
+  private final DBOpStats put_all_stats;
+  private final DBOpStats prefix_stats;
 
   public RocksDBMap(JRocksDB jdb, RocksDB db, String name)
+  {
+    this(jdb, db, name, db.getDefaultColumnFamily(), ByteString.copyFrom((name + "/").getBytes()));
+  }
+
+  /**
+   * Map with its own column family, so keys don't need the name prefix
+   */
+  public RocksDBMap(JRocksDB jdb, RocksDB db, String name, ColumnFamilyHandle family)
+  {
+    this(jdb, db, name, family, ByteString.EMPTY);
+  }
+
+  private RocksDBMap(JRocksDB jdb, RocksDB db, String name, ColumnFamilyHandle family, ByteString prefix)
   {
     this.db = db;
     this.jdb = jdb;
-    String prefix_str = name + "/";
+    this.family = family;
+    this.prefix = prefix;
 
-    this.prefix = ByteString.copyFrom(prefix_str.getBytes());
+    get_stats = jdb.getOpStats(name, "get");
+    put_stats = jdb.getOpStats(name, "put");
+    put_all_stats = jdb.getOpStats(name, "putall");
+    prefix_stats = jdb.getOpStats(name, "getbyprefix");
   }
 
+  /**
+   * Goes through per thread direct buffers, so the only copy made is the one
+   * out of the value buffer into the returned ByteString
+   */
   public ByteString get(ByteString key)
   {
-    ByteString key_str = prefix.concat(key);
+    if (!DirectBuffers.fitsKey(prefix, key)) return getByArray(key);
 
     try
     {
+      long t1 = System.nanoTime();
+      DirectBuffers bufs = DirectBuffers.get();
+      ByteBuffer key_buf = bufs.putKey(prefix, key);
+      int key_size = key_buf.remaining();
+      ByteBuffer value_buf = bufs.getValueBuffer(0);
+
+      while(true)
+      {
+        int sz = db.get(family, jdb.getReadOption(), key_buf, value_buf);
+        if (sz == RocksDB.NOT_FOUND)
+        {
+          get_stats.record(t1, key_size);
+          return null;
+        }
+        if (sz <= value_buf.capacity())
+        {
+          get_stats.record(t1, key_size + sz);
+          byte[] r = new byte[sz];
+          value_buf.get(r);
+          return UnsafeByteOperations.unsafeWrap(r);
+        }
+
+        // Value was cut off, but now we know how big it is
+        if (sz > DirectBuffers.MAX_VALUE_SIZE) return getByArray(key);
+        key_buf.rewind();
+        value_buf = bufs.getValueBuffer(sz);
+      }
+    }
+    catch(RocksDBException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
 
-      byte[] r = db.get(key_str.toByteArray());
+  private ByteString getByArray(ByteString key)
+  {
+    ByteString key_str = prefix.concat(key);
+
+    try
+    {
+      long t1 = System.nanoTime();
+      byte[] r = db.get(family, key_str.toByteArray());
+      get_stats.record(t1, key_str.size() + (r == null ? 0 : r.length));
       if (r == null) return null;
 
-      return ByteString.copyFrom(r);
+      return UnsafeByteOperations.unsafeWrap(r);
 
     }
     catch(RocksDBException e)
@@ -51,8 +124,18 @@ public class RocksDBMap extends DBMap
   {
     try
     {
-      ByteString key_str = prefix.concat(key);
-      db.put(jdb.getWriteOption(), key_str.toByteArray(), value.toByteArray());
+      long t1 = System.nanoTime();
+      long sz = prefix.size() + key.size() + value.size();
+      if (fitsDirect(key, value))
+      {
+        DirectBuffers bufs = DirectBuffers.get();
+        db.put(family, jdb.getWriteOption(), bufs.putKey(prefix, key), bufs.putValue(value));
+      }
+      else
+      {
+        db.put(family, jdb.getWriteOption(), prefix.concat(key).toByteArray(), value.toByteArray());
+      }
+      put_stats.record(t1, sz);
     }
     catch(RocksDBException e)
     {
@@ -60,13 +143,18 @@ public class RocksDBMap extends DBMap
     }
   }
 
+  private boolean fitsDirect(ByteString key, ByteString value)
+  {
+    return DirectBuffers.fitsKey(prefix, key) && (value.size() <= DirectBuffers.MAX_VALUE_SIZE);
+  }
+
   @Override
   public void remove(ByteString key)
   {
     try
     {
       ByteString key_str = prefix.concat(key);
-      db.delete(jdb.getWriteOption(), key_str.toByteArray());
+      db.delete(family, jdb.getWriteOption(), key_str.toByteArray());
     }
     catch(RocksDBException e)
     {
@@ -74,20 +162,76 @@ public class RocksDBMap extends DBMap
     }
   }
 
+  /**
+   * The batch copies the data in, so the direct buffers are free again after
+   */
+  void putToBatch(WriteBatch batch, ByteString key, ByteString value)
+  {
+    try
+    {
+      if (fitsDirect(key, value))
+      {
+        DirectBuffers bufs = DirectBuffers.get();
+        batch.put(family, bufs.putKey(prefix, key), bufs.putValue(value));
+      }
+      else
+      {
+        batch.put(family, prefix.concat(key).toByteArray(), value.toByteArray());
+      }
+    }
+    catch(RocksDBException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  void removeToBatch(WriteBatch batch, ByteString key)
+  {
+    try
+    {
+      ByteString key_str = prefix.concat(key);
+      batch.delete(family, key_str.toByteArray());
+    }
+    catch(RocksDBException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void scanKeys(Consumer<ByteString> consumer)
+  {
+    try(RocksIterator it = db.newIterator(family))
+    {
+      it.seek(prefix.toByteArray());
+      while(it.isValid())
+      {
+        ByteString curr_key = UnsafeByteOperations.unsafeWrap(it.key());
+        if (!curr_key.startsWith(prefix)) break;
+
+        consumer.accept(curr_key.substring(prefix.size()));
+        it.next();
+      }
+    }
+  }
+
   @Override
   public void putAll(SortedMap<ByteString, ByteString> m)
   {
+    long t1 = System.nanoTime();
+    long sz = 0;
     try(WriteBatch batch = new WriteBatch())
     {
 
       for(Map.Entry<ByteString, ByteString> e : m.entrySet())
       {
-        ByteString key_str = prefix.concat(e.getKey());
-        batch.put(key_str.toByteArray(), e.getValue().toByteArray());
+        putToBatch(batch, e.getKey(), e.getValue());
+        sz += prefix.size() + e.getKey().size() + e.getValue().size();
 
       }
 
       db.write(jdb.getWriteOption(), batch);
+      put_all_stats.record(t1, sz);
 
     }
     catch(RocksDBException e)
@@ -103,7 +247,7 @@ public class RocksDBMap extends DBMap
     ByteString key_str = prefix.concat(key);
     LinkedList<ByteString> lst = new LinkedList<>();
 
-    try(RocksIterator it = db.newIterator())
+    try(RocksIterator it = db.newIterator(family))
     {
       it.seek(key_str.toByteArray());
       
@@ -143,7 +287,9 @@ public class RocksDBMap extends DBMap
     Map<ByteString, ByteString> map = new HashMap<>(16,0.5f);
 
     int count = 0;
-    RocksIterator it = db.newIterator();
+    long sz = 0;
+    long t1 = System.nanoTime();
+    RocksIterator it = db.newIterator(family);
 
     try
     {
@@ -151,13 +297,15 @@ public class RocksDBMap extends DBMap
 
       while(it.isValid())
       {
-        ByteString curr_key = ByteString.copyFrom(it.key());
+        ByteString curr_key = UnsafeByteOperations.unsafeWrap(it.key());
         if (!curr_key.startsWith(key_str)) break;
 
         ByteString k = curr_key.substring(prefix.size());
         
-         map.put(k, ByteString.copyFrom(it.value()));
+        byte[] v = it.value();
+        map.put(k, UnsafeByteOperations.unsafeWrap(v));
         count++;
+        sz += curr_key.size() + v.length;
 
         if (count > max_reply)
         {
@@ -171,6 +319,7 @@ public class RocksDBMap extends DBMap
     finally
     {
       it.dispose();
+      prefix_stats.record(t1, sz);
     }
 
     return map;
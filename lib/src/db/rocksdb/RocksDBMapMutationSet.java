@@ -5,6 +5,7 @@ import com.google.protobuf.ByteString;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import org.rocksdb.ColumnFamilyHandle;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.RocksIterator;
@@ -19,14 +20,29 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
   String name;
   byte[] name_bytes;
   byte sep = '/';
+  ColumnFamilyHandle family;
+
   public RocksDBMapMutationSet(JRocksDB jdb, RocksDB db, String name)
   {
     this.db = db;
     this.name = name;
     this.jdb = jdb;
+    this.family = db.getDefaultColumnFamily();
     name_bytes = name.getBytes();
   }
 
+  /**
+   * Set with its own column family, so keys don't need the name prefix
+   */
+  public RocksDBMapMutationSet(JRocksDB jdb, RocksDB db, String name, ColumnFamilyHandle family)
+  {
+    this.db = db;
+    this.name = name;
+    this.jdb = jdb;
+    this.family = family;
+    name_bytes = new byte[0];
+  }
+
   private ByteString getDBKey(ByteString key, ByteString value)
   {
     try
@@ -71,7 +87,7 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
   
     try
     {
-      db.put(jdb.getWriteOption(), w.toByteArray(), b);
+      db.put(family, jdb.getWriteOption(), w.toByteArray(), b);
     }
     catch(RocksDBException e)
     {
@@ -90,7 +106,7 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
       for(Map.Entry<ByteString, ByteString> me : map.entries())
       {
         ByteString w = getDBKey(me.getKey(), me.getValue());
-        batch.put(w.toByteArray(), b);
+        batch.put(family, w.toByteArray(), b);
       }
 
       db.write(jdb.getWriteOption(), batch);
@@ -102,13 +118,26 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
 
   }
 
+  void addToBatch(WriteBatch batch, ByteString key, ByteString value)
+  {
+    byte b[]=new byte[0];
+    try
+    {
+      batch.put(family, getDBKey(key, value).toByteArray(), b);
+    }
+    catch(RocksDBException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
   @Override
   public void remove(ByteString key, ByteString value)
   {
     try
     {
       ByteString w = getDBKey(key, value);
-      db.remove(jdb.getWriteOption(), w.toByteArray());
+      db.delete(family, jdb.getWriteOption(), w.toByteArray());
     }
     catch(RocksDBException e)
     {
@@ -123,7 +152,7 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
 
     LinkedList<ByteString> set = new LinkedList<>();
     int count = 0;
-    try(RocksIterator it = db.newIterator())
+    try(RocksIterator it = db.newIterator(family))
     {
       it.seek(dbKey.toByteArray());
 
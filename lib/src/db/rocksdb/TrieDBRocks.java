@@ -4,7 +4,7 @@ import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.io.File;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.SortedMap;
 import org.junit.Assert;
 import org.rocksdb.*;
 import snowblossom.trie.proto.TrieNode;
@@ -66,7 +66,7 @@ public class TrieDBRocks extends TrieDB
 
   }
 
-  public void bulkSave(TreeMap<ByteString, TrieNode> updates)
+  public void bulkSave(SortedMap<ByteString, TrieNode> updates)
   {
     try
     {
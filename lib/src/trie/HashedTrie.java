@@ -4,7 +4,12 @@ import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
 import com.google.protobuf.ByteString;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
 import org.junit.Assert;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.trie.proto.ChildEntry;
 import snowblossom.trie.proto.TrieNode;
 import java.util.logging.Logger;
@@ -61,16 +66,30 @@ public class HashedTrie
    * @return the new root hash
    */
   public ByteString mergeBatch(ByteString root_hash, Map<ByteString, ByteString> updates)
+  {
+    return mergeBatch(root_hash, updates, null);
+  }
+
+  /**
+   * Same as mergeBatch() but the new nodes are added to the DBBatch
+   * instead of saved right away.
+   */
+  public ByteString mergeBatch(ByteString root_hash, Map<ByteString, ByteString> updates, DBBatch batch)
   {
     TrieDBBuffered db = new TrieDBBuffered(basedb);
 
     TrieNode root = db.load(root_hash);
     ByteString answer = mergeNode(db, root, updates).getHash();
-    db.commit();
+    db.commit(batch);
     return answer;
   }
 
   public boolean mergeIfNewRoot(ByteString old_root, Map<ByteString, ByteString> updates, ByteString expected_new_root)
+  {
+    return mergeIfNewRoot(old_root, updates, expected_new_root, null);
+  }
+
+  public boolean mergeIfNewRoot(ByteString old_root, Map<ByteString, ByteString> updates, ByteString expected_new_root, DBBatch batch)
   {
     TrieDBBuffered db = new TrieDBBuffered(basedb);
     TrieNode root = db.load(old_root);
@@ -79,7 +98,7 @@ public class HashedTrie
     if (answer.equals(expected_new_root))
     {
       logger.fine("Commiting new UTXO root: " + HashUtils.getHexString(answer));
-      db.commit();
+      db.commit(batch);
       return true;
     }
     return false;
@@ -91,13 +110,27 @@ public class HashedTrie
    */
   public ByteString simulateMerge(ByteString root_hash, Map<ByteString, ByteString> updates)
   {
-    TrieDBBuffered db = new TrieDBBuffered(basedb);
+    return simulateMerge(new TrieDBBuffered(basedb), root_hash, updates);
+  }
+
+  /**
+   * Simulate the merge with the new nodes going into the given buffer,
+   * which is never commited.  Lets the caller keep the buffer to do
+   * another merge from the resulting root later.
+   */
+  ByteString simulateMerge(TrieDBBuffered db, ByteString root_hash, Map<ByteString, ByteString> updates)
+  {
     TrieNode root = db.load(root_hash);
     Assert.assertNotNull("Simluating merge from " + HashUtils.getHexString(root_hash), root);
     ByteString answer = mergeNode(db, root, updates).getHash();
     return answer;
   }
 
+  TrieDB getBaseDB()
+  {
+    return basedb;
+  }
+
   /**
    * get entry from the given root hash or null of it does not exist
    */
@@ -130,6 +163,84 @@ public class HashedTrie
     return null;
   }
 
+  /**
+   * Looks up many keys at once from the given root hash.
+   * Keys are sorted and walked down the trie together, so nodes shared
+   * by several keys (like the upper levels) are only loaded once.
+   *
+   * @return map of key to leaf data for the keys that exist.  Keys
+   * that do not exist are not in the map.
+   */
+  public TreeMap<ByteString, ByteString> getLeafDataBatch(ByteString root_hash, Collection<ByteString> keys)
+  {
+    TreeSet<ByteString> sorted = new TreeSet<>(new ByteStringComparator());
+    sorted.addAll(keys);
+
+    TreeMap<ByteString, ByteString> results = new TreeMap<>(new ByteStringComparator());
+    if (sorted.size() > 0)
+    {
+      getLeafDataBatchInternal(root_hash, new ArrayList<ByteString>(sorted), results);
+    }
+    return results;
+  }
+
+  /**
+   * @param keys sorted keys, all of which start with the prefix of the node for 'hash'
+   */
+  private void getLeafDataBatchInternal(ByteString hash, List<ByteString> keys, Map<ByteString, ByteString> results)
+  {
+    TrieNode node = basedb.load(hash);
+    if (node == null)
+    {
+      throw new RuntimeException(String.format("Referenced node %s not in database", HashUtils.getHexString(hash)));
+    }
+    int prefix_len = node.getPrefix().size();
+
+    // A key equal to the prefix sorts before anything longer
+    int idx = 0;
+    while((idx < keys.size()) && (keys.get(idx).size() == prefix_len))
+    {
+      Assert.assertTrue(keys.get(idx).equals(node.getPrefix()));
+      if (node.getIsLeaf())
+      {
+        results.put(keys.get(idx), node.getLeafData());
+      }
+      idx++;
+    }
+    if (idx == keys.size()) return;
+
+    // Children never share a first byte, so that is enough to pick one
+    HashMap<Byte, ChildEntry> children_by_start = new HashMap<>();
+    for(ChildEntry ce : node.getChildrenList())
+    {
+      children_by_start.put(ce.getKey().byteAt(0), ce);
+    }
+
+    // Since keys are sorted, the ones for each child come in a single run
+    while(idx < keys.size())
+    {
+      byte start = keys.get(idx).byteAt(prefix_len);
+      ChildEntry ce = children_by_start.get(start);
+      ByteString p = null;
+      if (ce != null) p = node.getPrefix().concat(ce.getKey());
+
+      ArrayList<ByteString> sub_keys = new ArrayList<>();
+      while((idx < keys.size()) && (keys.get(idx).byteAt(prefix_len) == start))
+      {
+        ByteString key = keys.get(idx);
+        if ((p != null) && (key.startsWith(p)))
+        {
+          sub_keys.add(key);
+        }
+        idx++;
+      }
+      if (sub_keys.size() > 0)
+      {
+        getLeafDataBatchInternal(ce.getHash(), sub_keys, results);
+      }
+    }
+  }
+
   public TreeMap<ByteString, ByteString> getDataMap(ByteString hash, ByteString key, int max_results)
   {
     LinkedList<TrieNode> proof = new LinkedList<>();
@@ -274,6 +385,12 @@ public class HashedTrie
       children_by_start.put(start, c);
     }
 
+    // Work out what each child group needs first, then do the merges (possibly in parallel)
+    // then put the results on the builder in the same order as the groups
+    // so the result is the same either way
+    ArrayList<Object> group_results = new ArrayList<>();
+    ArrayList<ChildMerge> child_merges = new ArrayList<>();
+
     for(ByteString start : fings.keySet())
     {
       Set<ByteString> changes = changes_by_start.get(start);
@@ -283,13 +400,14 @@ public class HashedTrie
 
       if ((changes.isEmpty()) && (children.containsKey(prefix_for_group)))
       {
-        builder.addChildren( children.get(prefix_for_group));
+        group_results.add( children.get(prefix_for_group));
         continue; //woo ugly
       }
 
       Assert.assertTrue(prefix_for_group.size() > 0);
 
       TrieNode child_node = null;
+      ByteString child_hash = null;
       if (!children.containsKey(prefix_for_group))
       { 
         // Make a new node, put children if any under it
@@ -317,11 +435,9 @@ public class HashedTrie
       }
       else
       {
-        if (child_node == null)
-        {
-          child_node = db.load(children.get(prefix_for_group).getHash());
-          //child_node = db.load(node.getPrefix().concat(prefix_for_group));
-        }
+        // loaded when the merge is run
+        child_hash = children.get(prefix_for_group).getHash();
+        //child_node = db.load(node.getPrefix().concat(prefix_for_group));
       }
       
       Map<ByteString, ByteString> sub_updates = new HashMap<>();
@@ -329,7 +445,24 @@ public class HashedTrie
       {
         sub_updates.put(bs, updates.get(bs));
       }
-      child_node = mergeNode(db, child_node, sub_updates);
+
+      ChildMerge cm = new ChildMerge(db, child_node, child_hash, sub_updates, start);
+      child_merges.add(cm);
+      group_results.add(cm);
+    }
+
+    runChildMerges(child_merges);
+
+    for(Object o : group_results)
+    {
+      if (o instanceof ChildEntry)
+      {
+        builder.addChildren( (ChildEntry) o);
+        continue;
+      }
+      ChildMerge cm = (ChildMerge) o;
+      TrieNode child_node = cm.result;
+      ByteString start = cm.start;
       if (child_node != null)
       {
         // The child node might have a different prefix
@@ -389,6 +522,155 @@ public class HashedTrie
 
   }
 
+  /**
+   * Runs the merges for the children of one node.  If there is enough work
+   * the big ones are split off to the merge pool and run in parallel.
+   * The child subtrees are independent of each other so the order they finish
+   * in doesn't matter, the caller puts the results together in a fixed order.
+   */
+  private void runChildMerges(List<ChildMerge> child_merges)
+  {
+    int big = 0;
+    for(ChildMerge cm : child_merges)
+    {
+      if (cm.sub_updates.size() >= getParallelMergeMin()) big++;
+    }
+
+    if ((big < 2) || (getMergeThreads() <= 1))
+    {
+      for(ChildMerge cm : child_merges)
+      {
+        cm.compute();
+      }
+      return;
+    }
+
+    if (ForkJoinTask.inForkJoinPool())
+    {
+      ForkJoinTask.invokeAll(child_merges);
+    }
+    else
+    {
+      getMergePool().invoke(new RecursiveAction(){
+        protected void compute()
+        {
+          ForkJoinTask.invokeAll(child_merges);
+        }
+      });
+    }
+  }
+
+  private class ChildMerge extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final TrieDB db;
+    private final TrieNode child_node;
+    private final ByteString child_hash;
+    private final Map<ByteString, ByteString> sub_updates;
+    private final ByteString start;
+
+    private TrieNode result;
+
+    /**
+     * @param child_node the node to merge into, or null to load it by child_hash
+     */
+    public ChildMerge(TrieDB db, TrieNode child_node, ByteString child_hash, Map<ByteString, ByteString> sub_updates, ByteString start)
+    {
+      this.db = db;
+      this.child_node = child_node;
+      this.child_hash = child_hash;
+      this.sub_updates = sub_updates;
+      this.start = start;
+    }
+
+    @Override
+    protected void compute()
+    {
+      TrieNode n = child_node;
+      if (n == null)
+      {
+        n = db.load(child_hash);
+      }
+      result = mergeNode(db, n, sub_updates);
+    }
+  }
+
+  private static int merge_threads = Runtime.getRuntime().availableProcessors();
+  private static int parallel_merge_min = 256;
+  private static ForkJoinPool merge_pool;
+
+  /**
+   * @param threads number of threads to use for merges, one to do them all on the calling thread
+   * @param min_updates a child subtree needs at least this many updates to be worth sending
+   *   off to another thread
+   */
+  public static synchronized void setParallelMerge(int threads, int min_updates)
+  {
+    merge_threads = Math.max(1, threads);
+    parallel_merge_min = Math.max(1, min_updates);
+    if (merge_pool != null)
+    {
+      // Merges already running on it still finish
+      merge_pool.shutdown();
+      merge_pool = null;
+    }
+  }
+
+  public static synchronized int getMergeThreads() { return merge_threads; }
+  public static synchronized int getParallelMergeMin() { return parallel_merge_min; }
+
+  private static synchronized ForkJoinPool getMergePool()
+  {
+    if (merge_pool == null)
+    {
+      merge_pool = new ForkJoinPool(merge_threads, new MergeThreadFactory(), null, false);
+    }
+    return merge_pool;
+  }
+
+  private static class MergeThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory
+  {
+    private int count = 0;
+
+    public synchronized ForkJoinWorkerThread newThread(ForkJoinPool pool)
+    {
+      ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      t.setDaemon(true);
+      t.setName("trie_merge{" + count + "}");
+      count++;
+      return t;
+    }
+  }
+
+  /**
+   * Add the hashes of all nodes reachable from root to the marked set.
+   * Subtrees already in the set are not walked again, so marking a series
+   * of roots that share most of their nodes is cheap after the first.
+   */
+  public void markReachable(ByteString root, Set<ByteString> marked)
+  {
+    ArrayList<ByteString> stack = new ArrayList<>();
+    stack.add(root);
+
+    while(stack.size() > 0)
+    {
+      ByteString hash = stack.remove(stack.size() - 1);
+      if (marked.contains(hash)) continue;
+
+      TrieNode node = basedb.load(hash);
+      if (node == null)
+      {
+        throw new RuntimeException(String.format("Referenced node %s not in database", HashUtils.getHexString(hash)));
+      }
+      marked.add(hash);
+      for(ChildEntry ce : node.getChildrenList())
+      {
+        stack.add(ce.getHash());
+      }
+    }
+  }
+
   public void printTree(ByteString root)
   {
     printNode(basedb, root, 0);
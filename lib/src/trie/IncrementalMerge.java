@@ -0,0 +1,150 @@
+package snowblossom.lib.trie;
+
+import com.google.protobuf.ByteString;
+import duckutil.LRUCache;
+import duckutil.TimeRecord;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Simulates merges for block templates without starting from scratch each time.
+ *
+ * Templates built on the same parent get mostly the same set of updates each time,
+ * with a few new transactions and a new coinbase.  So for each parent root we
+ * keep the root and the uncommited nodes from the last simulation and only
+ * merge in the difference between the last update set and the new one.
+ * Keys that were in the last set but not the new one are put back to their
+ * value under the parent root.
+ *
+ * Since the trie hashes the same for the same contents regardless of how
+ * it got there, the result is the same as a full simulateMerge().
+ *
+ * Every node made by every delta merge stays buffered until the state starts
+ * over, so each state starts over from the parent root once its buffered nodes
+ * pass max_buffered_bytes.  That makes the memory used up to about
+ * max_bases * max_buffered_bytes, plus one merge's worth of nodes.
+ * If a single full merge is bigger than that, every call is a full merge.
+ */
+public class IncrementalMerge
+{
+  public static final long DEFAULT_MAX_BUFFERED_BYTES = 8L * 1048576L;
+
+  private final HashedTrie trie;
+  private final LRUCache<ByteString, MergeState> states;
+  private final long max_buffered_bytes;
+
+  /**
+   * @param max_bases number of different parent roots to keep state for
+   */
+  public IncrementalMerge(HashedTrie trie, int max_bases)
+  {
+    this(trie, max_bases, DEFAULT_MAX_BUFFERED_BYTES);
+  }
+
+  /**
+   * @param max_bases number of different parent roots to keep state for
+   * @param max_buffered_bytes size of buffered nodes each state can get to before starting over
+   */
+  public IncrementalMerge(HashedTrie trie, int max_bases, long max_buffered_bytes)
+  {
+    this.trie = trie;
+    this.states = new LRUCache<>(max_bases);
+    this.max_buffered_bytes = max_buffered_bytes;
+  }
+
+  /**
+   * Same as HashedTrie.simulateMerge()
+   */
+  public ByteString simulateMerge(ByteString base_root, Map<ByteString, ByteString> updates)
+  {
+    MergeState state;
+    synchronized(states)
+    {
+      state = states.get(base_root);
+      if (state == null)
+      {
+        state = new MergeState(base_root);
+        states.put(base_root, state);
+      }
+    }
+    return state.simulateMerge(updates);
+  }
+
+  private class MergeState
+  {
+    private final ByteString base_root;
+
+    private TrieDBBuffered db;
+    private HashMap<ByteString, ByteString> applied;
+    private ByteString current_root;
+
+    public MergeState(ByteString base_root)
+    {
+      this.base_root = base_root;
+    }
+
+    public synchronized ByteString simulateMerge(Map<ByteString, ByteString> updates)
+    {
+      if (current_root != null)
+      {
+        HashMap<ByteString, ByteString> delta = getDelta(updates);
+
+        if ((delta.size() < updates.size()) && (db.getBufferedBytes() <= max_buffered_bytes))
+        {
+          long t1 = System.nanoTime();
+          if (delta.size() > 0)
+          {
+            current_root = trie.simulateMerge(db, current_root, delta);
+          }
+          applied = new HashMap<>(updates);
+          TimeRecord.record(t1, "IncrementalMerge.delta");
+          return current_root;
+        }
+      }
+
+      long t1 = System.nanoTime();
+      db = new TrieDBBuffered(trie.getBaseDB());
+      current_root = trie.simulateMerge(db, base_root, updates);
+      applied = new HashMap<>(updates);
+      TimeRecord.record(t1, "IncrementalMerge.full");
+      return current_root;
+    }
+
+    /**
+     * What needs to be merged into current_root to make it
+     * base_root with updates applied
+     */
+    private HashMap<ByteString, ByteString> getDelta(Map<ByteString, ByteString> updates)
+    {
+      HashMap<ByteString, ByteString> delta = new HashMap<>();
+      for(Map.Entry<ByteString, ByteString> me : updates.entrySet())
+      {
+        ByteString key = me.getKey();
+        ByteString value = me.getValue();
+        if ((!applied.containsKey(key)) || (!Objects.equals(applied.get(key), value)))
+        {
+          delta.put(key, value);
+        }
+      }
+
+      HashSet<ByteString> revert_keys = new HashSet<>();
+      for(ByteString key : applied.keySet())
+      {
+        if (!updates.containsKey(key)) revert_keys.add(key);
+      }
+      if (revert_keys.size() > 0)
+      {
+        Map<ByteString, ByteString> base_values = trie.getLeafDataBatch(base_root, revert_keys);
+        for(ByteString key : revert_keys)
+        {
+          // null if not in the base, which removes it
+          delta.put(key, base_values.get(key));
+        }
+      }
+      return delta;
+    }
+  }
+
+}
@@ -2,8 +2,9 @@ package snowblossom.lib.trie;
 
 import com.google.protobuf.ByteString;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.SortedMap;
 import org.junit.Assert;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.trie.proto.TrieNode;
 
 public abstract class TrieDB
@@ -11,7 +12,17 @@ public abstract class TrieDB
   public abstract void save(TrieNode node);
   public abstract TrieNode load(ByteString key);
 
-  public void bulkSave(TreeMap<ByteString, TrieNode> updates)
+  /**
+   * Save the nodes as part of the given batch.  Only DB map backed
+   * implementations can add to a batch, others just save directly.
+   * @param batch may be null to save directly
+   */
+  public void bulkSave(SortedMap<ByteString, TrieNode> updates, DBBatch batch)
+  {
+    bulkSave(updates);
+  }
+
+  public void bulkSave(SortedMap<ByteString, TrieNode> updates)
   {
     for(Map.Entry<ByteString, TrieNode> me : updates.entrySet())
     {
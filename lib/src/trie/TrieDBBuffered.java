@@ -1,35 +1,75 @@
 package snowblossom.lib.trie;
 
 import com.google.protobuf.ByteString;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.trie.proto.TrieNode;
 
+/**
+ * Holds saved nodes in memory until commit().
+ * Safe for use from multiple threads, since HashedTrie may merge
+ * different subtrees at the same time.
+ */
 public class TrieDBBuffered extends TrieDB
 {
-  private TreeMap<ByteString, TrieNode> changes;
+  private ConcurrentSkipListMap<ByteString, TrieNode> changes;
+  private final AtomicLong buffered_nodes = new AtomicLong(0L);
+  private final AtomicLong buffered_bytes = new AtomicLong(0L);
 
   TrieDB db;
 
   public TrieDBBuffered(TrieDB inner)
   {
     this.db = inner;
-    changes = new TreeMap<>(new ByteStringComparator());
+    changes = new ConcurrentSkipListMap<>(new ByteStringComparator());
   }
 
   public void save(TrieNode node)
   {
-    changes.put(node.getHash(), node);
+    if (changes.put(node.getHash(), node) == null)
+    {
+      buffered_nodes.incrementAndGet();
+      buffered_bytes.addAndGet(node.getSerializedSize());
+    }
+  }
+
+  /**
+   * Number of nodes held until commit
+   */
+  public long getBufferedNodes()
+  {
+    return buffered_nodes.get();
+  }
+
+  /**
+   * Serialized size of the nodes held until commit
+   */
+  public long getBufferedBytes()
+  {
+    return buffered_bytes.get();
   }
   public TrieNode load(ByteString key)
   {
-    if (changes.containsKey(key)) return changes.get(key);
+    TrieNode node = changes.get(key);
+    if (node != null) return node;
 
     return db.load(key);
   }
 
   public void commit()
   {
-    db.bulkSave(changes);
+    commit(null);
+  }
+
+  /**
+   * @param batch batch to add the nodes to, or null to save them now
+   */
+  public void commit(DBBatch batch)
+  {
+    db.bulkSave(changes, batch);
     changes.clear();
+    buffered_nodes.set(0L);
+    buffered_bytes.set(0L);
   }
 }
@@ -2,33 +2,68 @@ package snowblossom.lib.trie;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.lib.db.DBMap;
 import snowblossom.trie.proto.TrieNode;
 
 public class TrieDBMap extends TrieDB
 {
   private DBMap db_map;
+  private TrieNodeCache cache;
+  private ByteString cache_prefix;
+
+  // Keys saved while a prune is running, so it doesn't remove them
+  private volatile Set<ByteString> write_tracker;
+
   public TrieDBMap(DBMap db_map)
+  {
+    this(db_map, null, ByteString.EMPTY);
+  }
+
+  /**
+   * @param cache node cache to use, may be null for none
+   * @param cache_prefix prefix put on keys in the cache, so different
+   *   tries can share one cache without seeing each other's nodes
+   */
+  public TrieDBMap(DBMap db_map, TrieNodeCache cache, ByteString cache_prefix)
   {
     this.db_map = db_map;
+    this.cache = cache;
+    this.cache_prefix = cache_prefix;
   }
 
   @Override
   public void save(TrieNode node)
   {
+    track(node.getHash());
     db_map.put( node.getHash(), node.toByteString());
+    addToCache(node.getHash(), node);
   }
 
   @Override
   public TrieNode load(ByteString key)
   {
+    ByteString cache_key = null;
+    if (useCache(key))
+    {
+      cache_key = cache_prefix.concat(key);
+      TrieNode node = cache.get(cache_key);
+      if (node != null) return node;
+    }
+
     ByteString r = db_map.get(key);
     if (r == null) return null;
     try
     {
-       return TrieNode.parser().parseFrom(r);
+       TrieNode node = TrieNode.parser().parseFrom(r);
+       if (cache_key != null) cache.put(cache_key, node);
+       return node;
     }
     catch(InvalidProtocolBufferException e)
     {
@@ -38,7 +73,13 @@ public class TrieDBMap extends TrieDB
   }
 
   @Override
-  public void bulkSave(TreeMap<ByteString, TrieNode> updates)
+  public void bulkSave(SortedMap<ByteString, TrieNode> updates)
+  {
+    bulkSave(updates, null);
+  }
+
+  @Override
+  public void bulkSave(SortedMap<ByteString, TrieNode> updates, DBBatch batch)
   {
     TreeMap<ByteString, ByteString> map = new TreeMap<>(new ByteStringComparator());
 
@@ -47,9 +88,116 @@ public class TrieDBMap extends TrieDB
       ByteString key = me.getKey();
       ByteString value = me.getValue().toByteString();
       map.put(key, value);
+      track(key);
     }
 
-    db_map.putAll(map);
+    if (batch != null)
+    {
+      batch.putAll(db_map, map);
 
+      // Not until they are saved, so nothing reads a node the DB doesn't have.
+      // The caller clears updates after this, so keep our own list.
+      ArrayList<TrieNode> nodes = new ArrayList<>();
+      for(Map.Entry<ByteString, TrieNode> me : updates.entrySet())
+      {
+        if (useCache(me.getKey())) nodes.add(me.getValue());
+      }
+      if (nodes.size() > 0)
+      {
+        batch.addCommitHook( () -> addAllToCache(nodes) );
+      }
+    }
+    else
+    {
+      db_map.putAll(map);
+      for(Map.Entry<ByteString, TrieNode> me : updates.entrySet())
+      {
+        addToCache(me.getKey(), me.getValue());
+      }
+    }
+
+  }
+
+  /**
+   * New nodes are likely to be read again soon by the next block
+   */
+  private void addAllToCache(ArrayList<TrieNode> nodes)
+  {
+    for(TrieNode node : nodes)
+    {
+      addToCache(node.getHash(), node);
+    }
+  }
+
+  private void addToCache(ByteString key, TrieNode node)
+  {
+    if (useCache(key))
+    {
+      cache.put(cache_prefix.concat(key), node);
+    }
+  }
+
+  /**
+   * Nodes are content addressed by hash, except for the intermediate nodes
+   * saved by HashedTrie.mergeNode() before their hash is known.  Those
+   * land on the empty key and get overwritten, so they are never cached.
+   */
+  private boolean useCache(ByteString key)
+  {
+    if (cache == null) return false;
+    if (key.size() == 0) return false;
+    return true;
+  }
+
+  public TrieNodeCache getCache()
+  {
+    return cache;
+  }
+
+  public DBMap getDBMap()
+  {
+    return db_map;
+  }
+
+  /**
+   * Remove a node, used by pruning.  The caller is responsible for making
+   * sure nothing still needs it.
+   */
+  public void remove(ByteString key, DBBatch batch)
+  {
+    batch.remove(db_map, key);
+    if (useCache(key))
+    {
+      cache.remove(cache_prefix.concat(key));
+    }
+  }
+
+  /**
+   * Start recording every key saved, until stopWriteTracking().
+   */
+  public void startWriteTracking()
+  {
+    write_tracker = ConcurrentHashMap.newKeySet();
+  }
+
+  public void stopWriteTracking()
+  {
+    write_tracker = null;
+  }
+
+  /**
+   * @return true iff the key has been saved since startWriteTracking()
+   */
+  public boolean wasWritten(ByteString key)
+  {
+    Set<ByteString> t = write_tracker;
+    if (t == null) return false;
+    return t.contains(key);
+  }
+
+  private void track(ByteString key)
+  {
+    Set<ByteString> t = write_tracker;
+    if (t != null) t.add(key);
   }
 }
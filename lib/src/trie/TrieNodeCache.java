@@ -0,0 +1,153 @@
+package snowblossom.lib.trie;
+
+import com.google.protobuf.ByteString;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import snowblossom.trie.proto.TrieNode;
+
+/**
+ * Memory bounded cache of parsed TrieNodes.
+ *
+ * Trie nodes are stored by the hash of their contents, so a given key
+ * always maps to the same node and nothing in here ever needs to be invalidated.
+ * Entries are only removed early when pruning deletes the node from the DB.
+ * That makes it safe to share one cache between the tries in a DB as long
+ * as each uses its own key prefix.
+ *
+ * Split into stripes by key so that validation and RPC threads walking
+ * the trie at the same time are not all waiting on one lock.
+ */
+public class TrieNodeCache
+{
+  public static final int STRIPES = 16;
+
+  /** Rough heap cost of a parsed node beyond its serialized bytes */
+  public static final long NODE_OVERHEAD = 256L;
+
+  private final Stripe[] stripes;
+  private final long max_bytes;
+
+  private final AtomicLong hits = new AtomicLong(0L);
+  private final AtomicLong misses = new AtomicLong(0L);
+
+  public TrieNodeCache(long max_bytes)
+  {
+    this.max_bytes = max_bytes;
+    stripes = new Stripe[STRIPES];
+    for(int i=0; i<STRIPES; i++)
+    {
+      stripes[i] = new Stripe(max_bytes / STRIPES);
+    }
+  }
+
+  public TrieNode get(ByteString key)
+  {
+    TrieNode node = getStripe(key).get(key);
+    if (node != null) hits.incrementAndGet();
+    else misses.incrementAndGet();
+
+    return node;
+  }
+
+  public void put(ByteString key, TrieNode node)
+  {
+    getStripe(key).put(key, node);
+  }
+
+  public void remove(ByteString key)
+  {
+    getStripe(key).remove(key);
+  }
+
+  private Stripe getStripe(ByteString key)
+  {
+    if (key.size() == 0) return stripes[0];
+    // Keys end with a hash, so the last byte spreads things out nicely
+    int b = key.byteAt(key.size() - 1) & 0xFF;
+    return stripes[b % STRIPES];
+  }
+
+  public static long estimateSize(ByteString key, TrieNode node)
+  {
+    return NODE_OVERHEAD + key.size() + 2L * node.getSerializedSize();
+  }
+
+  public long getMaxBytes(){ return max_bytes; }
+  public long getHitCount(){ return hits.get(); }
+  public long getMissCount(){ return misses.get(); }
+
+  public long getSizeBytes()
+  {
+    long sz = 0;
+    for(Stripe s : stripes) sz += s.getSizeBytes();
+    return sz;
+  }
+
+  public long getNodeCount()
+  {
+    long n = 0;
+    for(Stripe s : stripes) n += s.getNodeCount();
+    return n;
+  }
+
+  public String getReport()
+  {
+    long h = getHitCount();
+    long m = getMissCount();
+    double rate = 0.0;
+    if (h + m > 0) rate = (double) h / (double)(h + m);
+
+    return String.format("TrieNodeCache{nodes:%d mb:%.1f/%.1f hits:%d misses:%d hit_rate:%.3f}",
+      getNodeCount(),
+      getSizeBytes() / 1048576.0,
+      max_bytes / 1048576.0,
+      h, m, rate);
+  }
+
+  private static class Stripe
+  {
+    private final LinkedHashMap<ByteString, TrieNode> map = new LinkedHashMap<>(1024, 0.75f, true);
+    private final long max_bytes;
+    private long size_bytes;
+
+    public Stripe(long max_bytes)
+    {
+      this.max_bytes = max_bytes;
+    }
+
+    public synchronized TrieNode get(ByteString key)
+    {
+      return map.get(key);
+    }
+
+    public synchronized void put(ByteString key, TrieNode node)
+    {
+      long sz = estimateSize(key, node);
+      if (sz > max_bytes) return;
+
+      TrieNode old = map.put(key, node);
+      if (old != null) size_bytes -= estimateSize(key, old);
+      size_bytes += sz;
+
+      Iterator<Map.Entry<ByteString, TrieNode>> it = map.entrySet().iterator();
+      while((size_bytes > max_bytes) && (it.hasNext()))
+      {
+        Map.Entry<ByteString, TrieNode> me = it.next();
+        size_bytes -= estimateSize(me.getKey(), me.getValue());
+        it.remove();
+      }
+    }
+
+    public synchronized void remove(ByteString key)
+    {
+      TrieNode old = map.remove(key);
+      if (old != null) size_bytes -= estimateSize(key, old);
+    }
+
+    public synchronized long getSizeBytes(){ return size_bytes; }
+    public synchronized long getNodeCount(){ return map.size(); }
+  }
+
+}
@@ -0,0 +1,189 @@
+package lib.test;
+
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import snowblossom.lib.db.DBBatch;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.rocksdb.JRocksDB;
+import snowblossom.lib.db.rocksdb.RocksDBBatch;
+import snowblossom.lib.trie.ByteStringComparator;
+import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBBuffered;
+import snowblossom.lib.trie.TrieDBMap;
+import snowblossom.lib.trie.TrieNodeCache;
+
+public class DBBatchTest
+{
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Test
+  public void testDiscardBase()
+  {
+    MemDBMap a = new MemDBMap();
+    MemDBMap b = new MemDBMap();
+    checkDiscard(new DBBatch(), a, b);
+  }
+
+  @Test
+  public void testOrderBase()
+  {
+    MemDBMap a = new MemDBMap();
+    MemDBMap b = new MemDBMap();
+    checkOrder(new DBBatch(), a, b);
+  }
+
+  @Test
+  public void testDiscardRocks() throws Exception
+  {
+    JRocksDB jdb = openRocks();
+    DBBatch batch = jdb.newBatch();
+    Assert.assertTrue(batch instanceof RocksDBBatch);
+    checkDiscard(batch, jdb.openMap("a"), jdb.openMap("b"));
+    jdb.close();
+  }
+
+  @Test
+  public void testOrderRocks() throws Exception
+  {
+    JRocksDB jdb = openRocks();
+    DBBatch batch = jdb.newBatch();
+    Assert.assertTrue(batch instanceof RocksDBBatch);
+    checkOrder(batch, jdb.openMap("a"), jdb.openMap("b"));
+    jdb.close();
+  }
+
+  /**
+   * Trie nodes saved in a batch only go in the node cache once the batch is commited
+   */
+  @Test
+  public void testTrieCacheAfterCommit()
+  {
+    TrieNodeCache cache = new TrieNodeCache(1024L * 1024L);
+    TrieDBMap trie_db = new TrieDBMap(new MemDBMap(), cache, ByteString.EMPTY);
+
+    TrieDBBuffered dropped = new TrieDBBuffered(trie_db);
+    ByteString dropped_root = new HashedTrie(dropped, true, false).mergeBatch(HashUtils.hashOfEmpty(), randomUpdates(1));
+    try(DBBatch batch = new DBBatch())
+    {
+      dropped.commit(batch);
+    }
+    Assert.assertNull(cache.get(dropped_root));
+    Assert.assertNull(trie_db.load(dropped_root));
+    Assert.assertEquals(0L, cache.getNodeCount());
+
+    TrieDBBuffered kept = new TrieDBBuffered(trie_db);
+    ByteString kept_root = new HashedTrie(kept, true, false).mergeBatch(HashUtils.hashOfEmpty(), randomUpdates(2));
+    try(DBBatch batch = new DBBatch())
+    {
+      kept.commit(batch);
+      Assert.assertNull(cache.get(kept_root));
+      batch.commit();
+    }
+    Assert.assertNotNull(cache.get(kept_root));
+    Assert.assertNotNull(trie_db.load(kept_root));
+  }
+
+  private void checkDiscard(DBBatch batch, DBMap a, DBMap b)
+  {
+    a.put(key("existing"), key("value"));
+    ArrayList<String> hooks = new ArrayList<>();
+
+    batch.put(a, key("k1"), key("v1"));
+    batch.putAll(b, sortedMap("k2", "v2"));
+    batch.remove(a, key("existing"));
+    batch.addCommitHook( () -> hooks.add("ran") );
+    batch.close();
+
+    Assert.assertNull(a.get(key("k1")));
+    Assert.assertNull(b.get(key("k2")));
+    Assert.assertEquals(key("value"), a.get(key("existing")));
+    Assert.assertEquals(0, hooks.size());
+  }
+
+  private void checkOrder(DBBatch batch, DBMap a, DBMap b)
+  {
+    a.put(key("removed"), key("old"));
+    ArrayList<ByteString> hooks = new ArrayList<>();
+
+    batch.put(a, key("k"), key("first"));
+    batch.remove(a, key("k"));
+    batch.put(a, key("k"), key("second"));
+    batch.putAll(a, sortedMap("k", "third"));
+    batch.remove(a, key("removed"));
+    batch.put(a, key("removed"), key("back"));
+    batch.put(b, key("gone"), key("x"));
+    batch.remove(b, key("gone"));
+    // The hook sees the writes
+    batch.addCommitHook( () -> hooks.add(a.get(key("k"))) );
+
+    Assert.assertNull(a.get(key("k")));
+    batch.commit();
+
+    Assert.assertEquals(key("third"), a.get(key("k")));
+    Assert.assertEquals(key("back"), a.get(key("removed")));
+    Assert.assertNull(b.get(key("gone")));
+    Assert.assertEquals(1, hooks.size());
+    Assert.assertEquals(key("third"), hooks.get(0));
+
+    try
+    {
+      batch.put(a, key("k"), key("late"));
+      Assert.fail();
+    }
+    catch(RuntimeException e){}
+    batch.close();
+  }
+
+  private JRocksDB openRocks() throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", testFolder.newFolder().getPath());
+    return new JRocksDB(new ConfigMem(config_map));
+  }
+
+  private static Map<ByteString, ByteString> randomUpdates(long seed)
+  {
+    Random rnd = new Random(seed);
+    HashMap<ByteString, ByteString> map = new HashMap<>();
+    for(int i=0; i<100; i++)
+    {
+      byte[] k = new byte[8];
+      rnd.nextBytes(k);
+      map.put(ByteString.copyFrom(k), ByteString.copyFrom(k));
+    }
+    return map;
+  }
+
+  private static TreeMap<ByteString, ByteString> sortedMap(String k, String v)
+  {
+    TreeMap<ByteString, ByteString> m = new TreeMap<>(new ByteStringComparator());
+    m.put(key(k), key(v));
+    return m;
+  }
+
+  private static ByteString key(String s)
+  {
+    return ByteString.copyFrom(s.getBytes());
+  }
+
+  public static class MemDBMap extends DBMap
+  {
+    private HashMap<ByteString, ByteString> map = new HashMap<>();
+
+    public synchronized ByteString get(ByteString key){ return map.get(key); }
+    public synchronized void put(ByteString key, ByteString value){ map.put(key, value); }
+    public synchronized void remove(ByteString key){ map.remove(key); }
+  }
+
+}
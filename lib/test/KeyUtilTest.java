@@ -173,4 +173,35 @@ public class KeyUtilTest
   }
 
 
+  @Test
+  public void testPublicKeyCache()
+    throws Exception
+  {
+    WalletKeyPair wkp = KeyUtil.generateWalletStandardECKey();
+    SigSpec sig_spec = SigSpec.newBuilder()
+      .setSignatureType(wkp.getSignatureType())
+      .setPublicKey(wkp.getPublicKey())
+      .build();
+
+    PublicKey a = SignatureUtil.decodePublicKey(sig_spec);
+    PublicKey b = SignatureUtil.decodePublicKey(sig_spec);
+    Assert.assertSame(a, b);
+
+    // Curve not on the allowed list, must be rejected every time
+    WalletKeyPair bad_wkp = KeyUtil.generateWalletECKey("secp256r1");
+    SigSpec bad_spec = SigSpec.newBuilder()
+      .setSignatureType(bad_wkp.getSignatureType())
+      .setPublicKey(bad_wkp.getPublicKey())
+      .build();
+    for(int i=0; i<2; i++)
+    {
+      try
+      {
+        SignatureUtil.decodePublicKey(bad_spec);
+        Assert.fail();
+      }
+      catch(snowblossom.lib.ValidationException e){}
+    }
+  }
+
 }
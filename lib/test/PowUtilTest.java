@@ -1,11 +1,19 @@
 package lib.test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeSet;
 import org.junit.Assert;
 import org.junit.Test;
 import snowblossom.lib.BlockchainUtil;
+import snowblossom.lib.DigestUtil;
 import snowblossom.lib.Globals;
+import snowblossom.lib.HeaderMidstate;
 import snowblossom.lib.HexUtil;
 import snowblossom.lib.NetworkParams;
 import snowblossom.lib.NetworkParamsProd;
@@ -231,4 +239,108 @@ public class PowUtilTest
   }
 
 
+  @Test
+  public void testHeaderMidstate()
+  {
+    Random rnd=new Random(4417L);
+    byte[] nonce=new byte[Globals.NONCE_LENGTH];
+    rnd.nextBytes(nonce);
+    MessageDigest md = DigestUtil.getMD();
+
+    BlockHeader v1 = BlockHeader.newBuilder()
+      .setVersion(1)
+      .setBlockHeight(5000)
+      .setTimestamp(1600000000000L)
+      .setSnowField(3)
+      .setPrevBlockHash(randomBytes(rnd, 32))
+      .setMerkleRootHash(randomBytes(rnd, 32))
+      .setUtxoRootHash(randomBytes(rnd, 32))
+      .setTarget(randomBytes(rnd, 32))
+      .build();
+
+    BlockHeader v2 = BlockHeader.newBuilder()
+      .mergeFrom(v1)
+      .setVersion(2)
+      .setShardId(3)
+      .setTxDataSizeSum(81234)
+      .setTxCount(17)
+      .putShardExportRootHash(7, randomBytes(rnd, 32))
+      .putShardExportRootHash(8, randomBytes(rnd, 32))
+      .putShardImport(4, BlockImportList.newBuilder()
+        .putHeightMap(12, randomBytes(rnd, 32))
+        .putHeightMap(11, randomBytes(rnd, 32))
+        .build())
+      .putShardImport(1, BlockImportList.newBuilder()
+        .putHeightMap(9, randomBytes(rnd, 32))
+        .build())
+      .build();
+
+    for(BlockHeader header : ImmutableList.of(v1, v2))
+    {
+      byte[] expected = referenceHeaderHash(header, nonce);
+      Assert.assertArrayEquals(expected, PowUtil.hashHeaderBits(header, nonce));
+
+      HeaderMidstate midstate = new HeaderMidstate(header);
+      Assert.assertArrayEquals(expected, midstate.hashHeaderBits(nonce, md));
+
+      byte[] out = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+      midstate.hashHeaderBits(nonce, md, out);
+      Assert.assertArrayEquals(expected, out);
+
+      Assert.assertSame(midstate, HeaderMidstate.update(midstate, header));
+    }
+  }
+
+  private static ByteString randomBytes(Random rnd, int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+  /**
+   * The header hash built up field by field, to check the serialized header bits against
+   */
+  private static byte[] referenceHeaderHash(BlockHeader header, byte[] nonce)
+  {
+    MessageDigest md = DigestUtil.getMD();
+    ByteBuffer bb = ByteBuffer.allocate(20);
+    bb.putInt(header.getVersion());
+    bb.putInt(header.getBlockHeight());
+    bb.putLong(header.getTimestamp());
+    bb.putInt(header.getSnowField());
+
+    md.update(nonce);
+    md.update(bb.array());
+    md.update(header.getPrevBlockHash().toByteArray());
+    md.update(header.getMerkleRootHash().toByteArray());
+    md.update(header.getUtxoRootHash().toByteArray());
+    md.update(header.getTarget().toByteArray());
+
+    if (header.getVersion() == 2)
+    {
+      ByteBuffer bb_s = ByteBuffer.allocate(12);
+      bb_s.putInt(header.getShardId());
+      bb_s.putInt(header.getTxDataSizeSum());
+      bb_s.putInt(header.getTxCount());
+      md.update(bb_s.array());
+
+      for(Map.Entry<Integer, ByteString> me : header.getShardExportRootHashMap().entrySet())
+      {
+        md.update(ByteBuffer.allocate(4).putInt(me.getKey()).array());
+        md.update(me.getValue().toByteArray());
+      }
+      for(int import_shard_id : new TreeSet<Integer>(header.getShardImportMap().keySet()))
+      {
+        BlockImportList bil = header.getShardImportMap().get(import_shard_id);
+        for(int import_height : new TreeSet<Integer>(bil.getHeightMap().keySet()))
+        {
+          md.update(ByteBuffer.allocate(8).putInt(import_shard_id).putInt(import_height).array());
+          md.update(bil.getHeightMap().get(import_height).toByteArray());
+        }
+      }
+    }
+    return md.digest();
+  }
+
 }
@@ -0,0 +1,205 @@
+package lib.test;
+
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import snowblossom.lib.db.DBBatch;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.rocksdb.JRocksDB;
+import snowblossom.lib.trie.ByteStringComparator;
+
+public class RocksDBMapTest
+{
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Test
+  public void testRoundTrip() throws Exception
+  {
+    checkRoundTrip(openRocks(testFolder.newFolder(), false));
+  }
+
+  @Test
+  public void testRoundTripFamilies() throws Exception
+  {
+    checkRoundTrip(openRocks(testFolder.newFolder(), true));
+  }
+
+  /**
+   * A DB made without db_column_families has its data in the default family,
+   * which the family mode never reads, so it must not open it
+   */
+  @Test
+  public void testFamiliesRefuseOldDB() throws Exception
+  {
+    File path = testFolder.newFolder();
+    RocksDB.loadLibrary();
+    try(Options options = new Options().setCreateIfMissing(true);
+      RocksDB db = RocksDB.open(options, path.getPath()))
+    {
+      db.put("utxo/somekey".getBytes(), "somevalue".getBytes());
+    }
+
+    try
+    {
+      openRocks(path, true);
+      Assert.fail("Opened a DB made without column families");
+    }
+    catch(RuntimeException e)
+    {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("db_column_families"));
+    }
+  }
+
+  /**
+   * An empty DB made without db_column_families is fine to use in family mode
+   */
+  @Test
+  public void testFamiliesNewDB() throws Exception
+  {
+    File path = testFolder.newFolder();
+    RocksDB.loadLibrary();
+    try(Options options = new Options().setCreateIfMissing(true);
+      RocksDB db = RocksDB.open(options, path.getPath()))
+    {
+      // Nothing written, so fine to use
+    }
+    JRocksDB jdb = openRocks(path, true);
+    jdb.openMap("a").put(key("k"), key("v"));
+    Assert.assertEquals(key("v"), jdb.openMap("a").get(key("k")));
+    jdb.close();
+  }
+
+  /**
+   * Sizes that go through the direct buffers as they are, grow the value buffer,
+   * or are too big for them and go by byte array
+   */
+  @Test
+  public void testValueSizes() throws Exception
+  {
+    checkValueSizes(openRocks(testFolder.newFolder(), false));
+    checkValueSizes(openRocks(testFolder.newFolder(), true));
+  }
+
+  private void checkValueSizes(JRocksDB jdb) throws Exception
+  {
+    DBMap map = jdb.openMap("a");
+    Random rnd = new Random(1234L);
+
+    int[] sizes = new int[]{ 100, 100 * 1024, 5 * 1048576 };
+    ByteString long_key = randomBytes(rnd, 2048);
+
+    TreeMap<ByteString, ByteString> put_map = new TreeMap<>(new ByteStringComparator());
+    for(int sz : sizes)
+    {
+      ByteString value = randomBytes(rnd, sz);
+      map.put(key("put" + sz), value);
+      Assert.assertEquals(value, map.get(key("put" + sz)));
+
+      ByteString long_value = randomBytes(rnd, sz);
+      map.put(long_key.concat(key("" + sz)), long_value);
+      Assert.assertEquals(long_value, map.get(long_key.concat(key("" + sz))));
+
+      put_map.put(key("putall" + sz), randomBytes(rnd, sz));
+      put_map.put(long_key.concat(key("putall" + sz)), randomBytes(rnd, sz));
+    }
+    map.putAll(put_map);
+
+    // Twice, so the second pass reads into buffers that have already grown
+    for(int i=0; i<2; i++)
+    {
+      for(Map.Entry<ByteString, ByteString> me : put_map.entrySet())
+      {
+        Assert.assertEquals(me.getValue(), map.get(me.getKey()));
+      }
+    }
+    Assert.assertNull(map.get(long_key));
+
+    jdb.close();
+  }
+
+  private void checkRoundTrip(JRocksDB jdb) throws Exception
+  {
+    DBMap a = jdb.openMap("a");
+    DBMap b = jdb.openMap("b");
+    // Name starts with a's, so a's prefix scans must not see it
+    DBMap ab = jdb.openMap("ab");
+
+    a.put(key("k1"), key("a1"));
+    b.put(key("k1"), key("b1"));
+    ab.put(key("k1"), key("ab1"));
+    Assert.assertEquals(key("a1"), a.get(key("k1")));
+    Assert.assertEquals(key("b1"), b.get(key("k1")));
+    Assert.assertEquals(key("ab1"), ab.get(key("k1")));
+    Assert.assertNull(a.get(key("k2")));
+
+    TreeMap<ByteString, ByteString> put_map = new TreeMap<>(new ByteStringComparator());
+    for(int i=0; i<20; i++)
+    {
+      put_map.put(key("p" + i), key("v" + i));
+    }
+    a.putAll(put_map);
+    ab.put(key("p1"), key("ab"));
+
+    Map<ByteString, ByteString> found = a.getByPrefix(key("p1"), 100);
+    // p1 and p10 to p19
+    Assert.assertEquals(11, found.size());
+    for(Map.Entry<ByteString, ByteString> me : found.entrySet())
+    {
+      Assert.assertEquals(put_map.get(me.getKey()), me.getValue());
+    }
+    Assert.assertEquals(0, b.getByPrefix(key("p"), 100).size());
+
+    ArrayList<ByteString> keys = new ArrayList<>();
+    b.scanKeys(k -> keys.add(k));
+    Assert.assertEquals(1, keys.size());
+    Assert.assertEquals(key("k1"), keys.get(0));
+
+    try(DBBatch batch = jdb.newBatch())
+    {
+      batch.put(a, key("batch"), key("a"));
+      batch.put(b, key("batch"), key("b"));
+      batch.remove(a, key("k1"));
+      Assert.assertNull(a.get(key("batch")));
+      batch.commit();
+    }
+    Assert.assertEquals(key("a"), a.get(key("batch")));
+    Assert.assertEquals(key("b"), b.get(key("batch")));
+    Assert.assertNull(a.get(key("k1")));
+    Assert.assertEquals(key("b1"), b.get(key("k1")));
+    Assert.assertNull(ab.get(key("batch")));
+
+    jdb.close();
+  }
+
+  private static JRocksDB openRocks(File path, boolean families) throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", path.getPath());
+    if (families) config_map.put("db_column_families", "true");
+    return new JRocksDB(new ConfigMem(config_map));
+  }
+
+  private static ByteString randomBytes(Random rnd, int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+  private static ByteString key(String s)
+  {
+    return ByteString.copyFrom(s.getBytes());
+  }
+
+}
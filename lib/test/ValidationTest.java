@@ -425,4 +425,95 @@ public class ValidationTest
 
 
 
+  @Test
+  public void testSignatureBatch()
+    throws Exception
+  {
+    WalletKeyPair wkp = KeyUtil.generateWalletStandardECKey();
+    SigSpec sig_spec = SigSpec.newBuilder()
+      .setSignatureType(wkp.getSignatureType())
+      .setPublicKey(wkp.getPublicKey())
+      .build();
+    SigSpec bad_spec = SigSpec.newBuilder()
+      .setSignatureType(SignatureUtil.SIG_TYPE_ECDSA_COMPRESSED)
+      .setPublicKey(ByteString.copyFrom(new byte[12]))
+      .build();
+
+    ByteString data = ByteString.copyFrom(new byte[Globals.BLOCKCHAIN_HASH_LEN]);
+    ByteString sig = SignatureUtil.sign(wkp, data);
+    ByteString other_data = ByteString.copyFrom(new byte[Globals.BLOCKCHAIN_HASH_LEN - 1]);
+
+    SignatureBatch good = new SignatureBatch();
+    for(int i=0; i<20; i++) good.add(sig_spec, data, sig);
+    good.checkAll();
+
+    // Whichever failure comes first in the batch is the one reported
+    for(int run=0; run<10; run++)
+    {
+      SignatureBatch bad_sig_first = new SignatureBatch();
+      for(int i=0; i<20; i++)
+      {
+        if (i == 5) bad_sig_first.add(sig_spec, other_data, sig);
+        else if (i == 15) bad_sig_first.add(bad_spec, data, sig);
+        else bad_sig_first.add(sig_spec, data, sig);
+      }
+      try
+      {
+        bad_sig_first.checkAll();
+        Assert.fail();
+      }
+      catch(ValidationException e)
+      {
+        Assert.assertEquals("signature failed", e.getMessage());
+      }
+
+      SignatureBatch bad_key_first = new SignatureBatch();
+      for(int i=0; i<20; i++)
+      {
+        if (i == 5) bad_key_first.add(bad_spec, data, sig);
+        else if (i == 15) bad_key_first.add(sig_spec, other_data, sig);
+        else bad_key_first.add(sig_spec, data, sig);
+      }
+      try
+      {
+        bad_key_first.checkAll();
+        Assert.fail();
+      }
+      catch(ValidationException e)
+      {
+        Assert.assertNotEquals("signature failed", e.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void testSignatureCache()
+    throws Exception
+  {
+    WalletKeyPair wkp = KeyUtil.generateWalletStandardECKey();
+    SigSpec sig_spec = SigSpec.newBuilder()
+      .setSignatureType(wkp.getSignatureType())
+      .setPublicKey(wkp.getPublicKey())
+      .build();
+
+    byte[] b = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    rnd.nextBytes(b);
+    ByteString data = ByteString.copyFrom(b);
+    ByteString sig = SignatureUtil.sign(wkp, data);
+
+    rnd.nextBytes(b);
+    ByteString other_data = ByteString.copyFrom(b);
+
+    long hits = SignatureCache.getHitCount();
+    Assert.assertTrue(SignatureCache.checkSignature(sig_spec, data, sig));
+    Assert.assertEquals(hits, SignatureCache.getHitCount());
+    Assert.assertTrue(SignatureCache.checkSignature(sig_spec, data, sig));
+    Assert.assertEquals(hits + 1, SignatureCache.getHitCount());
+
+    // Failures are never cached
+    Assert.assertFalse(SignatureCache.checkSignature(sig_spec, other_data, sig));
+    Assert.assertFalse(SignatureCache.checkSignature(sig_spec, other_data, sig));
+    Assert.assertEquals(hits + 1, SignatureCache.getHitCount());
+  }
+
 }
@@ -2,24 +2,48 @@ package lib.test.trie;
 
 import com.google.common.collect.ImmutableList;
 import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
 import java.io.File;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
 import org.junit.*;
 import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import snowblossom.lib.db.rocksdb.JRocksDB;
 import snowblossom.lib.trie.HashUtils;
 import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBMap;
 import snowblossom.lib.trie.TrieDBRocks;
 
+/**
+ * Runs on TrieDBRocks, and on a JRocksDB map with db_column_families
+ */
+@RunWith(Parameterized.class)
 public class TrieRocksTest
 {
   @Rule
   public TemporaryFolder testFolder = new TemporaryFolder();
 
+  @Parameterized.Parameters(name = "{0}")
+  public static Collection<Object[]> modes()
+  {
+    return ImmutableList.of(new Object[]{"trie_rocks"}, new Object[]{"db_column_families"});
+  }
+
+  private final String mode;
 
   private HashedTrie trie;
   private TrieDBRocks db;
+  private JRocksDB jdb;
+
+  public TrieRocksTest(String mode)
+  {
+    this.mode = mode;
+  }
 
   @Before
   public void setupDB()
@@ -27,8 +51,19 @@ public class TrieRocksTest
   {
     File db_dir = testFolder.newFolder();
     
-    db = new TrieDBRocks(db_dir);
-    trie = new HashedTrie(db, true, false);
+    if (mode.equals("db_column_families"))
+    {
+      TreeMap<String, String> config_map = new TreeMap<>();
+      config_map.put("db_path", db_dir.getPath());
+      config_map.put("db_column_families", "true");
+      jdb = new JRocksDB(new ConfigMem(config_map));
+      trie = new HashedTrie(new TrieDBMap(jdb.openMap("u")), true, false);
+    }
+    else
+    {
+      db = new TrieDBRocks(db_dir);
+      trie = new HashedTrie(db, true, false);
+    }
   }
 
   @After
@@ -42,8 +77,10 @@ public class TrieRocksTest
     // In general use, you wouldn't want to open and close all these databases like this
 
     trie = null;
-    db.flush();
+    if (db != null) db.flush();
     db = null;
+    if (jdb != null) jdb.close();
+    jdb = null;
   }
 
   private static ByteString emptyRoot = HashUtils.hashOfEmpty();
@@ -4,13 +4,22 @@ import com.google.common.collect.ImmutableList;
 import com.google.protobuf.ByteString;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.function.Consumer;
 import org.junit.Assert;
 import org.junit.Test;
 import snowblossom.lib.trie.HashUtils;
 import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.IncrementalMerge;
+import snowblossom.lib.db.DBBatch;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.trie.TrieDBBuffered;
+import snowblossom.lib.trie.TrieDBMap;
 import snowblossom.lib.trie.TrieDBMem;
+import snowblossom.lib.trie.TrieNodeCache;
 
 public class TrieTest
 {
@@ -433,4 +442,343 @@ public class TrieTest
   }
 
 
+  @Test
+  public void testNodeCache() throws Exception
+  {
+    TrieNodeCache cache = new TrieNodeCache(256L * 1024L);
+    HashedTrie cached_trie = new HashedTrie(new TrieDBMap(new MemDBMap(), cache, ByteString.EMPTY), true, false);
+
+    Map<ByteString, ByteString> update_map = new HashMap<>();
+    Random rnd = new Random(87L);
+    ArrayList<ByteString> existing_keys = new ArrayList<ByteString>();
+
+    for(int i=0; i<10000; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      ByteString key = ByteString.copyFrom(key_data);
+
+      byte[] data_data = new byte[8];
+      rnd.nextBytes(data_data);
+      ByteString data = ByteString.copyFrom(data_data);
+
+      update_map.put(key, data);
+      existing_keys.add(key);
+    }
+    ByteString hash = cached_trie.mergeBatch(emptyRoot, update_map);
+    Assert.assertEquals("c2a8b068d8613232723c54d611faf9bc894adbd5b36c089fb3ab0379415978f3",HashUtils.getHexString(hash));
+
+    for(int pass=0; pass<2; pass++)
+    {
+      for(ByteString key : existing_keys)
+      {
+        Assert.assertEquals(update_map.get(key), cached_trie.getLeafData(hash, key));
+      }
+    }
+    Assert.assertTrue(cache.getHitCount() > 0);
+    Assert.assertTrue(cache.getSizeBytes() <= cache.getMaxBytes());
+    cached_trie.assertValid(hash);
+  }
+
+  @Test
+  public void testParallelMerge() throws Exception
+  {
+    int old_threads = HashedTrie.getMergeThreads();
+    int old_min = HashedTrie.getParallelMergeMin();
+
+    Map<ByteString, ByteString> update_map = new HashMap<>();
+    Map<ByteString, ByteString> second_map = new HashMap<>();
+    Random rnd = new Random(87L);
+
+    for(int i=0; i<10000; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      ByteString key = ByteString.copyFrom(key_data);
+
+      byte[] data_data = new byte[8];
+      rnd.nextBytes(data_data);
+      ByteString data = ByteString.copyFrom(data_data);
+
+      update_map.put(key, data);
+      if (i % 2 == 0) second_map.put(key, null);
+    }
+    for(int i=0; i<5000; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      second_map.put(ByteString.copyFrom(key_data), ByteString.copyFrom(key_data));
+    }
+
+    try
+    {
+      HashedTrie.setParallelMerge(1, 1);
+      HashedTrie seq_trie = new HashedTrie(new TrieDBMem(), true, false);
+      ByteString seq_hash = seq_trie.mergeBatch(emptyRoot, update_map);
+      ByteString seq_hash2 = seq_trie.mergeBatch(seq_hash, second_map);
+
+      HashedTrie.setParallelMerge(4, 16);
+      HashedTrie par_trie = new HashedTrie(new TrieDBMem(), true, false);
+      ByteString par_hash = par_trie.mergeBatch(emptyRoot, update_map);
+      Assert.assertEquals("c2a8b068d8613232723c54d611faf9bc894adbd5b36c089fb3ab0379415978f3",HashUtils.getHexString(par_hash));
+
+      Assert.assertEquals(seq_hash2, par_trie.simulateMerge(par_hash, second_map));
+      ByteString par_hash2 = par_trie.mergeBatch(par_hash, second_map);
+      Assert.assertEquals(seq_hash2, par_hash2);
+      par_trie.assertValid(par_hash2);
+    }
+    finally
+    {
+      HashedTrie.setParallelMerge(old_threads, old_min);
+    }
+  }
+
+  @Test
+  public void testIncrementalMerge() throws Exception
+  {
+    checkIncrementalMerge(IncrementalMerge.DEFAULT_MAX_BUFFERED_BYTES);
+  }
+
+  /**
+   * Small enough that the states keep starting over
+   */
+  @Test
+  public void testIncrementalMergeLimit() throws Exception
+  {
+    checkIncrementalMerge(64L * 1024L);
+    checkIncrementalMerge(0L);
+  }
+
+  private void checkIncrementalMerge(long max_buffered_bytes) throws Exception
+  {
+    HashedTrie inc_trie = new HashedTrie(new TrieDBMem(), true, false);
+    Random rnd = new Random(87L);
+
+    Map<ByteString, ByteString> base_map = new HashMap<>();
+    ArrayList<ByteString> base_keys = new ArrayList<>();
+    for(int i=0; i<2000; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      ByteString key = ByteString.copyFrom(key_data);
+      base_map.put(key, key);
+      base_keys.add(key);
+    }
+    ByteString base = inc_trie.mergeBatch(emptyRoot, base_map);
+
+    IncrementalMerge inc_merge = new IncrementalMerge(inc_trie, 2, max_buffered_bytes);
+    Map<ByteString, ByteString> updates = new HashMap<>();
+
+    for(int round=0; round<20; round++)
+    {
+      // Drop some of the old updates, change some and add some new ones
+      ArrayList<ByteString> current = new ArrayList<>(updates.keySet());
+      for(ByteString key : current)
+      {
+        int r = rnd.nextInt(10);
+        if (r == 0) updates.remove(key);
+        if (r == 1) updates.put(key, null);
+      }
+      for(int i=0; i<20; i++)
+      {
+        ByteString key = base_keys.get(rnd.nextInt(base_keys.size()));
+        if (rnd.nextBoolean()) updates.put(key, null);
+        else updates.put(key, ByteString.copyFrom(new byte[]{(byte)round}));
+      }
+      for(int i=0; i<20; i++)
+      {
+        byte[] key_data = new byte[8];
+        rnd.nextBytes(key_data);
+        updates.put(ByteString.copyFrom(key_data), ByteString.copyFrom(key_data));
+      }
+
+      ByteString expected = inc_trie.simulateMerge(base, updates);
+      Assert.assertEquals(expected, inc_merge.simulateMerge(base, updates));
+      Assert.assertEquals(expected, inc_merge.simulateMerge(base, updates));
+      Assert.assertEquals(emptyRoot, inc_merge.simulateMerge(emptyRoot, new HashMap<ByteString, ByteString>()));
+    }
+    // Nothing was commited
+    for(ByteString key : base_keys)
+    {
+      Assert.assertEquals(key, inc_trie.getLeafData(base, key));
+    }
+  }
+
+  @Test
+  public void testBufferedSize() throws Exception
+  {
+    TrieDBMem mem = new TrieDBMem();
+    TrieDBBuffered buffered = new TrieDBBuffered(mem);
+    HashedTrie buffered_trie = new HashedTrie(buffered, true, false);
+
+    Map<ByteString, ByteString> update_map = new HashMap<>();
+    Random rnd = new Random(87L);
+    for(int i=0; i<500; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      update_map.put(ByteString.copyFrom(key_data), ByteString.copyFrom(key_data));
+    }
+    ByteString root = buffered_trie.mergeBatch(emptyRoot, update_map);
+
+    long nodes = buffered.getBufferedNodes();
+    long bytes = buffered.getBufferedBytes();
+    Assert.assertTrue(nodes > 500);
+    Assert.assertTrue(bytes > nodes * 8);
+
+    // Saving the same nodes again doesn't count them twice
+    buffered_trie.mergeBatch(emptyRoot, update_map);
+    Assert.assertEquals(nodes, buffered.getBufferedNodes());
+    Assert.assertEquals(bytes, buffered.getBufferedBytes());
+
+    buffered.commit();
+    Assert.assertEquals(0L, buffered.getBufferedNodes());
+    Assert.assertEquals(0L, buffered.getBufferedBytes());
+    Assert.assertNotNull(mem.load(root));
+  }
+
+  @Test
+  public void testMarkAndRemove() throws Exception
+  {
+    MemDBMap db_map = new MemDBMap();
+    TrieDBMap trie_db = new TrieDBMap(db_map, new TrieNodeCache(1024L * 1024L), ByteString.EMPTY);
+    HashedTrie prune_trie = new HashedTrie(trie_db, true, false);
+    Random rnd = new Random(87L);
+
+    Map<ByteString, ByteString> first_map = new HashMap<>();
+    for(int i=0; i<2000; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      first_map.put(ByteString.copyFrom(key_data), ByteString.copyFrom(key_data));
+    }
+    ByteString first = prune_trie.mergeBatch(emptyRoot, first_map);
+
+    Map<ByteString, ByteString> all_map = new HashMap<>(first_map);
+    Map<ByteString, ByteString> second_map = new HashMap<>();
+    int n = 0;
+    for(ByteString key : first_map.keySet())
+    {
+      if (n % 4 == 0) second_map.put(key, null);
+      if (n % 4 == 1) second_map.put(key, ByteString.copyFrom("changed".getBytes()));
+      n++;
+    }
+    all_map.putAll(second_map);
+    ByteString second = prune_trie.mergeBatch(first, second_map);
+
+    Set<ByteString> marked = new HashSet<>();
+    prune_trie.markReachable(second, marked);
+    prune_trie.markReachable(emptyRoot, marked);
+
+    // Nodes saved while tracking are kept even if not marked
+    trie_db.startWriteTracking();
+    Map<ByteString, ByteString> third_map = new HashMap<>();
+    third_map.put(ByteString.copyFrom("new key".getBytes()), ByteString.copyFrom("v".getBytes()));
+    ByteString third = prune_trie.mergeBatch(second, third_map);
+
+    int before = db_map.size();
+    ArrayList<ByteString> keys = new ArrayList<>();
+    db_map.scanKeys(key -> keys.add(key));
+    try(DBBatch batch = new DBBatch())
+    {
+      for(ByteString key : keys)
+      {
+        if ((!marked.contains(key)) && (!trie_db.wasWritten(key)))
+        {
+          trie_db.remove(key, batch);
+        }
+      }
+      batch.commit();
+    }
+    Assert.assertTrue(trie_db.wasWritten(third));
+    trie_db.stopWriteTracking();
+    Assert.assertTrue(db_map.size() < before);
+
+    prune_trie.assertValid(second);
+    prune_trie.assertValid(third);
+    for(Map.Entry<ByteString, ByteString> me : all_map.entrySet())
+    {
+      Assert.assertEquals(me.getValue(), prune_trie.getLeafData(second, me.getKey()));
+      Assert.assertEquals(me.getValue(), prune_trie.getLeafData(third, me.getKey()));
+    }
+  }
+
+  @Test
+  public void testGetBatch() throws Exception
+  {
+    Map<ByteString, ByteString> update_map = new HashMap<>();
+    Random rnd = new Random(87L);
+    ArrayList<ByteString> lookup_keys = new ArrayList<ByteString>();
+
+    for(int i=0; i<10000; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      ByteString key = ByteString.copyFrom(key_data);
+
+      byte[] data_data = new byte[8];
+      rnd.nextBytes(data_data);
+      ByteString data = ByteString.copyFrom(data_data);
+
+      update_map.put(key, data);
+      if (i % 3 == 0) lookup_keys.add(key);
+    }
+    for(int i=0; i<1000; i++)
+    {
+      byte[] key_data = new byte[8];
+      rnd.nextBytes(key_data);
+      lookup_keys.add(ByteString.copyFrom(key_data));
+    }
+    ByteString hash = trie.mergeBatch(emptyRoot, update_map);
+
+    Map<ByteString, ByteString> found = trie.getLeafDataBatch(hash, lookup_keys);
+    for(ByteString key : lookup_keys)
+    {
+      Assert.assertEquals(trie.getLeafData(hash, key), found.get(key));
+    }
+    Assert.assertEquals(3334, found.size());
+    Assert.assertEquals(0, trie.getLeafDataBatch(emptyRoot, lookup_keys).size());
+
+    // Variable length keys, including ones that are prefixes of each other
+    Map<ByteString, ByteString> var_map = new HashMap<>();
+    ArrayList<ByteString> var_keys = new ArrayList<>();
+    for(String k : new String[]{"", "a", "aa", "aab", "ab", "b", "bcd"})
+    {
+      ByteString key = ByteString.copyFrom(k.getBytes());
+      var_map.put(key, ByteString.copyFrom(("v" + k).getBytes()));
+      var_keys.add(key);
+    }
+    var_keys.add(ByteString.copyFrom("aaa".getBytes()));
+    var_keys.add(ByteString.copyFrom("bc".getBytes()));
+    ByteString var_hash = vartrie.mergeBatch(emptyRoot, var_map);
+
+    Map<ByteString, ByteString> var_found = vartrie.getLeafDataBatch(var_hash, var_keys);
+    for(ByteString key : var_keys)
+    {
+      Assert.assertEquals(vartrie.getLeafData(var_hash, key), var_found.get(key));
+    }
+    Assert.assertEquals(var_map.size(), var_found.size());
+  }
+
+  public static class MemDBMap extends DBMap
+  {
+    private HashMap<ByteString, ByteString> map = new HashMap<>();
+
+    public synchronized ByteString get(ByteString key){ return map.get(key); }
+    public synchronized void put(ByteString key, ByteString value){ map.put(key, value); }
+    public synchronized void remove(ByteString key){ map.remove(key); }
+    public synchronized int size(){ return map.size(); }
+
+    @Override
+    public void scanKeys(Consumer<ByteString> consumer)
+    {
+      ArrayList<ByteString> keys;
+      synchronized(this)
+      {
+        keys = new ArrayList<>(map.keySet());
+      }
+      for(ByteString key : keys) consumer.accept(key);
+    }
+  }
+
 }
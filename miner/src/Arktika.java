@@ -424,7 +424,7 @@ public class Arktika implements PoolClientOperator
           mem_set.add(j);
         }
 
-        FieldSource fs = new FieldSourceMem(mem_set, disk_sources);
+        FieldSource fs = new FieldSourceMem(config, i, params, selected_field, mem_set, disk_sources);
         all_sources[i] = fs;
       }
     }
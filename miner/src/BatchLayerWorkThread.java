@@ -40,10 +40,11 @@ public class BatchLayerWorkThread extends LayerWorkThread
         return;
       }
       int diff = BATCH_SIZE - pw_list.size();
+      midstate = HeaderMidstate.update(midstate, wu.getHeader());
 
       for(int x =0; x<diff; x++)
       {
-        PartialWork pw = new PartialWork(wu, rnd, md, total_words);
+        PartialWork pw = new PartialWork(wu, midstate, rnd, md, total_words);
         long next_word = pw.getNextWordIdx();
         int chunk = (int)(next_word / fs.words_per_chunk);
         if (fs.hasChunk(chunk))
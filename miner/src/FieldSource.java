@@ -17,6 +17,9 @@ public abstract class FieldSource
 
   public final long words_per_chunk = Globals.MINE_CHUNK_SIZE / SnowMerkle.HASH_LEN_LONG;
 
+  /** Reads this size or less are done with absolute gets on the shared buffer */
+  public static final int SMALL_READ = 64;
+
   protected MultiAtomicLong read_counter = new MultiAtomicLong();
 
 
@@ -31,6 +34,34 @@ public abstract class FieldSource
 
   public abstract void bulkRead(long word_index, ByteBuffer bb) throws java.io.IOException;
 
+  /**
+   * Copy from src at offset into bb, without touching the position of src
+   * so many threads can read the same buffer
+   */
+  protected static void readBuffer(ByteBuffer src, int offset, ByteBuffer bb)
+  {
+    if ((bb.remaining() <= SMALL_READ) && (bb.order() == src.order()))
+    {
+      while(bb.remaining() >= 8)
+      {
+        bb.putLong(src.getLong(offset));
+        offset += 8;
+      }
+      while(bb.hasRemaining())
+      {
+        bb.put(src.get(offset));
+        offset++;
+      }
+    }
+    else
+    {
+      ByteBuffer dup = src.duplicate();
+      dup.position(offset);
+      dup.limit(offset + bb.remaining());
+      bb.put(dup);
+    }
+  }
+
   public ImmutableSet<Integer> getHoldingSet() {return holding_set; }
   public boolean hasChunk(int n)
   {
@@ -6,6 +6,7 @@ import duckutil.Config;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
@@ -16,12 +17,20 @@ import java.util.logging.Logger;
 import org.junit.Assert;
 import snowblossom.lib.*;
 
+/**
+ * Reads a snow field from the .snow blob file or the per chunk files.
+ *
+ * With layer_N_mmap=true each chunk is memory mapped and reads come straight from
+ * the mapping rather than a positional read syscall for each word.
+ * layer_N_pretouch=true also loads the mapped chunks into memory at startup.
+ */
 public class FieldSourceFile extends FieldSource
 {
   private static final Logger logger = Logger.getLogger("snowblossom.miner");
 
   private final RandomAccessFile[] snow_file;
   private final FileChannel[] snow_file_channel;
+  private final MappedByteBuffer[] snow_map;
 
   private final ImmutableMap<Long, FileChannel> deck_files;
 
@@ -93,6 +102,31 @@ public class FieldSourceFile extends FieldSource
     }
 
     holding_set = ImmutableSet.copyOf(chunks);
+
+    if (conf.getBoolean("layer_" + layer + "_mmap"))
+    {
+      snow_map = new MappedByteBuffer[total_chunk];
+      boolean pretouch = conf.getBoolean("layer_" + layer + "_pretouch");
+      for(int i : chunks)
+      {
+        // Each chunk is 1GB, so it fits in one mapping
+        long map_start = 0;
+        if (using_blob_file) map_start = i * Globals.MINE_CHUNK_SIZE;
+        long map_len = Math.min(Globals.MINE_CHUNK_SIZE, snow_file_channel[i].size() - map_start);
+
+        snow_map[i] = snow_file_channel[i].map(FileChannel.MapMode.READ_ONLY, map_start, map_len);
+        if (pretouch)
+        {
+          long t1 = System.currentTimeMillis();
+          snow_map[i].load();
+          logger.info(String.format("Loaded mapped chunk %d of %s in %d ms", i, name, System.currentTimeMillis() - t1));
+        }
+      }
+    }
+    else
+    {
+      snow_map = null;
+    }
     
     int deck_count = SnowMerkle.getNumberOfDecks(total_words);
     long h = 1;
@@ -152,6 +186,11 @@ public class FieldSourceFile extends FieldSource
   @Override
   public void bulkRead(long word_index, ByteBuffer bb) throws java.io.IOException
   {
+    if (snow_map != null)
+    {
+      readMapped(word_index, bb);
+      return;
+    }
     long read_offset = 0;
     int chunk = 0;
     if (using_blob_file)
@@ -168,6 +207,13 @@ public class FieldSourceFile extends FieldSource
     ChannelUtil.readFully( snow_file_channel[chunk], bb, read_offset);
   }
 
+  private void readMapped(long word_index, ByteBuffer bb)
+  {
+    int chunk = (int)(word_index / words_per_chunk);
+    int offset = (int)((word_index % words_per_chunk) * SnowMerkle.HASH_LEN_LONG);
+    readBuffer(snow_map[chunk], offset, bb);
+  }
+
   @Override
   public String toString(){return "FieldSource-" + name; }
 
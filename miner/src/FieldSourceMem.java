@@ -1,28 +1,60 @@
 package snowblossom.miner;
 
 import com.google.common.collect.ImmutableSet;
+import duckutil.Config;
 import duckutil.TaskMaster;
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import snowblossom.lib.Globals;
+import snowblossom.lib.NetworkParams;
 import snowblossom.lib.SnowMerkle;
 
+/**
+ * Holds chunks of the snow field in memory, loaded from other sources.
+ *
+ * By default the chunks are heap arrays.  With layer_N_offheap=true they are direct
+ * buffers, which keeps them out of the heap and away from the GC.
+ * With layer_N_shm_path set, each chunk is a file there (like /dev/shm) mapped into memory,
+ * so other miners on the host with the same shm_path map the same pages rather than loading
+ * their own copy.
+ */
 public class FieldSourceMem extends FieldSource
 {
-  private byte chunks[][];
+  private ByteBuffer chunks[];
 
   public FieldSourceMem(Collection<Integer> to_have, List<FieldSource> sources)
     throws java.io.IOException
+  {
+    this(to_have, sources, false, null, null);
+  }
+
+  public FieldSourceMem(Config conf, int layer, NetworkParams params, int field_number, Collection<Integer> to_have, List<FieldSource> sources)
+    throws java.io.IOException
+  {
+    this(to_have, sources,
+      conf.getBoolean("layer_" + layer + "_offheap"),
+      conf.isSet("layer_" + layer + "_shm_path") ? new File(conf.get("layer_" + layer + "_shm_path")) : null,
+      params.getFieldSeeds().get(field_number));
+  }
+
+  private FieldSourceMem(Collection<Integer> to_have, List<FieldSource> sources, boolean offheap, File shm_path, String base)
+    throws java.io.IOException
   {
     int max = 0;
     for(int x : to_have) max = Math.max(max, x);
-    chunks = new byte[max+1][];
+    chunks = new ByteBuffer[max+1];
 
     holding_set = ImmutableSet.copyOf(to_have);
-    
+
+    if (shm_path != null) shm_path.mkdirs();
+
     ExecutorService exec = TaskMaster.getBasicExecutor(16, "memload");
 
     TaskMaster<Boolean> task_q=new TaskMaster<>(exec);
@@ -35,8 +67,35 @@ public class FieldSourceMem extends FieldSource
         public Boolean call()
           throws Exception
         {
-          chunks[x] = new byte[(int)Globals.MINE_CHUNK_SIZE];
-          ByteBuffer bb = ByteBuffer.wrap(chunks[x]);
+          File shm_file = null;
+          if (shm_path != null)
+          {
+            shm_file = new File(shm_path, String.format("%s.chunk.%04x", base, x));
+            if (shm_file.exists() && (shm_file.length() == Globals.MINE_CHUNK_SIZE))
+            {
+              logger.info(String.format("Mapping already loaded chunk %d from %s", x, shm_file));
+              chunks[x] = mapFile(shm_file, FileChannel.MapMode.READ_ONLY);
+              return true;
+            }
+          }
+
+          ByteBuffer buff;
+          File tmp_file = null;
+          if (shm_file != null)
+          {
+            // Loaded under another name so other miners never map a partial chunk
+            tmp_file = new File(shm_path, shm_file.getName() + ".tmp." + ProcessHandle.current().pid());
+            buff = mapFile(tmp_file, FileChannel.MapMode.READ_WRITE);
+          }
+          else if (offheap)
+          {
+            buff = ByteBuffer.allocateDirect((int)Globals.MINE_CHUNK_SIZE);
+          }
+          else
+          {
+            buff = ByteBuffer.wrap(new byte[(int)Globals.MINE_CHUNK_SIZE]);
+          }
+          ByteBuffer bb = buff.duplicate();
 
           boolean found=false;
           for(FieldSource fs : sources)
@@ -54,8 +113,18 @@ public class FieldSourceMem extends FieldSource
           }
           if (!found)
           {
+            if (tmp_file != null) tmp_file.delete();
             throw new RuntimeException(String.format("Unable to load chunk %d into memory.  Not in sources.", x));
           }
+          if (tmp_file != null)
+          {
+            ((MappedByteBuffer)buff).force();
+            if (!tmp_file.renameTo(shm_file))
+            {
+              throw new java.io.IOException("Unable to rename " + tmp_file + " to " + shm_file);
+            }
+          }
+          chunks[x] = buff;
           return found;
         }
 
@@ -66,6 +135,19 @@ public class FieldSourceMem extends FieldSource
     System.gc();
   }
 
+  private static MappedByteBuffer mapFile(File f, FileChannel.MapMode mode)
+    throws java.io.IOException
+  {
+    String file_mode = "r";
+    if (mode == FileChannel.MapMode.READ_WRITE) file_mode = "rw";
+
+    // The mapping stays valid after the file is closed
+    try(RandomAccessFile raf = new RandomAccessFile(f, file_mode))
+    {
+      return raf.getChannel().map(mode, 0, Globals.MINE_CHUNK_SIZE);
+    }
+  }
+
   @Override
   public void bulkRead(long word_index, ByteBuffer bb) throws java.io.IOException
   {
@@ -73,7 +155,7 @@ public class FieldSourceMem extends FieldSource
     long word_offset = word_index % words_per_chunk;
     int read_offset = (int)(word_offset * SnowMerkle.HASH_LEN_LONG);
 
-    bb.put(chunks[chunk], read_offset, bb.remaining());
+    readBuffer(chunks[chunk], read_offset, bb);
 
 
   }
@@ -83,7 +165,7 @@ public class FieldSourceMem extends FieldSource
   {
     return "FieldSourceMem{" + holding_set.size() + "}";
   }
-  
+
   @Override
   public boolean skipQueueOnRehit()
   {
@@ -19,6 +19,7 @@ public class LayerWorkThread extends Thread
 
   Random rnd;
   MessageDigest md = DigestUtil.getMD();
+  HeaderMidstate midstate;
 
   FieldSource fs;
   Arktika arktika;
@@ -75,7 +76,8 @@ public class LayerWorkThread extends Thread
         }*/
       }
 
-      pw = new PartialWork(wu, rnd, md, total_words);
+      midstate = HeaderMidstate.update(midstate, wu.getHeader());
+      pw = new PartialWork(wu, midstate, rnd, md, total_words);
     }
     else
     {
@@ -0,0 +1,267 @@
+package snowblossom.miner;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import snowblossom.lib.*;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.SnowPowProof;
+
+/**
+ * Microbenchmarks of the mining hot path, so hardware and code changes can be compared
+ * on something other than the miner rate lines.
+ *
+ * Everything runs on fields made in the work directory, so it needs no network or
+ * downloaded snow fields:
+ * - the 1MB regtest field 0, made with SnowFall, for proofs
+ * - a 1GB file of random data standing in for chunk 0 of mainnet field 0, for FieldSourceFile
+ *   read both ways and for FieldSourceMem to load from
+ * - FieldSourceFake
+ * FieldSourceMem runs with its chunks on the heap, off heap and mapped from work_dir/shm.
+ *
+ * Each benchmark runs for warm up seconds and then is timed for the same again.
+ *
+ * usage: MiningBench work_dir [seconds]
+ */
+public class MiningBench
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.miner");
+
+  // Enough random word indexes that reading them is not just reading cache
+  private static final int INDEX_COUNT = 1048576;
+
+  public static void main(String args[]) throws Exception
+  {
+    Globals.addCryptoProvider();
+    if (args.length < 1)
+    {
+      System.out.println("MiningBench work_dir [seconds]");
+      System.exit(-1);
+    }
+    File work_dir = new File(args[0]);
+    int seconds = 5;
+    if (args.length > 1) seconds = Integer.parseInt(args[1]);
+
+    new MiningBench(work_dir, seconds).runAll();
+  }
+
+  public interface BenchOp
+  {
+    /**
+     * i counts up from 0 on each run.
+     * Return something from the work so it can't be optimized away
+     */
+    long run(int i) throws Exception;
+  }
+
+  private final File work_dir;
+  private final long run_ns;
+  private long sink;
+
+  public MiningBench(File work_dir, int seconds)
+  {
+    this.work_dir = work_dir;
+    this.run_ns = seconds * 1000000000L;
+    work_dir.mkdirs();
+  }
+
+  public void runAll() throws Exception
+  {
+    Random rnd = new Random(8675309L);
+    MessageDigest md = DigestUtil.getMD();
+
+    // Header hashing and the context steps
+    byte[][] nonces = new byte[1024][Globals.NONCE_LENGTH];
+    for(byte[] n : nonces) rnd.nextBytes(n);
+
+    BlockHeader header = makeHeader(rnd);
+    bench("PowUtil.hashHeaderBits", i -> PowUtil.hashHeaderBits(header, nonces[i & 1023], md)[0]);
+
+    byte[] context = PowUtil.hashHeaderBits(header, nonces[0], md);
+    byte[] next_context = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    byte[] tmp_buff = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    byte[] word = new byte[SnowMerkle.HASH_LEN];
+    rnd.nextBytes(word);
+
+    bench("PowUtil.getNextSnowFieldIndex", i -> PowUtil.getNextSnowFieldIndex(context, 1L << 30, md, tmp_buff));
+    bench("PowUtil.getNextContext", i ->
+    {
+      PowUtil.getNextContext(context, word, md, next_context);
+      return next_context[0];
+    });
+
+    // Proofs on a real, if small, field
+    NetworkParams regtest = new NetworkParamsRegtest();
+    String seed = regtest.getFieldSeeds().get(0);
+    SnowFieldInfo field_info = regtest.getSnowFieldInfo(0);
+    File field_dir = new File(work_dir, seed);
+    File field_file = new File(field_dir, seed + ".snow");
+    if (!field_file.exists())
+    {
+      field_dir.mkdirs();
+      new SnowFall(field_file.getPath(), seed, field_info.getLength());
+      new SnowMerkle(field_dir, seed, true);
+    }
+
+    SnowMerkleProof merkle_proof = new SnowMerkleProof(field_dir, seed);
+    long total_words = merkle_proof.getTotalWords();
+    long[] word_idx = randomIndexes(rnd, total_words);
+    bench("SnowMerkleProof.getProof", i -> merkle_proof.getProof(word_idx[i & (INDEX_COUNT - 1)]).getWordIdx());
+
+    ArrayList<SnowPowProof> proofs = new ArrayList<>();
+    for(int i=0; i<256; i++)
+    {
+      proofs.add(merkle_proof.getProof(Math.floorMod(rnd.nextLong(), total_words)));
+    }
+    ByteString root = field_info.getMerkleRootHash();
+    bench("Validation.checkProof", i ->
+    {
+      if (!Validation.checkProof(proofs.get(i & 255), root, field_info.getLength()))
+      {
+        throw new RuntimeException("Proof failed");
+      }
+      return 1L;
+    });
+
+    // Field sources, on chunk 0 of mainnet field 0
+    NetworkParams prod = new NetworkParamsProd();
+    FieldSource fake = new FieldSourceFake(prod, 0);
+    benchSource("FieldSourceFake", fake, rnd);
+
+    String prod_seed = prod.getFieldSeeds().get(0);
+    File prod_dir = new File(work_dir, prod_seed);
+    makeRandomChunk(new File(prod_dir, prod_seed + ".snow"), rnd);
+
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("layer_0_range", "0,1");
+    FieldSource file = new FieldSourceFile(new ConfigMem(config_map), 0, prod, 0, work_dir);
+    benchSource("FieldSourceFile", file, rnd);
+
+    config_map.put("layer_0_mmap", "true");
+    FieldSource mapped = new FieldSourceFile(new ConfigMem(config_map), 0, prod, 0, work_dir);
+    benchSource("FieldSourceFile mmap", mapped, rnd);
+
+    FieldSource mem = new FieldSourceMem(ImmutableList.of(0), ImmutableList.of(mapped));
+    benchSource("FieldSourceMem", mem, rnd);
+
+    TreeMap<String, String> mem_config_map = new TreeMap<>();
+    mem_config_map.put("layer_0_offheap", "true");
+    FieldSource mem_offheap = new FieldSourceMem(new ConfigMem(mem_config_map), 0, prod, 0, ImmutableList.of(0), ImmutableList.of(mapped));
+    benchSource("FieldSourceMem offheap", mem_offheap, rnd);
+
+    mem_config_map.clear();
+    mem_config_map.put("layer_0_shm_path", new File(work_dir, "shm").getPath());
+    FieldSource mem_shm = new FieldSourceMem(new ConfigMem(mem_config_map), 0, prod, 0, ImmutableList.of(0), ImmutableList.of(mapped));
+    benchSource("FieldSourceMem shm_path", mem_shm, rnd);
+
+    benchSource("FieldSourceComposit", new FieldSourceComposit(ImmutableList.of(mem, file)), rnd);
+
+    System.out.println("Done " + (sink & 1));
+  }
+
+  private void benchSource(String name, FieldSource fs, Random rnd) throws Exception
+  {
+    ByteBuffer bb = ByteBuffer.allocate(SnowMerkle.HASH_LEN);
+    long[] word_idx = randomIndexes(rnd, fs.words_per_chunk);
+    bench(name + ".readWord", i ->
+    {
+      bb.clear();
+      fs.readWord(word_idx[i & (INDEX_COUNT - 1)], bb);
+      return bb.get(0);
+    });
+  }
+
+  /**
+   * Runs op for the warm up time then times it for the same again
+   */
+  public void bench(String name, BenchOp op) throws Exception
+  {
+    runFor(op, run_ns);
+
+    long t1 = System.nanoTime();
+    long ops = runFor(op, run_ns);
+    long ns = System.nanoTime() - t1;
+
+    System.out.println(String.format("%-40s %12.1f ns/op %14.1f ops/s", name, (double) ns / ops, ops * 1e9 / ns));
+  }
+
+  private long runFor(BenchOp op, long run_ns) throws Exception
+  {
+    long end = System.nanoTime() + run_ns;
+    long ops = 0;
+    while(System.nanoTime() < end)
+    {
+      // Only check the clock every so often
+      for(int i=0; i<256; i++)
+      {
+        sink += op.run((int)(ops + i));
+      }
+      ops += 256;
+    }
+    return ops;
+  }
+
+  /**
+   * Made ahead of time so the random number generator stays out of the timed loop
+   */
+  private static long[] randomIndexes(Random rnd, long max)
+  {
+    long[] idx = new long[INDEX_COUNT];
+    for(int i=0; i<idx.length; i++)
+    {
+      idx[i] = Math.floorMod(rnd.nextLong(), max);
+    }
+    return idx;
+  }
+
+  private static BlockHeader makeHeader(Random rnd)
+  {
+    return BlockHeader.newBuilder()
+      .setVersion(1)
+      .setBlockHeight(100000)
+      .setTimestamp(System.currentTimeMillis())
+      .setSnowField(0)
+      .setPrevBlockHash(randomBytes(rnd, Globals.BLOCKCHAIN_HASH_LEN))
+      .setMerkleRootHash(randomBytes(rnd, Globals.BLOCKCHAIN_HASH_LEN))
+      .setUtxoRootHash(randomBytes(rnd, Globals.BLOCKCHAIN_HASH_LEN))
+      .setTarget(randomBytes(rnd, Globals.TARGET_LENGTH))
+      .build();
+  }
+
+  private static ByteString randomBytes(Random rnd, int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+  /**
+   * Random data standing in for a field chunk.  FieldSourceFile only reads it.
+   */
+  private static void makeRandomChunk(File f, Random rnd) throws Exception
+  {
+    if (f.exists() && (f.length() == Globals.MINE_CHUNK_SIZE)) return;
+    f.getParentFile().mkdirs();
+    logger.info("Writing random chunk to " + f);
+
+    byte[] buff = new byte[1048576];
+    try(RandomAccessFile out = new RandomAccessFile(f, "rw"))
+    {
+      out.setLength(0);
+      for(long written = 0; written < Globals.MINE_CHUNK_SIZE; written += buff.length)
+      {
+        rnd.nextBytes(buff);
+        out.write(buff);
+      }
+    }
+  }
+
+}
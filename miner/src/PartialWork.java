@@ -27,13 +27,16 @@ public class PartialWork implements Comparable<PartialWork>
     passes_done = pass_no;
   }
 
-  public PartialWork(WorkUnit wu, Random rnd, MessageDigest md, long total_words)
+  /**
+   * @param midstate for the header of wu
+   */
+  public PartialWork(WorkUnit wu, HeaderMidstate midstate, Random rnd, MessageDigest md, long total_words)
   {
     this.wu = wu;
     nonce = new byte[Globals.NONCE_LENGTH];
     rnd.nextBytes(nonce);
     wu.getHeader().getNonce().copyTo(nonce, 0);
-    context = PowUtil.hashHeaderBits(wu.getHeader(), nonce, md);
+    context = midstate.hashHeaderBits(nonce, md);
     
     next_word_idx = PowUtil.getNextSnowFieldIndex(context, total_words, md, tmp_buff);
 
@@ -209,6 +209,7 @@ public class PoolMiner implements PoolClientOperator
     SnowMerkleProof merkle_proof;
     int proof_field;
     byte[] nonce = new byte[Globals.NONCE_LENGTH];
+    HeaderMidstate midstate;
 
     /**
      * If using rate limiting, this is how much
@@ -259,7 +260,8 @@ public class PoolMiner implements PoolClientOperator
         wu.getHeader().getNonce().copyTo(nonce, 0);
       }
 
-      byte[] first_hash = PowUtil.hashHeaderBits(wu.getHeader(), nonce, md);
+      midstate = HeaderMidstate.update(midstate, wu.getHeader());
+      byte[] first_hash = midstate.hashHeaderBits(nonce, md);
 
       /**
        * This is a windows specific improvement since windows likes separete file descriptors
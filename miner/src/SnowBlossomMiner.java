@@ -73,6 +73,9 @@ public class SnowBlossomMiner
 
   private TimeRecord time_record;
 
+  public static final int DEFAULT_MINE_BATCH = 16;
+  private int mine_batch;
+
 
   public SnowBlossomMiner(Config config) throws Exception
   {
@@ -110,6 +113,7 @@ public class SnowBlossomMiner
 
 
     int threads = config.getIntWithDefault("threads", 8);
+    mine_batch = config.getIntWithDefault("mine_batch", DEFAULT_MINE_BATCH);
     logger.info("Starting " + threads + " threads");
 
     field_scan = new FieldScan(snow_path, params, config);
@@ -270,6 +274,12 @@ public class SnowBlossomMiner
     return field_scan;
   }
 
+  /**
+   * Works on a batch of nonces at a time.  Each pass finds the next word for every
+   * nonce in the batch, reads them all together and then moves every nonce on to
+   * the next context.  So a thread has a batch worth of reads out at once
+   * rather than waiting on each one in turn.
+   */
   public class MinerThread extends Thread
   {
     Random rnd;
@@ -279,7 +289,17 @@ public class SnowBlossomMiner
     ByteBuffer word_bb = ByteBuffer.wrap(word_buff);
     SnowMerkleProof merkle_proof;
     int proof_field;
-    byte[] nonce = new byte[Globals.NONCE_LENGTH];
+
+    final int batch;
+    byte[][] nonces;
+    byte[][] contexts;
+    byte[][] next_contexts;
+    byte[][] words;
+    ByteBuffer[] word_bbs;
+    final long[] word_idx;
+    final boolean[] got;
+    final byte[] idx_buff = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    HeaderMidstate midstate;
 
     /**
      * If using rate limiting, this is how much
@@ -294,6 +314,18 @@ public class SnowBlossomMiner
       setDaemon(true);
       rnd = new Random();
 
+      batch = Math.max(1, mine_batch);
+      nonces = new byte[batch][Globals.NONCE_LENGTH];
+      contexts = new byte[batch][Globals.BLOCKCHAIN_HASH_LEN];
+      next_contexts = new byte[batch][Globals.BLOCKCHAIN_HASH_LEN];
+      words = new byte[batch][SnowMerkle.HASH_LEN];
+      word_bbs = new ByteBuffer[batch];
+      for(int i=0; i<batch; i++)
+      {
+        word_bbs[i] = ByteBuffer.wrap(words[i]);
+      }
+      word_idx = new long[batch];
+      got = new boolean[batch];
     }
 
     private void runPass() throws Exception
@@ -306,7 +338,7 @@ public class SnowBlossomMiner
           rate_limit_quota = 1000;
         }
 
-        rate_limit_quota--;
+        rate_limit_quota -= batch;
       }
  
       Block b = last_block_template;
@@ -324,50 +356,86 @@ public class SnowBlossomMiner
         last_block_template = null;
       }
 
-      try (TimeRecordAuto tra = TimeRecord.openAuto("MinerThread.rndNonce"))
-      {
-        rnd.nextBytes(nonce);
-      }
-
-      // TODO, modify headers to put snow field in
-      byte[] first_hash = PowUtil.hashHeaderBits(b.getHeader(), nonce, md);
-
-
       /**
        * This is a windows specific improvement since windows likes separete file descriptors
        *  per thread.
        */
       if ((merkle_proof == null) || (proof_field != b.getHeader().getSnowField()))
       {
+        // Ours unless it is the shared one for memfield or precache
+        if ((merkle_proof != null) && (merkle_proof != field_scan.getFieldProof(proof_field)))
+        {
+          merkle_proof.close();
+        }
         merkle_proof = field_scan.getSingleUserFieldProof(b.getHeader().getSnowField());
         proof_field = b.getHeader().getSnowField();
       }
+      long total_words = merkle_proof.getTotalWords();
 
-      byte[] context = first_hash;
-
-      try (TimeRecordAuto tra = null)
+      try (TimeRecordAuto tra = TimeRecord.openAuto("MinerThread.rndNonce"))
       {
-        for (int pass = 0; pass < Globals.POW_LOOK_PASSES; pass++)
+        for(int i=0; i<batch; i++)
         {
-          long word_idx;
-          ((Buffer)word_bb).clear();
-          word_idx = PowUtil.getNextSnowFieldIndex(context, merkle_proof.getTotalWords(), md);
-          merkle_proof.readWord(word_idx, word_bb, pass);
-          context = PowUtil.getNextContext(context, word_buff, md);
+          rnd.nextBytes(nonces[i]);
         }
       }
 
+      // TODO, modify headers to put snow field in
+      midstate = HeaderMidstate.update(midstate, b.getHeader());
+      for(int i=0; i<batch; i++)
+      {
+        midstate.hashHeaderBits(nonces[i], md, contexts[i]);
+      }
 
-      byte[] found_hash = context;
-
-      if (PowUtil.lessThanTarget(found_hash, b.getHeader().getTarget()))
+      // Nonces that are still going are the first live ones
+      int live = batch;
+      for (int pass = 0; pass < Globals.POW_LOOK_PASSES; pass++)
       {
-        String str = HashUtils.getHexString(found_hash);
-        logger.info("Found passable solution: " + str);
-        buildBlock(b, nonce, merkle_proof);
+        for(int i=0; i<live; i++)
+        {
+          ((Buffer)word_bbs[i]).clear();
+          word_idx[i] = PowUtil.getNextSnowFieldIndex(contexts[i], total_words, md, idx_buff);
+        }
+
+        merkle_proof.readWords(word_idx, word_bbs, got, live, pass);
+
+        // Drop any that can't be read at this depth, by swapping them past the end
+        for(int i=live-1; i>=0; i--)
+        {
+          if (!got[i])
+          {
+            live--;
+            swap(nonces, i, live);
+            swap(contexts, i, live);
+            swap(words, i, live);
+            ByteBuffer t = word_bbs[i]; word_bbs[i] = word_bbs[live]; word_bbs[live] = t;
+          }
+        }
 
+        for(int i=0; i<live; i++)
+        {
+          PowUtil.getNextContext(contexts[i], words[i], md, next_contexts[i]);
+        }
+        byte[][] t = contexts; contexts = next_contexts; next_contexts = t;
+      }
+
+      for(int i=0; i<live; i++)
+      {
+        if (PowUtil.lessThanTarget(contexts[i], b.getHeader().getTarget()))
+        {
+          String str = HashUtils.getHexString(contexts[i]);
+          logger.info("Found passable solution: " + str);
+          buildBlock(b, nonces[i], merkle_proof);
+        }
       }
-      op_count.add(1L);
+      op_count.add(batch);
+    }
+
+    private void swap(byte[][] a, int i, int j)
+    {
+      byte[] t = a[i];
+      a[i] = a[j];
+      a[j] = t;
     }
 
     private void buildBlock(Block b, byte[] nonce, SnowMerkleProof merkle_proof) throws Exception
@@ -7,11 +7,16 @@ import duckutil.TimeRecordAuto;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import org.junit.Assert;
 import snowblossom.lib.ChannelUtil;
@@ -19,12 +24,14 @@ import snowblossom.lib.Globals;
 import snowblossom.lib.SnowMerkle;
 import snowblossom.proto.SnowPowProof;
 
-public class SnowMerkleProof
+public class SnowMerkleProof implements java.io.Closeable
 {
   private static final Logger logger = Logger.getLogger("snowblossom.miner");
 
+  private final File snow_path;
   private final RandomAccessFile snow_file;
   private final FileChannel snow_file_channel;
+  private AsynchronousFileChannel snow_async_channel;
 
   private final ImmutableMap<Long, FileChannel> deck_files;
   private final long total_words;
@@ -49,7 +56,8 @@ public class SnowMerkleProof
   {
     this.memcache = memcache;
     this.minDepthToDisk = minDepthToDisk;
-    snow_file = new RandomAccessFile(new File(path, base + ".snow"), "r");
+    snow_path = new File(path, base + ".snow");
+    snow_file = new RandomAccessFile(snow_path, "r");
     snow_file_channel = snow_file.getChannel();
 
     total_words = snow_file.length() / SnowMerkle.HASH_LEN_LONG;
@@ -155,6 +163,126 @@ public class SnowMerkleProof
    * @throws java.io.IOException
    */
   public boolean readWord(long word_index, ByteBuffer bb, int currentDepth) throws java.io.IOException
+  {
+    int r = readWordNoDisk(word_index, bb, currentDepth);
+    if (r == READ_DONE) return true;
+    if (r == READ_SKIP) return false;
+
+    if (diskProof != null)
+    {
+      diskProof.get().readWord(word_index, bb, Globals.POW_LOOK_PASSES);
+      return true;
+    }
+
+    ChannelUtil.readFully(snow_file_channel, bb, word_index * SnowMerkle.HASH_LEN_LONG);
+    return true;
+  }
+
+  /**
+   * Reads count words at once.  The ones that have to come from disk are all requested
+   * before waiting on any of them, so the drive gets them together rather than one at a time.
+   * Like readWord, disk reads go through the per thread proof when precaching.
+   * @param got set to what readWord would have returned for each word
+   */
+  public void readWords(long[] word_index, ByteBuffer[] bb, boolean[] got, int count, int currentDepth) throws java.io.IOException
+  {
+    boolean[] disk = null;
+
+    for(int i=0; i<count; i++)
+    {
+      int r = readWordNoDisk(word_index[i], bb[i], currentDepth);
+      got[i] = (r != READ_SKIP);
+      if (r == READ_DISK)
+      {
+        if (disk == null) disk = new boolean[count];
+        disk[i] = true;
+      }
+    }
+    if (disk == null) return;
+
+    if (diskProof != null)
+    {
+      diskProof.get().readDiskWords(word_index, bb, disk, count);
+    }
+    else
+    {
+      readDiskWords(word_index, bb, disk, count);
+    }
+  }
+
+  /**
+   * Reads the words marked in disk from the file
+   */
+  private void readDiskWords(long[] word_index, ByteBuffer[] bb, boolean[] disk, int count) throws java.io.IOException
+  {
+    AsynchronousFileChannel async = getAsyncChannel();
+    ArrayList<Future<Integer>> pending = new ArrayList<>();
+    for(int i=0; i<count; i++)
+    {
+      if (disk[i])
+      {
+        pending.add(async.read(bb[i], word_index[i] * SnowMerkle.HASH_LEN_LONG));
+      }
+    }
+
+    int p = 0;
+    for(int i=0; i<count; i++)
+    {
+      if (!disk[i]) continue;
+      int n;
+      try
+      {
+        n = pending.get(p++).get();
+      }
+      catch(InterruptedException | ExecutionException e)
+      {
+        throw new java.io.IOException(e);
+      }
+      if (bb[i].hasRemaining())
+      {
+        ChannelUtil.readFully(snow_file_channel, bb[i], word_index[i] * SnowMerkle.HASH_LEN_LONG + Math.max(0, n));
+      }
+    }
+  }
+
+  private synchronized AsynchronousFileChannel getAsyncChannel() throws java.io.IOException
+  {
+    if (snow_async_channel == null)
+    {
+      snow_async_channel = AsynchronousFileChannel.open(snow_path.toPath(), StandardOpenOption.READ);
+    }
+    return snow_async_channel;
+  }
+
+  /**
+   * Closes the files.  The per thread proofs used when precaching
+   * stay open for the life of their threads.
+   */
+  @Override
+  public synchronized void close() throws java.io.IOException
+  {
+    if (snow_async_channel != null)
+    {
+      snow_async_channel.close();
+      snow_async_channel = null;
+    }
+    for(FileChannel deck : deck_files.values())
+    {
+      deck.close();
+    }
+    snow_file.close();
+  }
+
+  private static final int READ_DONE = 0;
+  private static final int READ_SKIP = 1;
+  private static final int READ_DISK = 2;
+
+  /**
+   * Reads the word if it is in memory
+   * @return READ_DONE if it was read, READ_SKIP if readWord would return false,
+   * READ_DISK if it needs to be read from disk
+   */
+  private int readWordNoDisk(long word_index, ByteBuffer bb, int currentDepth) throws java.io.IOException
   {
     if (bytes_to_precache > 0)
     {
@@ -199,18 +327,11 @@ public class SnowMerkleProof
         }
       }
       bb.put(mem_buff[mem_block_index], off_in_block, SnowMerkle.HASH_LEN);
-      return true;
+      return READ_DONE;
     }
 
-    if (bytes_to_precache == -1 && minDepthToDisk > currentDepth) return false;
-    if (diskProof != null)
-    {
-      diskProof.get().readWord(word_index, bb, Globals.POW_LOOK_PASSES);
-      return true;
-    }
-
-    ChannelUtil.readFully(snow_file_channel, bb, word_pos);
-    return true;
+    if (bytes_to_precache == -1 && minDepthToDisk > currentDepth) return READ_SKIP;
+    return READ_DISK;
   }
 
   /**
@@ -330,6 +330,8 @@ public class SurfMiner implements PoolClientOperator
     int proof_field;
     byte[] nonce = new byte[Globals.NONCE_LENGTH];
     byte[] tmp_buff = new byte[32];
+    byte[] context = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    HeaderMidstate midstate;
 
     public WorkStarter()
     {
@@ -392,12 +394,13 @@ public class SurfMiner implements PoolClientOperator
         dist=new int[total_blocks];
       }*/
 
+      midstate = HeaderMidstate.update(midstate, wu.getHeader());
       for(int s =0 ; s<to_start; s++)
       {
         rnd.nextBytes(nonce);
         wu.getHeader().getNonce().copyTo(nonce, 0);
 
-        byte[] context = PowUtil.hashHeaderBits(wu.getHeader(), nonce, md);
+        midstate.hashHeaderBits(nonce, md, context);
 
         long word_idx = PowUtil.getNextSnowFieldIndex(context, field.getTotalWords(), md, tmp_buff);
 
@@ -2,6 +2,7 @@ package miner.test;
 
 import com.google.protobuf.ByteString;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.LinkedList;
 import java.util.Random;
@@ -132,4 +133,62 @@ public class SnowMerkleProofTest
     testProofMany(2, "zing", 200);
   }
 
+  /**
+   * readWords has to give the same bytes and flags as readWord one at a time,
+   * whichever of memcache, precache and disk the words come from
+   */
+  @Test
+  public void testReadWords() throws Exception
+  {
+    File tmp_dir = testFolder.newFolder();
+    long byte_len = 2 * 1048576L;
+    new SnowFall(new File(tmp_dir, "test.snow").getAbsolutePath(), "zing", byte_len);
+    new SnowMerkle(tmp_dir, "test", true);
+
+    checkReadWords(new SnowMerkleProof(tmp_dir, "test", false, 0, 6), new SnowMerkleProof(tmp_dir, "test"));
+    checkReadWords(new SnowMerkleProof(tmp_dir, "test", true, 0, 6), new SnowMerkleProof(tmp_dir, "test", true, 0, 6));
+    for(int min_depth : new int[]{0, 3, 6})
+    {
+      checkReadWords(
+        new SnowMerkleProof(tmp_dir, "test", false, 1048576L, min_depth),
+        new SnowMerkleProof(tmp_dir, "test", false, 1048576L, min_depth));
+    }
+  }
+
+  private void checkReadWords(SnowMerkleProof batch, SnowMerkleProof single) throws Exception
+  {
+    Random rnd = new Random(8675309L);
+    int count = 64;
+    long words = single.getTotalWords();
+    long[] word_index = new long[count];
+    ByteBuffer[] bbs = new ByteBuffer[count];
+    boolean[] got = new boolean[count];
+
+    for(int depth=0; depth<Globals.POW_LOOK_PASSES; depth++)
+    {
+      for(int i=0; i<count; i++)
+      {
+        // Half in the first MB, which is what gets precached
+        if (i % 2 == 0) word_index[i] = rnd.nextInt((int)(words / 2));
+        else word_index[i] = words / 2 + rnd.nextInt((int)(words / 2));
+        bbs[i] = ByteBuffer.allocate(SnowMerkle.HASH_LEN);
+      }
+      batch.readWords(word_index, bbs, got, count, depth);
+
+      for(int i=0; i<count; i++)
+      {
+        ByteBuffer bb = ByteBuffer.allocate(SnowMerkle.HASH_LEN);
+        boolean expected = single.readWord(word_index[i], bb, depth);
+        Assert.assertEquals(expected, got[i]);
+        Assert.assertEquals(bb.position(), bbs[i].position());
+        if (expected)
+        {
+          Assert.assertEquals(ByteString.copyFrom(bb.array()), ByteString.copyFrom(bbs[i].array()));
+        }
+      }
+    }
+    batch.close();
+    single.close();
+  }
+
 }
@@ -0,0 +1,255 @@
+package node.bench;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Set;
+import snowblossom.lib.*;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBMem;
+import snowblossom.node.ChainStateSource;
+import snowblossom.node.MemPool;
+import snowblossom.proto.AddressSpec;
+import snowblossom.proto.SignatureEntry;
+import snowblossom.proto.Transaction;
+import snowblossom.proto.TransactionInner;
+import snowblossom.proto.TransactionInput;
+import snowblossom.proto.TransactionOutput;
+
+/**
+ * Fills a MemPool with a full pool of transactions and reports time, bytes allocated
+ * and GC time for addTransaction and rebuildPriorityMap.
+ *
+ * The pool is made of chains of chain_len transactions, each spending an output of the one before,
+ * so the clusters have some depth to them.
+ *
+ * usage: MemPoolBench [tx_count] [chain_len] [rebuild_rounds]
+ */
+public class MemPoolBench
+{
+  public static final long VALUE = 1000000L;
+  public static final long FEE = 10000L;
+
+  public static void main(String args[]) throws Exception
+  {
+    Globals.addCryptoProvider();
+
+    int tx_count = MemPool.MEM_POOL_MAX;
+    int chain_len = 4;
+    int rounds = 10;
+    if (args.length > 0) tx_count = Integer.parseInt(args[0]);
+    if (args.length > 1) chain_len = Integer.parseInt(args[1]);
+    if (args.length > 2) rounds = Integer.parseInt(args[2]);
+
+    new MemPoolBench(tx_count, chain_len, rounds).run();
+  }
+
+  private final int tx_count;
+  private final int chain_len;
+  private final int rounds;
+
+  private final HashedTrie utxo_trie = new HashedTrie(new TrieDBMem(), true, false);
+  private final KeyPair keys;
+  private final AddressSpec claim;
+  private final AddressSpecHash addr;
+
+  public MemPoolBench(int tx_count, int chain_len, int rounds)
+  {
+    this.tx_count = tx_count;
+    this.chain_len = chain_len;
+    this.rounds = rounds;
+
+    keys = KeyUtil.generateECCompressedKey();
+    claim = AddressUtil.getSimpleSpecForKey(keys.getPublic(), SignatureUtil.SIG_TYPE_ECDSA_COMPRESSED);
+    addr = AddressUtil.getHashForSpec(claim);
+  }
+
+  public void run() throws Exception
+  {
+    System.out.println(String.format("Building %d transactions in chains of %d", tx_count, chain_len));
+
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+    Random rnd = new Random(8675309L);
+    TransactionOutput root_out = TransactionOutput.newBuilder()
+      .setRecipientSpecHash(addr.getBytes())
+      .setValue(VALUE)
+      .build();
+
+    ArrayList<Transaction> tx_list = new ArrayList<>();
+    while(tx_list.size() < tx_count)
+    {
+      byte[] tx_id_buff = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+      rnd.nextBytes(tx_id_buff);
+      ChainHash src_id = new ChainHash(tx_id_buff);
+      utxo_buffer.addOutput(ImmutableList.of(root_out.toByteString()), root_out, src_id, 0);
+
+      long value = VALUE;
+      for(int i=0; (i<chain_len) && (tx_list.size() < tx_count); i++)
+      {
+        value -= FEE;
+        Transaction tx = makeTx(src_id, value);
+        tx_list.add(tx);
+        src_id = new ChainHash(tx.getTxHash());
+      }
+    }
+    ChainHash utxo_root = utxo_buffer.commit();
+
+    MemPool mem_pool = new MemPool(utxo_trie, new BenchChainState());
+    mem_pool.rebuildPriorityMap(utxo_root);
+
+    Stats add_stats = new Stats("addTransaction");
+    for(Transaction tx : tx_list)
+    {
+      mem_pool.addTransaction(tx, false);
+    }
+    add_stats.end(tx_list.size());
+
+    Stats rebuild_stats = new Stats("rebuildPriorityMap");
+    for(int i=0; i<rounds; i++)
+    {
+      mem_pool.rebuildPriorityMap(utxo_root);
+    }
+    rebuild_stats.end(rounds);
+
+    System.out.println("Pool size: " + mem_pool.getMemPoolSize());
+    add_stats.print();
+    rebuild_stats.print();
+  }
+
+  private Transaction makeTx(ChainHash src_id, long value)
+    throws Exception
+  {
+    TransactionInput in = TransactionInput.newBuilder()
+      .setSpecHash(addr.getBytes())
+      .setSrcTxId(src_id.getBytes())
+      .setSrcTxOutIdx(0)
+      .build();
+    TransactionOutput out = TransactionOutput.newBuilder()
+      .setRecipientSpecHash(addr.getBytes())
+      .setValue(value)
+      .build();
+
+    TransactionInner.Builder inner = TransactionInner.newBuilder();
+    inner.setVersion(1);
+    inner.addInputs(in);
+    inner.addOutputs(out);
+    inner.addClaims(claim);
+    inner.setFee(FEE);
+
+    ByteString inner_data = inner.build().toByteString();
+    MessageDigest md = DigestUtil.getMD();
+    ByteString tx_hash = ByteString.copyFrom(md.digest(inner_data.toByteArray()));
+
+    Signature sig_engine = Signature.getInstance("ECDSA", Globals.getCryptoProviderName());
+    sig_engine.initSign(keys.getPrivate());
+    sig_engine.update(tx_hash.toByteArray());
+
+    return Transaction.newBuilder()
+      .setInnerData(inner_data)
+      .setTxHash(tx_hash)
+      .addSignatures(SignatureEntry.newBuilder()
+        .setClaimIdx(0)
+        .setKeyIdx(0)
+        .setSignature(ByteString.copyFrom(sig_engine.sign())))
+      .build();
+  }
+
+  /**
+   * Time, bytes allocated by this thread and GC activity since creation
+   */
+  public static class Stats
+  {
+    private final String name;
+    private final long start_ns;
+    private final long start_alloc;
+    private final long start_gc_count;
+    private final long start_gc_ms;
+
+    private long ns;
+    private long alloc;
+    private long gc_count;
+    private long gc_ms;
+    private int ops;
+
+    public Stats(String name)
+    {
+      this.name = name;
+      System.gc();
+      start_gc_count = getGcCount();
+      start_gc_ms = getGcTime();
+      start_alloc = getAllocatedBytes();
+      start_ns = System.nanoTime();
+    }
+
+    public void end(int ops)
+    {
+      ns = System.nanoTime() - start_ns;
+      alloc = getAllocatedBytes() - start_alloc;
+      gc_count = getGcCount() - start_gc_count;
+      gc_ms = getGcTime() - start_gc_ms;
+      this.ops = ops;
+    }
+
+    public void print()
+    {
+      double sec = ns / 1e9;
+      System.out.println(String.format("%s: %d ops in %.3f s (%.1f us/op), %.1f MB allocated (%.0f bytes/op, %.1f MB/s), %d gcs, %d ms gc",
+        name, ops, sec, ns / 1e3 / ops,
+        alloc / 1048576.0, (double) alloc / ops, alloc / 1048576.0 / sec,
+        gc_count, gc_ms));
+    }
+  }
+
+  private static long getAllocatedBytes()
+  {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean)
+    {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0L;
+  }
+
+  private static long getGcCount()
+  {
+    long n = 0;
+    for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+    {
+      n += Math.max(0L, gc.getCollectionCount());
+    }
+    return n;
+  }
+
+  private static long getGcTime()
+  {
+    long n = 0;
+    for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+    {
+      n += Math.max(0L, gc.getCollectionTime());
+    }
+    return n;
+  }
+
+  public class BenchChainState implements ChainStateSource
+  {
+    @Override
+    public int getHeight() { return 100; }
+
+    @Override
+    public int getShardId() { return 0; }
+
+    @Override
+    public NetworkParams getParams() { return new NetworkParamsRegtest(); }
+
+    @Override
+    public Set<Integer> getShardCoverSet() { return ImmutableSet.of(0); }
+  }
+
+}
@@ -0,0 +1,699 @@
+package snowblossom.node;
+
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.TreeMultimap;
+import duckutil.PeriodicThread;
+import duckutil.TimeRecord;
+import duckutil.TimeRecordAuto;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.DaemonThreadFactory;
+import snowblossom.lib.NetworkParams;
+import snowblossom.lib.Validation;
+import snowblossom.lib.ValidationException;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockPreview;
+import snowblossom.proto.PeerMessage;
+import snowblossom.proto.RequestBlock;
+
+/**
+ * Headers first block download.
+ *
+ * The PeerLinks learn the chain from tips and preview chains and hand the block previews in here.
+ * We keep a window of the lowest blocks we don't have yet and keep requests out for them
+ * spread over all the connected peers, a limited number per peer.  As blocks come in the
+ * window slides forward.
+ *
+ * Blocks can come back in any order, so they are held here until their parent is saved
+ * and then ingested in height order.
+ *
+ * Ingestion is pipelined.  As soon as a block arrives the checks that don't need
+ * the database (PoW proofs, tx hashes, signatures) are started on the check threads.
+ * The ordered part, deep validation with the utxo merge and saving, is done one block
+ * at a time on this thread, so while one block is being saved the next ones are
+ * already being checked.
+ *
+ * Previews are whatever peers tell us, so none of them are trusted to stay:
+ *  - Blocks that are asked for MAX_REQUEST_ROUNDS times, or are in the request window
+ *    for EXPIRE_MS, without arriving are dropped.
+ *  - A peer that announced a block and then doesn't send it when asked stops being a source
+ *    for it.  Blocks with no sources left, because of that or because the links closed, are dropped.
+ *    A peer that does that MAX_LINK_FAILURES times in a row is closed.
+ *  - At most MAX_WANTED blocks are tracked and at most MAX_WANTED_PER_LINK from any one peer.
+ *    Past that, a lower block pushes out the highest one, since that would be fetched last anyway.
+ */
+public class BlockDownloader extends PeriodicThread
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.peering");
+
+  public static final int DEFAULT_WINDOW = 128;
+  public static final int DEFAULT_PER_LINK = 16;
+
+  /** If a peer hasn't sent a block in this long, ask someone else */
+  public static final long REQUEST_TIMEOUT_MS = 30000L;
+
+  /** Blocks asked for this many times without arriving are dropped */
+  public static final int MAX_REQUEST_ROUNDS = 4;
+
+  /** Blocks that don't arrive, or don't lead back to a saved block, are dropped after this long */
+  public static final long EXPIRE_MS = 600000L;
+  public static final long EXPIRE_CHECK_MS = 60000L;
+
+  public static final int MAX_WANTED = 10000;
+  public static final int MAX_WANTED_PER_LINK = 2000;
+
+  /** Blocks in a row a link can announce and then not send before we close it */
+  public static final int MAX_LINK_FAILURES = 8;
+
+  private final NodeAccess node;
+  private final int window;
+  private final int max_per_link;
+  private final ThreadPoolExecutor check_exec;
+
+  // Everything below is guarded by lock
+  private final Object lock = new Object();
+  private final HashMap<ChainHash, Wanted> wanted_map = new HashMap<>();
+  private final TreeMultimap<Integer, ChainHash> height_map = TreeMultimap.<Integer, ChainHash>create();
+  private final SetMultimap<Integer, ChainHash> received_map = MultimapBuilder.treeKeys().hashSetValues().build();
+  // Number of wanted blocks each link is a source of
+  private final HashMap<PeerLink, Integer> link_count = new HashMap<>();
+  // Blocks in a row each link has announced and then not sent
+  private final HashMap<PeerLink, Integer> link_failures = new HashMap<>();
+  private long last_expire_check;
+
+  /**
+   * What the downloader uses from the node
+   */
+  public interface NodeAccess
+  {
+    public NetworkParams getParams();
+    public boolean haveBlock(ChainHash hash);
+    public Collection<PeerLink> getLinks();
+    public boolean areWeSynced();
+    public void ingestBlock(Block blk) throws Exception;
+  }
+
+  public BlockDownloader(SnowBlossomNode node, int window, int max_per_link, int check_threads)
+  {
+    this(new SnowBlossomNodeAccess(node), window, max_per_link, check_threads);
+  }
+
+  public BlockDownloader(NodeAccess node, int window, int max_per_link, int check_threads)
+  {
+    super(5000L);
+    setName("BlockDownloader");
+    setDaemon(true);
+
+    this.node = node;
+    this.window = window;
+    this.max_per_link = max_per_link;
+
+    check_exec = new ThreadPoolExecutor(
+      check_threads,
+      check_threads,
+      2, TimeUnit.DAYS,
+      new LinkedBlockingQueue<Runnable>(),
+      new DaemonThreadFactory("block_check"));
+  }
+
+  /**
+   * A peer has told us about a block we don't have
+   * @return true iff we are downloading the block, false if we have too many lower ones already
+   */
+  public boolean addPreview(BlockPreview bp, PeerLink link)
+  {
+    ChainHash hash = new ChainHash(bp.getSnowHash());
+    int height = bp.getBlockHeight();
+    boolean added = false;
+    synchronized(lock)
+    {
+      Wanted w = wanted_map.get(hash);
+      if (w == null)
+      {
+        if (link_count.getOrDefault(link, 0) >= MAX_WANTED_PER_LINK)
+        {
+          if (!evictHighest(height, link)) return false;
+        }
+        if (wanted_map.size() >= MAX_WANTED)
+        {
+          if (!evictHighest(height, null)) return false;
+        }
+        w = new Wanted(hash, bp);
+        wanted_map.put(hash, w);
+        height_map.put(height, hash);
+        added = true;
+      }
+      if ((!w.sources.contains(link)) && (link_count.getOrDefault(link, 0) < MAX_WANTED_PER_LINK))
+      {
+        w.sources.add(link);
+        link_count.put(link, link_count.getOrDefault(link, 0) + 1);
+      }
+    }
+    if (added) wake();
+    return true;
+  }
+
+  /**
+   * Make room for a block at height by dropping the highest block we don't have yet,
+   * if that is higher.  With a link, only blocks from that link are considered and
+   * the link just stops being a source of it.
+   * @return true iff room was made
+   */
+  private boolean evictHighest(int height, PeerLink link)
+  {
+    for(int h : height_map.keySet().descendingSet())
+    {
+      if (h <= height) return false;
+      for(ChainHash hash : height_map.get(h))
+      {
+        Wanted w = wanted_map.get(hash);
+        if (w.block != null) continue;
+        if (link == null)
+        {
+          remove(w);
+          return true;
+        }
+        if (removeSource(w, link))
+        {
+          if (w.sources.isEmpty()) remove(w);
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  public int getWantedCount()
+  {
+    synchronized(lock)
+    {
+      return wanted_map.size();
+    }
+  }
+
+  public boolean isWanted(ChainHash hash)
+  {
+    synchronized(lock)
+    {
+      return wanted_map.containsKey(hash);
+    }
+  }
+
+  /**
+   * @return true iff this is a block we are downloading, in which case we will ingest it
+   */
+  public boolean blockReceived(Block blk, PeerLink link)
+  {
+    BlockHeader header = blk.getHeader();
+    ChainHash hash = new ChainHash(header.getSnowHash());
+    synchronized(lock)
+    {
+      Wanted w = wanted_map.get(hash);
+      if (w == null) return false;
+      if (w.block != null) return true; // already have it from someone else
+
+      // Not what we were told, let normal ingestion sort it out
+      if (!w.preview.getPrevBlockHash().equals(header.getPrevBlockHash())) return false;
+      if (w.preview.getBlockHeight() != header.getBlockHeight()) return false;
+
+      w.block = blk;
+      w.block_from = link;
+      link_failures.remove(link);
+      w.basics_check = check_exec.submit( () ->
+      {
+        Validation.checkBlockBasics(node.getParams(), blk, true, false);
+        return null;
+      });
+      received_map.put(header.getBlockHeight(), hash);
+    }
+    wake();
+    return true;
+  }
+
+  @Override
+  public void runPass()
+    throws Exception
+  {
+    runPass(System.currentTimeMillis());
+  }
+
+  /**
+   * A pass as of the time now, which tests can move ahead
+   */
+  public void runPass(long now)
+  {
+    ingestReady();
+    sendRequests(now);
+    expire(now);
+  }
+
+  /**
+   * Ingest received blocks in height order, for as long as we have the parent of the next one
+   */
+  private void ingestReady()
+  {
+    while(true)
+    {
+      ArrayList<Wanted> received = new ArrayList<>();
+      synchronized(lock)
+      {
+        for(ChainHash hash : received_map.values())
+        {
+          received.add(wanted_map.get(hash));
+        }
+      }
+
+      int ingested = 0;
+      for(Wanted w : received)
+      {
+        if (isPrevSaved(w.preview))
+        {
+          ingest(w);
+          ingested++;
+        }
+      }
+      if (ingested == 0) return;
+    }
+  }
+
+  private void ingest(Wanted w)
+  {
+    try
+    {
+      waitForCheck(w);
+
+      node.ingestBlock(w.block);
+    }
+    catch(ValidationException e)
+    {
+      logger.info(String.format("Got a block %s that didn't validate from %s - closing link: %s", w.hash, w.block_from.getLinkId(), e));
+      w.block_from.close();
+    }
+    catch(Exception e)
+    {
+      logger.log(Level.WARNING, "Error ingesting block " + w.hash, e);
+    }
+    remove(w);
+  }
+
+  /**
+   * Usually already done, since it was started when the block came in
+   */
+  private void waitForCheck(Wanted w)
+    throws Exception
+  {
+    try(TimeRecordAuto tra = TimeRecord.openAuto("BlockDownloader.waitForCheck"))
+    {
+      w.basics_check.get();
+    }
+    catch(ExecutionException e)
+    {
+      if (e.getCause() instanceof ValidationException)
+      {
+        throw (ValidationException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Keep requests out for the lowest window blocks that we don't have
+   */
+  private void sendRequests(long now)
+  {
+    // Near the tip our mempool should have most of the transactions
+    boolean compact = node.areWeSynced();
+    HashSet<PeerLink> links = new HashSet<>();
+    for(PeerLink link : node.getLinks())
+    {
+      if (link.isOpen()) links.add(link);
+    }
+
+    ArrayList<Wanted> need = new ArrayList<>();
+    ArrayList<Wanted> drop = new ArrayList<>();
+    HashSet<PeerLink> to_close = new HashSet<>();
+    HashMap<PeerLink, Integer> in_flight = new HashMap<>();
+    synchronized(lock)
+    {
+      // Blocks being dropped don't take up a place in the window
+      int seen = 0;
+      for(ChainHash hash : height_map.values())
+      {
+        if (seen >= window) break;
+
+        Wanted w = wanted_map.get(hash);
+        if (w.block != null)
+        {
+          seen++;
+          continue;
+        }
+        if (w.requested_from != null)
+        {
+          if ((w.request_time + REQUEST_TIMEOUT_MS > now) && (links.contains(w.requested_from)))
+          {
+            in_flight.put(w.requested_from, in_flight.getOrDefault(w.requested_from, 0) + 1);
+            seen++;
+            continue;
+          }
+          PeerLink failed_link = w.requested_from;
+          w.failed.add(failed_link);
+          w.requested_from = null;
+
+          // It told us about the block and then didn't send it
+          if (removeSource(w, failed_link))
+          {
+            int failures = link_failures.getOrDefault(failed_link, 0) + 1;
+            link_failures.put(failed_link, failures);
+            if (failures >= MAX_LINK_FAILURES) to_close.add(failed_link);
+          }
+        }
+        for(PeerLink link : new ArrayList<PeerLink>(w.sources))
+        {
+          if (!link.isOpen()) removeSource(w, link);
+        }
+        if ((w.sources.isEmpty()) || (w.request_count >= MAX_REQUEST_ROUNDS))
+        {
+          drop.add(w);
+          continue;
+        }
+        seen++;
+        need.add(w);
+      }
+      for(Wanted w : drop)
+      {
+        remove(w);
+      }
+      for(PeerLink link : to_close)
+      {
+        link_failures.remove(link);
+      }
+    }
+
+    for(PeerLink link : to_close)
+    {
+      logger.info(String.format("Link %s keeps announcing blocks it doesn't send - closing link", link.getLinkId()));
+      link.close();
+      links.remove(link);
+    }
+
+    for(Wanted w : need)
+    {
+      if (node.haveBlock(w.hash))
+      {
+        remove(w);
+        continue;
+      }
+
+      PeerLink link;
+      synchronized(lock)
+      {
+        if (!wanted_map.containsKey(w.hash)) continue;
+        link = pickLink(w, links, in_flight);
+        if (link == null) continue;
+        w.requested_from = link;
+        w.request_time = now;
+        if (w.request_count == 0) w.first_request_time = now;
+        w.request_count++;
+      }
+      in_flight.put(link, in_flight.getOrDefault(link, 0) + 1);
+
+      logger.fine(String.format("Requesting block s:%d h:%d %s from %s",
+        w.preview.getShardId(), w.preview.getBlockHeight(), w.hash, link.getLinkId()));
+      link.writeMessage( PeerMessage.newBuilder()
+        .setReqBlock(
+          RequestBlock.newBuilder()
+            .setBlockHash(w.hash.getBytes())
+            .setCompact(compact)
+            .build())
+        .build());
+    }
+  }
+
+  /**
+   * The least busy link that probably has the block.
+   * Peers that told us about it first, then peers whose tip is high enough.
+   */
+  private PeerLink pickLink(Wanted w, HashSet<PeerLink> links, Map<PeerLink, Integer> in_flight)
+  {
+    for(int attempt = 0; attempt < 2; attempt++)
+    {
+      PeerLink best = null;
+      int best_score = Integer.MAX_VALUE;
+      for(PeerLink link : links)
+      {
+        int count = in_flight.getOrDefault(link, 0);
+        if (count >= max_per_link) continue;
+        if (w.failed.contains(link)) continue;
+
+        int score;
+        if (w.sources.contains(link)) score = count;
+        else if (link.getTipHeight(w.preview.getShardId()) >= w.preview.getBlockHeight()) score = count + max_per_link;
+        else continue;
+
+        if (score < best_score)
+        {
+          best = link;
+          best_score = score;
+        }
+      }
+      if (best != null) return best;
+
+      // Everyone has failed us, give them all another chance
+      if (w.failed.size() == 0) return null;
+      w.failed.clear();
+    }
+    return null;
+  }
+
+  /**
+   * Drop blocks that are taking too long to arrive, that no open link told us about,
+   * or whose chain doesn't lead back to a saved block or one we are downloading,
+   * since we'll never be able to ingest them.
+   */
+  private void expire(long now)
+  {
+    if (last_expire_check + EXPIRE_CHECK_MS > now) return;
+    last_expire_check = now;
+
+    ArrayList<Wanted> roots = new ArrayList<>();
+    int wanted_count;
+    int received_count;
+    int dropped = 0;
+    synchronized(lock)
+    {
+      HashSet<PeerLink> closed = new HashSet<>();
+      for(PeerLink link : link_count.keySet())
+      {
+        if (!link.isOpen()) closed.add(link);
+      }
+      link_failures.keySet().removeIf(link -> !link.isOpen());
+
+      ArrayList<Wanted> drop = new ArrayList<>();
+      for(Wanted w : wanted_map.values())
+      {
+        w.failed.removeIf(link -> !link.isOpen());
+        for(PeerLink link : closed)
+        {
+          removeSource(w, link);
+        }
+
+        if (w.block == null)
+        {
+          if (w.sources.isEmpty())
+          {
+            drop.add(w);
+            continue;
+          }
+          if ((w.request_count > 0) && (w.first_request_time + EXPIRE_MS < now))
+          {
+            drop.add(w);
+            continue;
+          }
+        }
+
+        if (!wanted_map.containsKey(new ChainHash(w.preview.getPrevBlockHash())))
+        {
+          roots.add(w);
+        }
+      }
+      for(Wanted w : drop)
+      {
+        remove(w);
+      }
+      dropped += drop.size();
+      wanted_count = wanted_map.size();
+      received_count = received_map.size();
+    }
+
+    for(Wanted w : roots)
+    {
+      if (node.haveBlock(w.hash))
+      {
+        remove(w);
+      }
+      else if ((!isPrevSaved(w.preview)) && (w.added_time + EXPIRE_MS < now))
+      {
+        dropped += removeWithChildren(w);
+      }
+    }
+
+    if (wanted_count > 0)
+    {
+      logger.info(String.format("Block download: wanted %d, received %d, dropped %d", wanted_count, received_count, dropped));
+    }
+  }
+
+  private boolean isPrevSaved(BlockPreview bp)
+  {
+    if (bp.getBlockHeight() == 0) return true;
+    return node.haveBlock(new ChainHash(bp.getPrevBlockHash()));
+  }
+
+  private void remove(Wanted w)
+  {
+    synchronized(lock)
+    {
+      // Might have already been dropped some other way
+      if (wanted_map.get(w.hash) != w) return;
+
+      int height = w.preview.getBlockHeight();
+      wanted_map.remove(w.hash);
+      height_map.remove(height, w.hash);
+      received_map.remove(height, w.hash);
+      for(PeerLink link : new ArrayList<PeerLink>(w.sources))
+      {
+        removeSource(w, link);
+      }
+    }
+  }
+
+  /**
+   * @return true iff link was a source of w
+   */
+  private boolean removeSource(Wanted w, PeerLink link)
+  {
+    if (!w.sources.remove(link)) return false;
+
+    int count = link_count.getOrDefault(link, 0) - 1;
+    if (count <= 0) link_count.remove(link);
+    else link_count.put(link, count);
+    return true;
+  }
+
+  private int removeWithChildren(Wanted root)
+  {
+    synchronized(lock)
+    {
+      if (wanted_map.get(root.hash) != root) return 0;
+
+      HashSet<ChainHash> drop = new HashSet<>();
+      drop.add(root.hash);
+
+      // children are always higher, so one pass in height order gets them all
+      ArrayList<Wanted> remove_list = new ArrayList<>();
+      for(Map.Entry<Integer, ChainHash> me : height_map.entries())
+      {
+        if (me.getKey() < root.preview.getBlockHeight()) continue;
+        Wanted w = wanted_map.get(me.getValue());
+        if ((drop.contains(w.hash)) || (drop.contains(new ChainHash(w.preview.getPrevBlockHash()))))
+        {
+          drop.add(w.hash);
+          remove_list.add(w);
+        }
+      }
+      for(Wanted w : remove_list)
+      {
+        remove(w);
+      }
+      return remove_list.size();
+    }
+  }
+
+  private class Wanted
+  {
+    final ChainHash hash;
+    final BlockPreview preview;
+    final long added_time;
+    final HashSet<PeerLink> sources = new HashSet<>();
+    final HashSet<PeerLink> failed = new HashSet<>();
+
+    PeerLink requested_from;
+    long request_time;
+    long first_request_time;
+    int request_count;
+
+    Block block;
+    PeerLink block_from;
+    Future<Object> basics_check;
+
+    Wanted(ChainHash hash, BlockPreview preview)
+    {
+      this.hash = hash;
+      this.preview = preview;
+      this.added_time = System.currentTimeMillis();
+    }
+  }
+
+  private static class SnowBlossomNodeAccess implements NodeAccess
+  {
+    private final SnowBlossomNode node;
+
+    SnowBlossomNodeAccess(SnowBlossomNode node)
+    {
+      this.node = node;
+    }
+
+    @Override
+    public NetworkParams getParams()
+    {
+      return node.getParams();
+    }
+
+    @Override
+    public boolean haveBlock(ChainHash hash)
+    {
+      return node.getDB().getBlockSummaryMap().containsKey(hash.getBytes());
+    }
+
+    @Override
+    public Collection<PeerLink> getLinks()
+    {
+      return node.getPeerage().getLinkList();
+    }
+
+    @Override
+    public boolean areWeSynced()
+    {
+      return node.areWeSynced();
+    }
+
+    @Override
+    public void ingestBlock(Block blk)
+      throws Exception
+    {
+      int shard_id = blk.getHeader().getShardId();
+
+      // will only open if we are actually interested in this shard
+      node.openShard(shard_id);
+      BlockIngestor ingestor = node.getBlockIngestor(shard_id);
+      if (ingestor != null)
+      {
+        ingestor.ingestBlock(blk, true);
+      }
+    }
+  }
+
+}
@@ -15,6 +15,7 @@ import java.util.TreeSet;
 import org.junit.Assert;
 import snowblossom.lib.*;
 import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.IncrementalMerge;
 import snowblossom.proto.*;
 
 /**
@@ -26,12 +27,14 @@ public class BlockForge
   private SnowBlossomNode node;
   private NetworkParams params;
   private final int shard_id;
+  private final IncrementalMerge utxo_merge;
 
   public BlockForge(SnowBlossomNode node, int shard_id)
   {
     this.node = node;
     this.params = node.getParams();
     this.shard_id = shard_id;
+    this.utxo_merge = new IncrementalMerge(node.getUtxoHashedTrie(), 4);
   }
 
   /**
@@ -165,7 +168,7 @@ public class BlockForge
       }
 
       header_builder.setMerkleRootHash( DigestUtil.getMerkleRootForTxList(tx_list).getBytes());
-      header_builder.setUtxoRootHash( utxo_buffer.simulateUpdates().getBytes());
+      header_builder.setUtxoRootHash( utxo_buffer.simulateUpdates(utxo_merge).getBytes());
 
       block_builder.setHeader(header_builder.build());
       return BlockTemplate.newBuilder()
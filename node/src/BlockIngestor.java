@@ -13,6 +13,7 @@ import java.util.Set;
 import java.util.logging.Logger;
 import snowblossom.lib.*;
 import snowblossom.lib.db.DB;
+import snowblossom.lib.db.DBBatch;
 import snowblossom.lib.trie.HashUtils;
 import snowblossom.proto.Block;
 import snowblossom.proto.BlockHeader;
@@ -132,9 +133,13 @@ public class BlockIngestor implements ChainStateSource
         summary = BlockchainUtil.getNewSummary(blk.getHeader(), prevsummary, node.getParams(), blk.getTransactionsCount(), tx_body_size, blk.getImportedBlocksList() );
 
 
-        summary = saveOtherChainIndexBits(summary, prevsummary, blk);
+        try(DBBatch batch = db.newBatch())
+        {
+          summary = saveOtherChainIndexBits(summary, prevsummary, blk, batch);
 
-        db.getBlockSummaryMap().put( hash.getBytes(), summary);
+          db.getBlockSummaryMap().put( batch, hash.getBytes(), summary);
+          batch.commit();
+        }
 
       }
 
@@ -161,6 +166,17 @@ public class BlockIngestor implements ChainStateSource
   public boolean ingestBlock(Block blk)
     throws ValidationException
   {
+    return ingestBlock(blk, false);
+  }
+
+  /**
+   * @param basics_checked true if the caller has already done
+   * Validation.checkBlockBasics(params, blk, true, false) on this block,
+   * so that can be done ahead on other threads
+   */
+  public boolean ingestBlock(Block blk, boolean basics_checked)
+    throws ValidationException
+  {
 
     ChainHash blockhash;
     try(TimeRecordAuto tra_blk = TimeRecord.openAuto("BlockIngestor.ingestBlock");
@@ -168,7 +184,15 @@ public class BlockIngestor implements ChainStateSource
     {
       mlog.setOperation("ingest_block");
       mlog.setModule("block_ingestor");
-      Validation.checkBlockBasics(node.getParams(), blk, true, false);
+      if (!basics_checked)
+      {
+        long sig_hits = SignatureCache.getHitCount();
+        long sig_misses = SignatureCache.getMissCount();
+        Validation.checkBlockBasics(node.getParams(), blk, true, false);
+        // Other threads can be checking signatures too, so these are close but not exact
+        mlog.set("sig_cache_hits", SignatureCache.getHitCount() - sig_hits);
+        mlog.set("sig_cache_misses", SignatureCache.getMissCount() - sig_misses);
+      }
 
       if (blk.getHeader().getShardId() != shard_id)
       {
@@ -216,53 +240,79 @@ public class BlockIngestor implements ChainStateSource
 
       BlockSummary summary = BlockchainUtil.getNewSummary(blk.getHeader(), prev_summary, node.getParams(), blk.getTransactionsCount(), tx_body_size, blk.getImportedBlocksList() );
 
-      Validation.deepBlockValidation(node.getParams(), node.getUtxoHashedTrie(), blk, prev_summary);
-
-      summary = saveOtherChainIndexBits(summary, prev_summary, blk);
+      UtxoPruner pruner = node.getUtxoPruner();
+      if (pruner != null)
+      {
+        if (!pruner.isPrevAvailable(shard_id, chainhead, prev_summary))
+        {
+          throw new ValidationException("Block builds on a block too far back, utxo data may be pruned");
+        }
+        pruner.getIngestLock().lock();
+      }
 
-      if (tx_index)
+      // Everything for this block goes into one batch, which is one
+      // atomic write on DBs that support it
+      try(DBBatch batch = db.newBatch())
       {
-        try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.saveTx"))
+        Validation.deepBlockValidation(node.getParams(), node.getUtxoHashedTrie(), blk, prev_summary, batch);
+
+        summary = saveOtherChainIndexBits(summary, prev_summary, blk, batch);
+
+        if (tx_index)
         {
-          ByteString block_hash_str = blockhash.getBytes();
-          HashMap<ByteString, Transaction> tx_map = new HashMap<>();
-          for(Transaction tx : blk.getTransactionsList())
+          try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.saveTx"))
           {
-            tx_map.put(tx.getTxHash(), tx);
+            ByteString block_hash_str = blockhash.getBytes();
+            HashMap<ByteString, Transaction> tx_map = new HashMap<>();
+            for(Transaction tx : blk.getTransactionsList())
+            {
+              tx_map.put(tx.getTxHash(), tx);
+            }
+            db.getTransactionMap().putAll(batch, tx_map);
           }
-          db.getTransactionMap().putAll(tx_map);
         }
-      }
 
-      try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.blockSave"))
-      {
-        db.getBlockMap().put( blockhash.getBytes(), blk);
+        try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.blockSave"))
+        {
+          db.getBlockMap().put( batch, blockhash.getBytes(), blk);
 
 
-        saveBlockChildMapping( blk.getHeader().getPrevBlockHash(), blockhash.getBytes());
-        for(ImportedBlock ib : blk.getImportedBlocksList())
+          saveBlockChildMapping( blk.getHeader().getPrevBlockHash(), blockhash.getBytes(), batch);
+          for(ImportedBlock ib : blk.getImportedBlocksList())
+          {
+            // not positive we actually need this, but what the hell
+            saveBlockChildMapping( ib.getHeader().getPrevBlockHash(), ib.getHeader().getSnowHash(), batch);
+            node.getDB().getBlockHeaderMap().put( batch, ib.getHeader().getSnowHash(), ib.getHeader());
+          }
+          db.setBestBlockAt( blk.getHeader().getShardId(), blk.getHeader().getBlockHeight(),
+            BlockchainUtil.readInteger(summary.getWorkSum()), batch);
+
+
+          // THIS IS SUPER IMPORTANT!!!!
+          // the summary being saved in the summary map acts as a signal that
+          // - this block is fully stored
+          //   - we have the utxo saved
+          //   - we have the block itself saved
+          //   - if we are using tx_index, we have the transactions saved
+          // - the previous block summary is also saved, which by induction means
+          //   that we have every block from this one all the way back to block 0
+          // In short, after the summary is written, things can depend on this being
+          // a valid and correct block that goes all the way back to block 0.
+          // It might not be in the main chain, but it can be counted on to be valid chain
+          //
+          // With an atomic batch it all lands at once anyways, but the summary
+          // stays last so DBs that write a batch in order still get this right.
+          db.getBlockSummaryMap().put( batch, blockhash.getBytes(), summary);
+          batch.commit();
+          mlog.set("saved",1);
+        }
+      }
+      finally
+      {
+        if (pruner != null)
         {
-          // not positive we actually need this, but what the hell
-          saveBlockChildMapping( ib.getHeader().getPrevBlockHash(), ib.getHeader().getSnowHash());
-          node.getDB().getBlockHeaderMap().put( ib.getHeader().getSnowHash(), ib.getHeader());
+          pruner.getIngestLock().unlock();
         }
-        db.setBestBlockAt( blk.getHeader().getShardId(), blk.getHeader().getBlockHeight(),
-          BlockchainUtil.readInteger(summary.getWorkSum()));
-
-
-        // THIS IS SUPER IMPORTANT!!!!
-        // the summary being saved in the summary map acts as a signal that
-        // - this block is fully stored
-        //   - we have the utxo saved
-        //   - we have the block itself saved
-        //   - if we are using tx_index, we have the transactions saved
-        // - the previous block summary is also saved, which by induction means
-        //   that we have every block from this one all the way back to block 0
-        // In short, after the summary is written, things can depend on this being
-        // a valid and correct block that goes all the way back to block 0.
-        // It might not be in the main chain, but it can be counted on to be valid chain
-        db.getBlockSummaryMap().put( blockhash.getBytes(), summary);
-        mlog.set("saved",1);
       }
 
       if (ShardUtil.shardSplit(summary, params))
@@ -316,7 +366,7 @@ public class BlockIngestor implements ChainStateSource
         {
           u.tickleBlocks();
         }
-        node.getMemPool(shard_id).tickleBlocks(new ChainHash(summary.getHeader().getUtxoRootHash()));
+        node.getMemPool(shard_id).tickleBlocks(new ChainHash(prev_summary.getHeader().getUtxoRootHash()), blk);
         node.getPeerage().sendAllTips(summary.getHeader().getShardId());
       }
 
@@ -330,7 +380,7 @@ public class BlockIngestor implements ChainStateSource
   /*
    * Update the chain index trie hash
    */
-  private BlockSummary saveOtherChainIndexBits(BlockSummary summary_current, BlockSummary summary_prev, Block blk)
+  private BlockSummary saveOtherChainIndexBits(BlockSummary summary_current, BlockSummary summary_prev, Block blk, DBBatch batch)
   {
     HashMap<ByteString, ByteString> update_map = new HashMap<>();
 
@@ -356,7 +406,7 @@ public class BlockIngestor implements ChainStateSource
 
 
     ByteString new_hash_root = node.getDB().getChainIndexTrie().mergeBatch(
-      summary_prev.getChainIndexTrieHash(), update_map);
+      summary_prev.getChainIndexTrieHash(), update_map, batch);
 
     ChainHash new_trie_hash = new ChainHash(new_hash_root);
 
@@ -461,19 +511,19 @@ public class BlockIngestor implements ChainStateSource
   }
 
 
-  private void saveBlockChildMapping(ByteString parent, ByteString child)
+  private void saveBlockChildMapping(ByteString parent, ByteString child, DBBatch batch)
   {
-    saveBlockChildMapping( new ChainHash(parent), new ChainHash(child) );
+    saveBlockChildMapping( new ChainHash(parent), new ChainHash(child), batch );
   }
 
   /**
    * Save the mapping of this parent to child block
    */
-  private void saveBlockChildMapping(ChainHash parent, ChainHash child)
+  private void saveBlockChildMapping(ChainHash parent, ChainHash child, DBBatch batch)
   {
     if (node.getDB().getChildBlockMapSet() != null)
     {
-      node.getDB().getChildBlockMapSet().add(parent.getBytes(), child.getBytes());
+      batch.add(node.getDB().getChildBlockMapSet(), parent.getBytes(), child.getBytes());
     }
   }
 
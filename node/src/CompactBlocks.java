@@ -0,0 +1,166 @@
+package snowblossom.node;
+
+import com.google.protobuf.ByteString;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.DigestUtil;
+import snowblossom.lib.ValidationException;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockTxs;
+import snowblossom.proto.CompactBlock;
+import snowblossom.proto.Transaction;
+
+/**
+ * Compact block relay.
+ *
+ * A compact block is the header, coinbase and imported blocks of a block with the other
+ * transactions as short ids.  The receiver fills in what it can from its mempool and asks
+ * the sender for the rest.
+ *
+ * The short ids are salted with the block hash, so no one can make colliding transactions
+ * ahead of time.  If there is a collision anyways, the merkle root won't match and the
+ * receiver gets the full block instead.
+ */
+public class CompactBlocks
+{
+  public static long getShortId(MessageDigest md, ByteString block_hash, ByteString tx_hash)
+  {
+    md.reset();
+    md.update(block_hash.toByteArray());
+    md.update(tx_hash.toByteArray());
+    return ByteBuffer.wrap(md.digest()).getLong();
+  }
+
+  public static CompactBlock compact(Block blk)
+  {
+    CompactBlock.Builder cb = CompactBlock.newBuilder();
+    cb.setHeader(blk.getHeader());
+    cb.addAllImportedBlocks(blk.getImportedBlocksList());
+
+    ByteString block_hash = blk.getHeader().getSnowHash();
+    MessageDigest md = DigestUtil.getMD();
+    for(int i=0; i<blk.getTransactionsCount(); i++)
+    {
+      Transaction tx = blk.getTransactions(i);
+      if (i == 0)
+      {
+        cb.setCoinbase(tx);
+      }
+      else
+      {
+        cb.addShortTxIds(getShortId(md, block_hash, tx.getTxHash()));
+      }
+    }
+    return cb.build();
+  }
+
+  /**
+   * A block being rebuilt from a CompactBlock
+   */
+  public static class PartialBlock
+  {
+    private final CompactBlock compact;
+    private final Transaction[] txs;
+
+    /**
+     * Fills in what we can from the mempool, which may be null
+     */
+    public PartialBlock(CompactBlock compact, MemPool mem_pool)
+    {
+      this.compact = compact;
+      this.txs = new Transaction[compact.getShortTxIdsCount() + 1];
+      txs[0] = compact.getCoinbase();
+
+      if ((mem_pool == null) || (compact.getShortTxIdsCount() == 0)) return;
+
+      // Short ids that match more than one mempool tx map to null and get requested
+      ByteString block_hash = compact.getHeader().getSnowHash();
+      MessageDigest md = DigestUtil.getMD();
+      HashMap<Long, ChainHash> pool_map = new HashMap<>();
+      for(ChainHash tx_hash : mem_pool.getPoolHashList())
+      {
+        long id = getShortId(md, block_hash, tx_hash.getBytes());
+        if (pool_map.containsKey(id)) pool_map.put(id, null);
+        else pool_map.put(id, tx_hash);
+      }
+
+      for(int i=1; i<txs.length; i++)
+      {
+        ChainHash tx_hash = pool_map.get(compact.getShortTxIds(i-1));
+        if (tx_hash != null)
+        {
+          txs[i] = mem_pool.getTransaction(tx_hash);
+        }
+      }
+    }
+
+    public ChainHash getBlockHash()
+    {
+      return new ChainHash(compact.getHeader().getSnowHash());
+    }
+
+    public List<Integer> getMissing()
+    {
+      ArrayList<Integer> missing = new ArrayList<>();
+      for(int i=0; i<txs.length; i++)
+      {
+        if (txs[i] == null) missing.add(i);
+      }
+      return missing;
+    }
+
+    public boolean isComplete()
+    {
+      return getMissing().size() == 0;
+    }
+
+    /**
+     * Fill in the transactions we asked for with getMissing()
+     */
+    public void fill(BlockTxs block_txs)
+      throws ValidationException
+    {
+      List<Integer> missing = getMissing();
+      if (missing.size() != block_txs.getTransactionsCount())
+      {
+        throw new ValidationException(String.format("Expected %d transactions, got %d",
+          missing.size(), block_txs.getTransactionsCount()));
+      }
+      for(int i=0; i<missing.size(); i++)
+      {
+        txs[missing.get(i)] = block_txs.getTransactions(i);
+      }
+    }
+
+    /**
+     * Only false if the short ids matched the wrong transactions
+     */
+    public boolean checkMerkle()
+    {
+      ArrayList<ChainHash> tx_list = new ArrayList<>();
+      for(Transaction tx : txs)
+      {
+        tx_list.add(new ChainHash(tx.getTxHash()));
+      }
+      ChainHash merkle_root = DigestUtil.getMerkleRootForTxList(tx_list);
+      return merkle_root.equals(compact.getHeader().getMerkleRootHash());
+    }
+
+    public Block getBlock()
+    {
+      Block.Builder blk = Block.newBuilder();
+      blk.setHeader(compact.getHeader());
+      for(Transaction tx : txs)
+      {
+        blk.addTransactions(tx);
+      }
+      blk.addAllImportedBlocks(compact.getImportedBlocksList());
+      return blk.build();
+    }
+  }
+
+}
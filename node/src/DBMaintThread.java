@@ -35,6 +35,12 @@ public class DBMaintThread extends PeriodicThread
   public void runPass()
     throws Exception
   {
+    if (node.getDB().getTrieNodeCache() != null)
+    {
+      logger.info(node.getDB().getTrieNodeCache().getReport());
+    }
+    logger.info("DB stats: " + node.getDB().getStats());
+
     int maint_height = 0;
     ByteString db_maint_data = node.getDB().getSpecialMap().get("db_maint_height");
     if(db_maint_data != null)
@@ -10,11 +10,14 @@ import duckutil.MetricLog;
 import duckutil.PeriodicThread;
 import duckutil.TimeRecord;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.junit.Assert;
 import snowblossom.lib.*;
 import snowblossom.lib.trie.HashedTrie;
+import snowblossom.proto.Block;
 import snowblossom.proto.BlockHeader;
 import snowblossom.proto.Transaction;
 import snowblossom.proto.TransactionInner;
@@ -34,17 +37,28 @@ import snowblossom.proto.TransactionOutput;
  *    - Note: could be more than a chain of two, ideally we'd support any length chain because that is fun
  *  - Prune out impossible transactions as soon as is reasonable
  *  - If we have never heard of the inputs to a tx, drop it
+ *
+ * Locking:
+ *  - The maps are concurrent, so lookups don't take a lock.
+ *  - Changes happen with the lock on this object.  Adding a transaction only holds it for
+ *    the final checks and inserts.  The slow part, building and checking the tx cluster against
+ *    the utxo trie, is done before taking the lock and only redone under it if the priority
+ *    map was rebuilt in the meantime.  The double spend check and claiming the outputs happen
+ *    together under the lock, so the first seen transaction still wins.
+ *  - Template building and other readers of the priority map use a snapshot of it,
+ *    which is copied once after each change.  Looking up the cluster of one transaction
+ *    goes through cluster_index under the lock instead.
  */
 public class MemPool
 {
   private static final Logger logger = Logger.getLogger("snowblossom.mempool");
 
-  private Map<ChainHash, TransactionMempoolInfo> known_transactions = new HashMap<>(512, 0.5f);
+  private ConcurrentHashMap<ChainHash, TransactionMempoolInfo> known_transactions = new ConcurrentHashMap<>(512, 0.5f);
 
-  private HashMap<String, ChainHash> claimed_outputs = new HashMap<>();
+  private ConcurrentHashMap<OutPoint, ChainHash> claimed_outputs = new ConcurrentHashMap<>();
 
   // Mapping of addresses to transactions that involve them
-  private HashMultimap<AddressSpecHash, ChainHash> address_tx_map = HashMultimap.<AddressSpecHash, ChainHash>create();
+  private ConcurrentHashMap<AddressSpecHash, Set<ChainHash>> address_tx_map = new ConcurrentHashMap<>();
 
   // In normal operation, the priority map is updated as transactions come in
   // However, when a new block is learned we need to toss it all and start
@@ -58,9 +72,18 @@ public class MemPool
   //
   // Easy as eating pancakes.
   //
-  private ChainHash utxo_for_pri_map = null;
+  private volatile ChainHash utxo_for_pri_map = null;
   private TreeMultimap<Double, TXCluster> priority_map = TreeMultimap.<Double, TXCluster>create();
 
+  // Every transaction in a cluster in priority_map, to the clusters it is in
+  private HashMultimap<ChainHash, TXCluster> cluster_index = HashMultimap.<ChainHash, TXCluster>create();
+
+  // Incremented each time the priority map is rebuilt, which can remove transactions
+  private volatile long rebuild_count = 0L;
+
+  // Copy of priority_map, null when it has changed since
+  private volatile PrioritySnapshot priority_snapshot = null;
+
   private HashedTrie utxo_hashed_trie;
   private ChainStateSource chain_state_source;
 
@@ -71,11 +94,18 @@ public class MemPool
 
   private final int low_fee_max;
 
+  public static final long DEFAULT_TEMPLATE_BUDGET_MS = 500L;
+  /** Packages in a row that don't fit before we call a nearly full block done */
+  public static final int MAX_TEMPLATE_FAILURES = 1000;
+  public static final int TEMPLATE_NEARLY_FULL = 4096;
+
+  private volatile long template_budget_ms = DEFAULT_TEMPLATE_BUDGET_MS;
+
   // Indicates if this mempool should ever accept p2p transactions
   private final boolean accepts_p2p_tx;
 
   private Tickler tickler;
-  private ImmutableList<MemPoolTickleInterface> mempool_listener = ImmutableList.of();
+  private volatile ImmutableList<MemPoolTickleInterface> mempool_listener = ImmutableList.of();
 
   private ImmutableSet<Integer> shard_cover_set;
 
@@ -103,12 +133,20 @@ public class MemPool
     new TicklerBroadcast().start();
   }
 
-  public synchronized int getMemPoolSize()
+  /**
+   * Most time to spend picking transactions for a block template
+   */
+  public void setTemplateBudget(long ms)
+  {
+    this.template_budget_ms = ms;
+  }
+
+  public int getMemPoolSize()
   {
     return known_transactions.size();
   }
 
-  public synchronized TransactionMempoolInfo getRandomPoolTransaction()
+  public TransactionMempoolInfo getRandomPoolTransaction()
   {
     ArrayList<TransactionMempoolInfo> list = new ArrayList<>();
     list.addAll(known_transactions.values());
@@ -118,7 +156,7 @@ public class MemPool
     return list.get(rnd.nextInt(list.size()));
   }
 
-  public synchronized Transaction getTransaction(ChainHash tx_hash)
+  public Transaction getTransaction(ChainHash tx_hash)
   {
     TransactionMempoolInfo info = known_transactions.get(tx_hash);
     if (info != null)
@@ -128,27 +166,102 @@ public class MemPool
     return null;
   }
 
-  public synchronized Collection<ChainHash> getPoolHashList()
+  public Collection<ChainHash> getPoolHashList()
   {
     return ImmutableList.copyOf( known_transactions.keySet() );
 
   }
 
-  public synchronized Set<ChainHash> getTransactionsForAddress(AddressSpecHash spec_hash)
+  public Set<ChainHash> getTransactionsForAddress(AddressSpecHash spec_hash)
   {
-    return ImmutableSet.copyOf(address_tx_map.get(spec_hash));
+    Set<ChainHash> set = address_tx_map.get(spec_hash);
+    if (set == null) return ImmutableSet.of();
+    return ImmutableSet.copyOf(set);
   }
 
-  public synchronized List<Transaction> getTxClusterForTransaction(ChainHash tx_id)
+  /**
+   * The transaction and its unconfirmed parents, in the order to send them
+   */
+  public List<Transaction> getTxClusterForTransaction(ChainHash tx_id)
   {
-    for(TXCluster cluster : priority_map.values())
+    // The tx is also in the clusters of its children, so take the smallest
+    TXCluster found = null;
+    synchronized(this)
     {
-      if (cluster.tx_set.contains(tx_id)) return cluster.tx_list;
+      for(TXCluster cluster : cluster_index.get(tx_id))
+      {
+        if ((found == null) || (cluster.tx_list.size() < found.tx_list.size()))
+        {
+          found = cluster;
+        }
+      }
+    }
+    if (found == null) return null;
+    return found.tx_list;
+  }
+
+  /**
+   * The current priority map, copying it if it has changed
+   */
+  private PrioritySnapshot getPrioritySnapshot()
+  {
+    PrioritySnapshot snap = priority_snapshot;
+    if (snap != null) return snap;
+
+    synchronized(this)
+    {
+      if (priority_snapshot == null)
+      {
+        long t1 = System.nanoTime();
+        priority_snapshot = new PrioritySnapshot(utxo_for_pri_map, priority_map);
+        TimeRecord.record(t1, "mempool:snapshot");
+      }
+      return priority_snapshot;
+    }
+  }
+
+  /**
+   * The priority map for last_utxo, rebuilding it if it is for some other utxo root
+   */
+  private PrioritySnapshot getPrioritySnapshot(ChainHash last_utxo, MetricLog mlog)
+  {
+    PrioritySnapshot snap = getPrioritySnapshot();
+    if (last_utxo.equals(snap.utxo_root))
+    {
+      mlog.set("priority_map_rebuild", 0);
+      return snap;
+    }
+
+    synchronized(this)
+    {
+      if (!last_utxo.equals(utxo_for_pri_map))
+      {
+        mlog.set("priority_map_rebuild", 1);
+
+        try(MetricLog sub_log = new MetricLog(mlog,"rebuild"))
+        {
+          sub_log.setOperation("priority_map_rebuild");
+          sub_log.setModule("mem_pool");
+          updatePriorityMap(last_utxo, takeTickleBlocks());
+        }
+      }
+      else
+      {
+        mlog.set("priority_map_rebuild", 0);
+      }
+      return getPrioritySnapshot();
     }
-    return null;
   }
 
-  public synchronized List<Transaction> getTransactionsForBlock(ChainHash last_utxo, int max_size)
+  /**
+   * Picks transactions for a block by package fee rate.
+   *
+   * Each tx is considered along with its ancestors not yet in the pool's block.
+   * As packages go in, the fee rate of their descendants is recomputed without
+   * the ancestors that are now included, so a child is judged by what it actually
+   * adds.  Stops early once the template time budget is used up.
+   */
+  public List<Transaction> getTransactionsForBlock(ChainHash last_utxo, int max_size)
   {
     try(MetricLog mlog = new MetricLog(); )
     {
@@ -159,74 +272,117 @@ public class MemPool
       mlog.set("shard_id", chain_state_source.getShardId());
 
       List<Transaction> block_list = new ArrayList<Transaction>();
-      Set<ChainHash> included_txs = new HashSet<>();
 
+      PrioritySnapshot snap = getPrioritySnapshot(last_utxo, mlog);
 
-      if (!last_utxo.equals(utxo_for_pri_map))
+      long t1 = System.nanoTime();
+      long deadline = t1 + template_budget_ms * 1000000L;
+
+      // Every tx in any cluster, and who depends on it
+      HashMap<ChainHash, TemplateEntry> entry_map = new HashMap<>();
+      TreeSet<TemplateEntry> queue = new TreeSet<>();
+      for(TXCluster cluster : snap.priority_map.values())
       {
-        mlog.set("priority_map_rebuild", 1);
+        TemplateEntry target = getTemplateEntry(entry_map, cluster.tx_list.get(cluster.tx_list.size()-1));
+        target.cluster = cluster;
+        target.mod_size = cluster.total_size;
+        target.mod_fee = cluster.total_fee;
 
-        try(MetricLog sub_log = new MetricLog(mlog,"rebuild"))
+        for(Transaction tx : cluster.tx_list)
         {
-          sub_log.setOperation("priority_map_rebuild");
-          sub_log.setModule("mem_pool");
-          rebuildPriorityMap(last_utxo);
+          TemplateEntry e = getTemplateEntry(entry_map, tx);
+          if (e != target) e.descendants.add(target);
         }
       }
-      else
+      for(TemplateEntry e : entry_map.values())
       {
-        mlog.set("priority_map_rebuild", 0);
+        if (e.cluster != null) queue.add(e);
       }
 
       int size = 0;
       int low_fee_size = 0;
+      long fee = 0L;
+      int packages = 0;
+      int failures = 0;
+      boolean out_of_time = false;
 
-
-      TreeMultimap<Double, TXCluster> priority_map_copy = TreeMultimap.<Double, TXCluster>create();
-      priority_map_copy.putAll(priority_map);
-
-      while (priority_map_copy.size() > 0)
+      while(!queue.isEmpty())
       {
-        Map.Entry<Double, Collection<TXCluster> > last_entry = priority_map_copy.asMap().pollLastEntry();
+        if (System.nanoTime() > deadline)
+        {
+          out_of_time = true;
+          break;
+        }
+        TemplateEntry best = queue.pollFirst();
 
-        double ratio = last_entry.getKey();
-        boolean low_fee = false;
-        if (ratio < Globals.LOW_FEE) low_fee=true;
+        boolean low_fee = (best.getRatio() < Globals.LOW_FEE);
+        // Everything after this is low fee too
+        if ((low_fee) && (low_fee_size >= low_fee_max)) break;
 
-        Collection<TXCluster> list = last_entry.getValue();
-        for (TXCluster cluster : list)
+        if (size + best.mod_size > max_size)
         {
-          if (size + cluster.total_size <= max_size)
+          failures++;
+          if ((failures > MAX_TEMPLATE_FAILURES) && (size + TEMPLATE_NEARLY_FULL > max_size)) break;
+          continue;
+        }
+        failures = 0;
+        packages++;
+
+        for(Transaction tx : best.cluster.tx_list)
+        {
+          TemplateEntry e = entry_map.get(new ChainHash(tx.getTxHash()));
+          if (e.included) continue;
+
+          e.included = true;
+          queue.remove(e);
+          block_list.add(tx);
+          size += e.size;
+          fee += e.fee;
+          if (low_fee)
           {
-            if ((!low_fee) || (low_fee_size < low_fee_max))
-            {
-              for (Transaction tx : cluster.tx_list)
-              {
-                ChainHash tx_hash = new ChainHash(tx.getTxHash());
-                if (!included_txs.contains(tx_hash))
-                {
-                  block_list.add(tx);
-                  included_txs.add(tx_hash);
-                  int sz = tx.toByteString().size();
-                  size += sz;
-                  if (low_fee)
-                  {
-                    low_fee_size += sz;
-                  }
-                }
-              }
-            }
+            low_fee_size += e.size;
+          }
 
+          for(TemplateEntry d : e.descendants)
+          {
+            if (d.included) continue;
+            // Has to come out of the set while its sort key changes
+            boolean queued = queue.remove(d);
+            d.mod_size -= e.size;
+            d.mod_fee -= e.fee;
+            if (queued) queue.add(d);
           }
         }
       }
+      TimeRecord.record(t1, "mempool:block_template");
+
       mlog.set("size", size);
       mlog.set("tx_count", block_list.size());
+      mlog.set("packages", packages);
+      mlog.set("fee", fee);
+      mlog.set("template_ms", (System.nanoTime() - t1) / 1000000L);
+      mlog.set("out_of_time", out_of_time ? 1 : 0);
+      if (out_of_time)
+      {
+        logger.info(String.format("Block template hit the %d ms time budget with %d transactions", template_budget_ms, block_list.size()));
+      }
       return block_list;
     }
 
   }
 
+  private TemplateEntry getTemplateEntry(HashMap<ChainHash, TemplateEntry> entry_map, Transaction tx)
+  {
+    ChainHash tx_hash = new ChainHash(tx.getTxHash());
+    TemplateEntry e = entry_map.get(tx_hash);
+    if (e == null)
+    {
+      e = new TemplateEntry(tx_hash, tx.getSerializedSize(), getInner(tx).getFee());
+      entry_map.put(tx_hash, e);
+    }
+    return e;
+  }
+
   /**
    * @return true iff this seems to be a new and valid tx
    */
@@ -234,105 +390,111 @@ public class MemPool
   {
     try(MetricLog mlog = new MetricLog())
     {
+      mlog.setOperation("add_transaction");
+      mlog.setModule("mem_pool");
+      mlog.set("added", 0);
 
       long t1 = System.nanoTime();
       Validation.checkTransactionBasics(tx, false);
       mlog.set("basic_validation", 1);
       TimeRecord.record(t1, "mempool:tx_validation");
 
-      long t_lock = System.nanoTime();
-      synchronized(this)
+      if ((p2p_source) && (!accepts_p2p_tx))
       {
-        TimeRecord.record(t_lock, "mempool:have_lock");
-        mlog.setOperation("add_transaction");
-        mlog.setModule("mem_pool");
-        mlog.set("added", 0);
-
-        if ((p2p_source) && (!accepts_p2p_tx))
-        {
-          mlog.set("reject_p2p", 1);
-          return false;
-        }
-
-        ChainHash tx_hash = new ChainHash(tx.getTxHash());
-        mlog.set("tx_id", tx_hash.toString());
-        if (known_transactions.containsKey(tx_hash))
-        {
-          mlog.set("already_known", 1);
-          return false;
-        }
+        mlog.set("reject_p2p", 1);
+        return false;
+      }
 
-        if (known_transactions.size() >= MEM_POOL_MAX)
-        {
-          throw new ValidationException("mempool is full");
-        }
+      ChainHash tx_hash = new ChainHash(tx.getTxHash());
+      mlog.set("tx_id", tx_hash.toString());
+      if (known_transactions.containsKey(tx_hash))
+      {
+        mlog.set("already_known", 1);
+        return false;
+      }
 
-        TransactionMempoolInfo info = new TransactionMempoolInfo(tx);
+      TransactionMempoolInfo info = new TransactionMempoolInfo(tx);
 
-        TransactionInner inner = info.inner;
-        double tx_ratio = (double) inner.getFee() / (double)tx.toByteString().size();
+      TransactionInner inner = info.inner;
+      double tx_ratio = (double) inner.getFee() / (double)tx.getSerializedSize();
 
-        mlog.set("fee", inner.getFee());
-        mlog.set("fee_ratio", tx_ratio);
+      mlog.set("fee", inner.getFee());
+      mlog.set("fee_ratio", tx_ratio);
+      boolean low_fee = (tx_ratio < Globals.LOW_FEE);
+      if (low_fee)
+      {
+        mlog.set("low_fee", 1);
+      }
+      checkPoolSize(low_fee);
 
-        if (tx_ratio < Globals.LOW_FEE)
-        {
-          mlog.set("low_fee", 1);
+      HashSet<OutPoint> used_outputs = new HashSet<>();
+      TimeRecord.record(t1, "mempool:p1");
 
-          if (known_transactions.size() >= MEM_POOL_MAX_LOW)
-          {
-            throw new ValidationException("mempool is too full for low fee transactions");
-          }
-        }
+      long t3 = System.nanoTime();
+      mlog.set("input_count", inner.getInputsCount());
+      mlog.set("output_count", inner.getOutputsCount());
 
+      for (TransactionInput in : inner.getInputsList())
+      {
+        used_outputs.add(new OutPoint(in));
+      }
+      // Early out, checked again under the lock
+      checkDoubleSpend(used_outputs, tx_hash);
+      TimeRecord.record(t3, "mempool:input_proc");
 
-        TreeSet<String> used_outputs = new TreeSet<>();
-        TimeRecord.record(t1, "mempool:p1");
+      long output_total = inner.getFee();
+      for(TransactionOutput out : inner.getOutputsList())
+      {
+        output_total += out.getValue();
+      }
+      mlog.set("total_output", output_total);
+
+      // Build the cluster without the lock.  If the priority map gets
+      // rebuilt while we are doing this, do it again under the lock.
+      long cluster_rebuild_count = rebuild_count;
+      ChainHash cluster_utxo = utxo_for_pri_map;
+      TXCluster cluster = null;
+      if (cluster_utxo != null)
+      {
+        long t2 = System.nanoTime();
+        cluster = buildTXCluster(tx, cluster_utxo);
+        TimeRecord.record(t2, "mempool:build_cluster");
+      }
 
-        long t3 = System.nanoTime();
-        mlog.set("input_count", inner.getInputsCount());
-        mlog.set("output_count", inner.getOutputsCount());
+      long t_lock = System.nanoTime();
+      synchronized(this)
+      {
+        TimeRecord.record(t_lock, "mempool:have_lock");
 
-        for (TransactionInput in : inner.getInputsList())
+        if (known_transactions.containsKey(tx_hash))
         {
-          String key = HexUtil.getHexString(in.getSrcTxId()) + ":" + in.getSrcTxOutIdx();
-          used_outputs.add(key);
+          mlog.set("already_known", 1);
+          return false;
+        }
+        checkPoolSize(low_fee);
+        checkDoubleSpend(used_outputs, tx_hash);
 
-          if (claimed_outputs.containsKey(key))
+        if (cluster_rebuild_count != rebuild_count)
+        {
+          mlog.set("cluster_redo", 1);
+          cluster = null;
+          if (utxo_for_pri_map != null)
           {
-            if (!claimed_outputs.get(key).equals(tx_hash))
-            {
-              throw new ValidationException("Discarding as double-spend");
-            }
+            long t2 = System.nanoTime();
+            cluster = buildTXCluster(tx, utxo_for_pri_map);
+            TimeRecord.record(t2, "mempool:build_cluster");
           }
         }
-        TimeRecord.record(t3, "mempool:input_proc");
-        long output_total = inner.getFee();
-        for(TransactionOutput out : inner.getOutputsList())
-        {
-          output_total += out.getValue();
-        }
-        mlog.set("total_output", output_total);
 
-        if (utxo_for_pri_map != null)
+        if (cluster != null)
         {
-          long t2 = System.nanoTime();
-          TXCluster cluster = buildTXCluster(tx);
           mlog.set("cluster_tx_count", cluster.tx_list.size());
           mlog.set("cluster_tx_size", cluster.total_size);
-          TimeRecord.record(t2, "mempool:build_cluster");
-          if (cluster == null)
-          {
-            throw new ValidationException("Unable to find a tx cluster that makes this work");
-          }
-          double ratio = (double) cluster.total_fee / (double) cluster.total_size;
 
-          //Random rnd = new Random();
-          //ratio = ratio * 1e9 + rnd.nextDouble();
           long t4 = System.nanoTime();
-          priority_map.put(ratio, cluster);
+          putCluster(cluster);
+          priority_snapshot = null;
           TimeRecord.record(t4, "mempool:primapput");
-
         }
         TimeRecord.record(t1, "mempool:p2");
 
@@ -340,24 +502,50 @@ public class MemPool
 
         for (AddressSpecHash spec_hash : info.involved_addresses)
         {
-          address_tx_map.put(spec_hash, tx_hash);
+          address_tx_map.computeIfAbsent(spec_hash, k -> ConcurrentHashMap.newKeySet()).add(tx_hash);
         }
 
         // Claim outputs used by inputs
-        for (String key : used_outputs)
+        for (OutPoint key : used_outputs)
         {
           claimed_outputs.put(key, tx_hash);
         }
         TimeRecord.record(t1, "mempool:tx_add");
         TimeRecord.record(t1, "mempool:p3");
+      }
 
-        for(MemPoolTickleInterface listener : mempool_listener)
-        {
-          listener.tickleMemPool(tx, info.involved_addresses);
-        }
+      for(MemPoolTickleInterface listener : mempool_listener)
+      {
+        listener.tickleMemPool(tx, info.involved_addresses);
+      }
+
+      mlog.set("added", 1);
+      return true;
+    }
+  }
+
+  private void checkPoolSize(boolean low_fee)
+    throws ValidationException
+  {
+    if (known_transactions.size() >= MEM_POOL_MAX)
+    {
+      throw new ValidationException("mempool is full");
+    }
+    if ((low_fee) && (known_transactions.size() >= MEM_POOL_MAX_LOW))
+    {
+      throw new ValidationException("mempool is too full for low fee transactions");
+    }
+  }
 
-        mlog.set("added", 1);
-        return true;
+  private void checkDoubleSpend(Set<OutPoint> used_outputs, ChainHash tx_hash)
+    throws ValidationException
+  {
+    for (OutPoint key : used_outputs)
+    {
+      ChainHash claim = claimed_outputs.get(key);
+      if ((claim != null) && (!claim.equals(tx_hash)))
+      {
+        throw new ValidationException("Discarding as double-spend");
       }
     }
   }
@@ -366,7 +554,10 @@ public class MemPool
   {
     logger.log(Level.FINE, String.format("Mempool.rebuildPriorityMap(%s)", new_utxo_root));
     utxo_for_pri_map = new_utxo_root;
+    rebuild_count++;
     priority_map.clear();
+    cluster_index.clear();
+    priority_snapshot = null;
 
     LinkedList<ChainHash> remove_list = new LinkedList<>();
 
@@ -376,7 +567,7 @@ public class MemPool
       TXCluster cluster;
       try
       {
-        cluster = buildTXCluster(tx);
+        cluster = buildTXCluster(tx, new_utxo_root);
       }
       catch (ValidationException e)
       {
@@ -386,39 +577,169 @@ public class MemPool
       if (cluster == null)
       {
         remove_list.add(new ChainHash(tx.getTxHash()));
-        TransactionInner inner = TransactionUtil.getInner(tx);
-        for (TransactionInput in : inner.getInputsList())
-        {
-          String key = HexUtil.getHexString(in.getSrcTxId()) + ":" + in.getSrcTxOutIdx();
-          claimed_outputs.remove(key);
-        }
       }
       else
       {
-        double ratio = (double) cluster.total_fee / (double) cluster.total_size;
-        priority_map.put(ratio, cluster);
+        putCluster(cluster);
       }
     }
     logger.log(Level.FINER, String.format("Removing %d transactions from mempool", remove_list.size()));
 
     for (ChainHash h : remove_list)
     {
-      TransactionMempoolInfo info = known_transactions.remove(h);
+      removeTransaction(h);
+    }
+    logger.log(Level.FINER, String.format("Remaining in mempool: %d", known_transactions.size()));
+
+  }
+
+  /**
+   * Move the priority map forward by one block, which must build on utxo_for_pri_map.
+   *
+   * Transactions in the block are dropped, as are ones that spend an output the block spent.
+   * Only clusters that include one of those are rebuilt.  Every other cluster only uses
+   * outputs the block didn't touch, so it is still good on the new utxo root.
+   */
+  private synchronized void applyBlock(Block blk)
+  {
+    ChainHash new_utxo_root = new ChainHash(blk.getHeader().getUtxoRootHash());
+    logger.log(Level.FINE, String.format("Mempool.applyBlock(%s)", new_utxo_root));
+
+    HashSet<ChainHash> block_txs = new HashSet<>();
+    HashSet<ChainHash> dead = new HashSet<>();
+    for(Transaction tx : blk.getTransactionsList())
+    {
+      ChainHash tx_id = new ChainHash(tx.getTxHash());
+      block_txs.add(tx_id);
+      if (known_transactions.containsKey(tx_id)) dead.add(tx_id);
+    }
+    for(Transaction tx : blk.getTransactionsList())
+    {
+      for (TransactionInput in : TransactionUtil.getInner(tx).getInputsList())
+      {
+        ChainHash claim = claimed_outputs.get(new OutPoint(in));
+        if ((claim != null) && (!block_txs.contains(claim)))
+        {
+          // Someone else got there first
+          dead.add(claim);
+        }
+      }
+    }
+
+    utxo_for_pri_map = new_utxo_root;
+    rebuild_count++;
+    priority_snapshot = null;
+
+    int rebuilt = 0;
+    HashSet<ChainHash> newly_dead = new HashSet<>(dead);
+    while(newly_dead.size() > 0)
+    {
+      for (ChainHash h : newly_dead)
+      {
+        removeTransaction(h);
+      }
+
+      // Clusters that use a removed transaction, either confirmed or dead
+      HashSet<TXCluster> affected = new HashSet<>();
+      for (ChainHash h : newly_dead)
+      {
+        affected.addAll(cluster_index.get(h));
+      }
 
-      for (AddressSpecHash spec_hash : info.involved_addresses)
+      newly_dead = new HashSet<>();
+      for (TXCluster old_cluster : affected)
       {
-        address_tx_map.remove(spec_hash, h);
+        removeCluster(old_cluster);
+
+        // Each cluster is for its last transaction
+        Transaction target = old_cluster.tx_list.get(old_cluster.tx_list.size() - 1);
+        ChainHash target_id = new ChainHash(target.getTxHash());
+        if (dead.contains(target_id)) continue;
+
+        try
+        {
+          putCluster(buildTXCluster(target, new_utxo_root));
+          rebuilt++;
+        }
+        catch (ValidationException e)
+        {
+          newly_dead.add(target_id);
+        }
       }
+      dead.addAll(newly_dead);
+    }
+
+    logger.log(Level.FINE, String.format("Mempool block update: removed %d, rebuilt %d clusters, remaining %d",
+      dead.size(), rebuilt, known_transactions.size()));
+  }
 
+  private void putCluster(TXCluster cluster)
+  {
+    priority_map.put(cluster.getRatio(), cluster);
+    for (ChainHash h : cluster.tx_set)
+    {
+      cluster_index.put(h, cluster);
     }
-    logger.log(Level.FINER, String.format("Remaining in mempool: %d", known_transactions.size()));
+  }
+
+  private void removeCluster(TXCluster cluster)
+  {
+    priority_map.remove(cluster.getRatio(), cluster);
+    for (ChainHash h : cluster.tx_set)
+    {
+      cluster_index.remove(h, cluster);
+    }
+  }
+
+  /**
+   * The block after this height is checked under different rules, so clusters
+   * checked for this height might not be good for the next one
+   */
+  private boolean isActivationEdge(int height)
+  {
+    NetworkParams params = chain_state_source.getParams();
+    int next = height + 1;
+    return (next == params.getActivationHeightShards())
+      || (next == params.getActivationHeightTxInValue())
+      || (next == params.getActivationHeightTxOutRequirements())
+      || (next == params.getActivationHeightTxOutExtras());
+  }
+
+  private void removeTransaction(ChainHash h)
+  {
+    TransactionMempoolInfo info = known_transactions.remove(h);
+    if (info == null) return;
+
+    for (TransactionInput in : info.inner.getInputsList())
+    {
+      claimed_outputs.remove(new OutPoint(in), h);
+    }
+
+    for (AddressSpecHash spec_hash : info.involved_addresses)
+    {
+      address_tx_map.computeIfPresent(spec_hash, (k, set) ->
+      {
+        set.remove(h);
+        if (set.isEmpty()) return null;
+        return set;
+      });
+    }
+  }
 
+  /**
+   * Parsed inner of a transaction, from the pool if we have it there
+   */
+  private TransactionInner getInner(Transaction tx)
+  {
+    TransactionMempoolInfo info = known_transactions.get(new ChainHash(tx.getTxHash()));
+    if (info != null) return info.inner;
+    return TransactionUtil.getInner(tx);
   }
 
-  private static void addInputRequirements(Transaction tx, HashMultimap<ChainHash, ChainHash> depends_on_map, List<TransactionInput> needed_inputs)
+  private void addInputRequirements(Transaction tx, HashMultimap<ChainHash, ChainHash> depends_on_map, List<TransactionInput> needed_inputs)
   {
     ChainHash tx_id = new ChainHash(tx.getTxHash());
-    TransactionInner inner = TransactionUtil.getInner(tx);
+    TransactionInner inner = getInner(tx);
     for (TransactionInput in : inner.getInputsList())
     {
       depends_on_map.put(tx_id, new ChainHash(in.getSrcTxId()));
@@ -479,7 +800,7 @@ public class MemPool
    * Probably need to actually build the graph and do graph
    * theory things.
    */
-  private TXCluster buildTXCluster(Transaction target_tx) throws ValidationException
+  private TXCluster buildTXCluster(Transaction target_tx, ChainHash utxo_root) throws ValidationException
   {
     HashMap<ChainHash, Transaction> working_map = new HashMap<>();
 
@@ -502,16 +823,17 @@ public class MemPool
 
         ByteString key = UtxoUpdateBuffer.getKey(in);
         t1 = System.nanoTime();
-        ByteString matching_output = utxo_hashed_trie.getLeafData(utxo_for_pri_map.getBytes(), key);
+        ByteString matching_output = utxo_hashed_trie.getLeafData(utxo_root.getBytes(), key);
         TimeRecord.record(t1, "utxo_lookup");
         if (matching_output == null)
         {
-          if (known_transactions.containsKey(needed_tx))
+          TransactionMempoolInfo found_info = known_transactions.get(needed_tx);
+          if (found_info != null)
           {
             t1 = System.nanoTime();
             // TODO Check shard IDs
-            Transaction found_tx = known_transactions.get(needed_tx).tx;
-            TransactionInner found_tx_inner = TransactionUtil.getInner(found_tx);
+            Transaction found_tx = found_info.tx;
+            TransactionInner found_tx_inner = found_info.inner;
 
             TransactionOutput tx_out = found_tx_inner.getOutputs( in.getSrcTxOutIdx() );
             if (!shard_cover_set.contains(tx_out.getTargetShard()))
@@ -543,7 +865,7 @@ public class MemPool
     TimeRecord.record(t1, "get_order");
 
     t1 = System.nanoTime();
-    UtxoUpdateBuffer test_buffer = new UtxoUpdateBuffer(utxo_hashed_trie, utxo_for_pri_map);
+    UtxoUpdateBuffer test_buffer = new UtxoUpdateBuffer(utxo_hashed_trie, utxo_root);
     int header_version = 1;
     if (chain_state_source.getParams().getActivationHeightShards() <= chain_state_source.getHeight() + 1)
     {
@@ -585,7 +907,7 @@ public class MemPool
     final ImmutableSet<ChainHash> tx_set;
     int total_size;
     long total_fee;
-    final String rnd_val;
+    final long rnd_val;
 
     public TXCluster(List<Transaction> tx_in_list)
     {
@@ -598,32 +920,194 @@ public class MemPool
 
       for (Transaction t : tx_in_list)
       {
-        total_size += t.toByteString().size();
+        total_size += t.getSerializedSize();
 
-        TransactionInner inner = TransactionUtil.getInner(t);
+        TransactionInner inner = getInner(t);
         total_fee += inner.getFee();
 
         s.add(new ChainHash(t.getTxHash()));
       }
       tx_set = ImmutableSet.copyOf(s);
-      rnd_val = "" + new Random().nextDouble();
+      rnd_val = ThreadLocalRandom.current().nextLong();
+    }
+
+    public double getRatio()
+    {
+      return (double) total_fee / (double) total_size;
     }
 
     //Don't care about ordering, just want something
     public int compareTo(TXCluster o)
     {
-      return rnd_val.compareTo(o.rnd_val);
+      return Long.compare(rnd_val, o.rnd_val);
+    }
+  }
+
+  /**
+   * A transaction during block template building, with the size and fee of it plus
+   * its ancestors that are not in the template yet.  Only transactions that
+   * are the target of a cluster get queued.
+   */
+  private static final class TemplateEntry implements Comparable<TemplateEntry>
+  {
+    final ChainHash tx_hash;
+    final int size;
+    final long fee;
+    final ArrayList<TemplateEntry> descendants = new ArrayList<>();
+
+    TXCluster cluster;
+    int mod_size;
+    long mod_fee;
+    boolean included;
+
+    TemplateEntry(ChainHash tx_hash, int size, long fee)
+    {
+      this.tx_hash = tx_hash;
+      this.size = size;
+      this.fee = fee;
+    }
+
+    double getRatio()
+    {
+      return (double) mod_fee / (double) mod_size;
+    }
+
+    // Best fee rate first
+    public int compareTo(TemplateEntry o)
+    {
+      int c = Double.compare(o.getRatio(), getRatio());
+      if (c != 0) return c;
+      c = Long.compare(cluster.rnd_val, o.cluster.rnd_val);
+      if (c != 0) return c;
+      return tx_hash.compareTo(o.tx_hash);
+    }
+  }
+
+  /**
+   * Copy of the priority map that is never changed
+   */
+  private static class PrioritySnapshot
+  {
+    final ChainHash utxo_root;
+    final TreeMultimap<Double, TXCluster> priority_map;
+
+    PrioritySnapshot(ChainHash utxo_root, TreeMultimap<Double, TXCluster> src)
+    {
+      this.utxo_root = utxo_root;
+      this.priority_map = TreeMultimap.<Double, TXCluster>create();
+      this.priority_map.putAll(src);
+    }
+  }
+
+  /**
+   * An output being spent, as a map key.  Keeps the tx id ByteString from the
+   * input rather than making a copy or a string of it.
+   */
+  private static final class OutPoint
+  {
+    private final ByteString tx_id;
+    private final int idx;
+
+    OutPoint(TransactionInput in)
+    {
+      this.tx_id = in.getSrcTxId();
+      this.idx = in.getSrcTxOutIdx();
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return tx_id.hashCode() * 31 + idx;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof OutPoint)) return false;
+      OutPoint other = (OutPoint) o;
+      return (idx == other.idx) && (tx_id.equals(other.tx_id));
     }
   }
 
   private volatile ChainHash tickle_hash = null;
 
+  // New tip blocks since the last tickler pass
+  private LinkedList<TickleBlock> tickle_block_list = new LinkedList<>();
+  public static final int MAX_TICKLE_BLOCKS = 16;
+
+  /**
+   * Rebuild the priority map for this utxo root
+   */
   public void tickleBlocks(ChainHash utxo_root_hash)
   {
     tickle_hash = utxo_root_hash;
     tickler.wake();
   }
 
+  /**
+   * A new chain tip.  If the block builds on the utxo root the priority map is for,
+   * only the parts the block changed are updated.
+   */
+  public void tickleBlocks(ChainHash prev_utxo_root, Block blk)
+  {
+    synchronized(tickle_block_list)
+    {
+      tickle_block_list.add(new TickleBlock(prev_utxo_root, blk));
+      // If we drop some, the chain won't line up and we'll do a full rebuild
+      while (tickle_block_list.size() > MAX_TICKLE_BLOCKS) tickle_block_list.poll();
+    }
+    tickleBlocks(new ChainHash(blk.getHeader().getUtxoRootHash()));
+  }
+
+  /**
+   * Get the priority map to target_utxo, with the blocks if they line up or
+   * with a full rebuild otherwise
+   */
+  private synchronized void updatePriorityMap(ChainHash target_utxo, List<TickleBlock> blocks)
+  {
+    for(TickleBlock tb : blocks)
+    {
+      if (utxo_for_pri_map == null) break;
+      if (target_utxo.equals(utxo_for_pri_map)) break;
+      if (isActivationEdge(tb.blk.getHeader().getBlockHeight())) continue;
+
+      if (utxo_for_pri_map.equals(tb.prev_utxo_root))
+      {
+        long t1 = System.nanoTime();
+        applyBlock(tb.blk);
+        TimeRecord.record(t1, "mempool:apply_block");
+      }
+    }
+    if (!target_utxo.equals(utxo_for_pri_map))
+    {
+      long t1 = System.nanoTime();
+      rebuildPriorityMap(target_utxo);
+      TimeRecord.record(t1, "mempool:rebuild");
+    }
+  }
+
+  private List<TickleBlock> takeTickleBlocks()
+  {
+    synchronized(tickle_block_list)
+    {
+      ArrayList<TickleBlock> blocks = new ArrayList<>(tickle_block_list);
+      tickle_block_list.clear();
+      return blocks;
+    }
+  }
+
+  private static class TickleBlock
+  {
+    final ChainHash prev_utxo_root;
+    final Block blk;
+
+    TickleBlock(ChainHash prev_utxo_root, Block blk)
+    {
+      this.prev_utxo_root = prev_utxo_root;
+      this.blk = blk;
+    }
+  }
+
   private Peerage peerage = null;
 
   public void setPeerage(Peerage peerage)
@@ -686,10 +1170,11 @@ public class MemPool
     public void runPass()
       throws Exception
     {
-        if (tickle_hash != null)
+        ChainHash target = tickle_hash;
+        if (target != null)
         {
-          rebuildPriorityMap(tickle_hash);
           tickle_hash = null;
+          updatePriorityMap(target, takeTickleBlocks());
         }
     }
 
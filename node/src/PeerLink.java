@@ -1,16 +1,19 @@
 package snowblossom.node;
 
 import com.google.common.collect.MultimapBuilder;
-import com.google.common.collect.SetMultimap;
 import com.google.common.collect.ListMultimap;
+import com.google.protobuf.ByteString;
+import duckutil.LRUCache;
 import duckutil.MetricLog;
 import io.grpc.ManagedChannel;
 import io.grpc.stub.StreamObserver;
 import java.util.List;
-import java.util.HashSet;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -39,15 +42,23 @@ public class PeerLink implements StreamObserver<PeerMessage>
   private boolean got_first_tip = false;
   private PeerInfo peer_info; //set immediately when we are client, set eventually otherwise
 
-  private Object plan_lock = new Object();
+  // Hashes we have asked this peer for previews back from, and when
+  private LRUCache<ChainHash, Long> preview_req_map = new LRUCache<>(2000);
 
-  // Set of hashes that we have some sort of a plan to get already
-  private HashSet<ChainHash> plan_block_set = new HashSet<>();
+  // Height of the last tip this peer sent for each shard
+  private ConcurrentHashMap<Integer, Integer> tip_height_map = new ConcurrentHashMap<>();
 
-  // Maps hash of a block to the set of blocks we want to download
-  // once we have it
-  private SetMultimap<ChainHash, ChainHash> desire_block_map =
-                     MultimapBuilder.hashKeys().hashSetValues().build();
+  private volatile boolean tx_inventory_peer;
+
+  // Transactions the peer is known to have, so we don't announce them again.
+  // Also the lock for tx_inv_queue.
+  private LRUCache<ChainHash, Boolean> known_tx_map = new LRUCache<>(25000);
+
+  // Transactions to announce on the next inventory flush
+  private LinkedHashSet<ChainHash> tx_inv_queue = new LinkedHashSet<>();
+
+  // Compact blocks waiting on transactions we asked this peer for
+  private LRUCache<ChainHash, CompactBlocks.PartialBlock> partial_block_map = new LRUCache<>(16);
 
   public PeerLink(SnowBlossomNode node, StreamObserver<PeerMessage> sink)
   {
@@ -125,6 +136,8 @@ public class PeerLink implements StreamObserver<PeerMessage>
       {
         Transaction tx = msg.getTx();
         mlog.set("type","tx");
+        markKnownTx(new ChainHash(tx.getTxHash()));
+        node.getTxBroadcaster().txReceived(new ChainHash(tx.getTxHash()));
         //logger.info("TX: " + new ChainHash(tx.getTxHash()));
         try
         {
@@ -169,6 +182,7 @@ public class PeerLink implements StreamObserver<PeerMessage>
           return;
         }
         node.getPeerage().reportTip();
+        tx_inventory_peer = tip.getTxInventory();
 
         try(MetricLog mlog_sub = new MetricLog(mlog, "tip_trust"))
         {
@@ -206,6 +220,7 @@ public class PeerLink implements StreamObserver<PeerMessage>
           mlog.set("head_hash", new ChainHash(header.getSnowHash()).toString());
           mlog.set("head_shard", header.getShardId());
           mlog.set("head_height", header.getBlockHeight());
+          tip_height_map.put(header.getShardId(), header.getBlockHeight());
           considerBlockHeader(header, header.getShardId());
           node.getPeerage().setHighestHeader(header);
         }
@@ -234,42 +249,100 @@ public class PeerLink implements StreamObserver<PeerMessage>
         Block blk = node.getDB().getBlockMap().get(hash.getBytes());
         if (blk != null)
         {
-          writeMessage( PeerMessage.newBuilder().setBlock(blk).build() );
+          if (msg.getReqBlock().getCompact())
+          {
+            mlog.set("compact", 1);
+            writeMessage( PeerMessage.newBuilder().setCompactBlock(CompactBlocks.compact(blk)).build() );
+          }
+          else
+          {
+            writeMessage( PeerMessage.newBuilder().setBlock(blk).build() );
+          }
         }
       }
       else if (msg.hasBlock())
       {
         mlog.set("type","block");
         // Getting a block, we probably asked for it.  See if we can eat it.
-        Block blk = msg.getBlock();
-        synchronized(desire_block_map)
+        receiveBlock(msg.getBlock(), mlog);
+      }
+      else if (msg.hasCompactBlock())
+      {
+        mlog.set("type","compact_block");
+        CompactBlock cb = msg.getCompactBlock();
+        BlockHeader header = cb.getHeader();
+        // Check the work before we go to any trouble
+        Validation.checkBlockHeaderBasics(node.getParams(), header, false);
+        mlog.set("hash", new ChainHash(header.getSnowHash()).toString());
+
+        MemPool mem_pool = null;
+        if (node.getActiveShards().contains(header.getShardId()))
         {
-          desire_block_map.remove(
-            new ChainHash(blk.getHeader().getPrevBlockHash()),
-            new ChainHash(blk.getHeader().getSnowHash()));
+          mem_pool = node.getMemPool(header.getShardId());
         }
+        CompactBlocks.PartialBlock pb = new CompactBlocks.PartialBlock(cb, mem_pool);
+        List<Integer> missing = pb.getMissing();
+        mlog.set("tx_count", cb.getShortTxIdsCount() + 1);
+        mlog.set("missing", missing.size());
 
-        mlog.set("hash", new ChainHash(blk.getHeader().getSnowHash()).toString());
-        try
+        if (missing.size() == 0)
+        {
+          receiveCompactBlock(pb, mlog);
+        }
+        else
         {
-          logger.fine(String.format("Got block shard:%d height:%d %s ",
-            blk.getHeader().getShardId(),
-            blk.getHeader().getBlockHeight(),
-            new ChainHash(blk.getHeader().getSnowHash()).toString() ));
-          // will only open if we are actually interested in this shard
-          node.openShard(blk.getHeader().getShardId());
-          if (node.getBlockIngestor(blk.getHeader().getShardId()).ingestBlock(blk))
-          { // we could eat it, think about getting more blocks
-            scanForBlocksToRequest(new ChainHash(blk.getHeader().getSnowHash()));
-
-            // Think about getting more blocks from desire map
+          synchronized(partial_block_map)
+          {
+            partial_block_map.put(pb.getBlockHash(), pb);
           }
+          writeMessage( PeerMessage.newBuilder()
+            .setReqBlockTxs( RequestBlockTxs.newBuilder()
+              .setBlockHash(header.getSnowHash())
+              .addAllTxIndexes(missing)
+              .build())
+            .build());
         }
-        catch(ValidationException ve)
+      }
+      else if (msg.hasReqBlockTxs())
+      {
+        mlog.set("type","req_block_txs");
+        RequestBlockTxs req = msg.getReqBlockTxs();
+        ChainHash hash = new ChainHash(req.getBlockHash());
+        mlog.set("hash", hash.toString());
+        mlog.set("count", req.getTxIndexesCount());
+
+        Block blk = node.getDB().getBlockMap().get(hash.getBytes());
+        if (blk != null)
         {
-          logger.info("Got a block %s that didn't validate - closing link");
-          close();
-          throw(ve);
+          BlockTxs.Builder block_txs = BlockTxs.newBuilder();
+          block_txs.setBlockHash(req.getBlockHash());
+          for(int idx : req.getTxIndexesList())
+          {
+            if ((idx < 0) || (idx >= blk.getTransactionsCount()))
+            {
+              throw new ValidationException("Block tx index out of range: " + idx);
+            }
+            block_txs.addTransactions(blk.getTransactions(idx));
+          }
+          writeMessage( PeerMessage.newBuilder().setBlockTxs(block_txs.build()).build() );
+        }
+      }
+      else if (msg.hasBlockTxs())
+      {
+        mlog.set("type","block_txs");
+        ChainHash hash = new ChainHash(msg.getBlockTxs().getBlockHash());
+        mlog.set("hash", hash.toString());
+
+        CompactBlocks.PartialBlock pb;
+        synchronized(partial_block_map)
+        {
+          pb = partial_block_map.get(hash);
+          partial_block_map.remove(hash);
+        }
+        if (pb != null)
+        {
+          pb.fill(msg.getBlockTxs());
+          receiveCompactBlock(pb, mlog);
         }
       }
       else if (msg.hasReqHeader())
@@ -350,6 +423,49 @@ public class PeerLink implements StreamObserver<PeerMessage>
 
         node.getShardUtxoImport().addImportedBlock(msg.getImportBlock());
       }
+      else if (msg.hasTxInv())
+      {
+        mlog.set("type", "tx_inv");
+        mlog.set("count", msg.getTxInv().getTxHashesCount());
+
+        RequestTxData.Builder req = RequestTxData.newBuilder();
+        for(ByteString hash : msg.getTxInv().getTxHashesList())
+        {
+          if (req.getTxHashesCount() >= TxBroadcaster.MAX_INV_SIZE) break;
+          ChainHash tx_id = new ChainHash(hash);
+          markKnownTx(tx_id);
+          if (node.getMemPool().getTransaction(tx_id) != null) continue;
+          if (node.getTxBroadcaster().reserveTx(tx_id, this))
+          {
+            req.addTxHashes(hash);
+          }
+        }
+        mlog.set("req_count", req.getTxHashesCount());
+        if (req.getTxHashesCount() > 0)
+        {
+          writeMessage( PeerMessage.newBuilder().setReqTxData(req.build()).build());
+        }
+      }
+      else if (msg.hasReqTxData())
+      {
+        mlog.set("type", "req_tx_data");
+        mlog.set("count", msg.getReqTxData().getTxHashesCount());
+
+        int sent = 0;
+        for(ByteString hash : msg.getReqTxData().getTxHashesList())
+        {
+          if (sent >= TxBroadcaster.MAX_INV_SIZE) break;
+          ChainHash tx_id = new ChainHash(hash);
+          Transaction tx = node.getMemPool().getTransaction(tx_id);
+          if (tx != null)
+          {
+            markKnownTx(tx_id);
+            writeMessage( PeerMessage.newBuilder().setTx(tx).build());
+            sent++;
+          }
+        }
+        mlog.set("sent", sent);
+      }
       else if (msg.hasReqPreviewChain())
       {
         RequestPreviewChain req = msg.getReqPreviewChain();
@@ -383,6 +499,56 @@ public class PeerLink implements StreamObserver<PeerMessage>
     }
   }
 
+  private void receiveBlock(Block blk, MetricLog mlog)
+    throws Exception
+  {
+    mlog.set("hash", new ChainHash(blk.getHeader().getSnowHash()).toString());
+    if (node.getBlockDownloader().blockReceived(blk, this))
+    {
+      // part of the download, it will get ingested in order
+      mlog.set("download", 1);
+      return;
+    }
+    try
+    {
+      logger.fine(String.format("Got block shard:%d height:%d %s ",
+        blk.getHeader().getShardId(),
+        blk.getHeader().getBlockHeight(),
+        new ChainHash(blk.getHeader().getSnowHash()).toString() ));
+      // will only open if we are actually interested in this shard
+      node.openShard(blk.getHeader().getShardId());
+      if (node.getBlockIngestor(blk.getHeader().getShardId()).ingestBlock(blk))
+      { // we could eat it, children we are downloading might be ready now
+        node.getBlockDownloader().wake();
+      }
+    }
+    catch(ValidationException ve)
+    {
+      logger.info("Got a block %s that didn't validate - closing link");
+      close();
+      throw(ve);
+    }
+  }
+
+  /**
+   * If the short ids matched the wrong transactions, get the full block instead
+   */
+  private void receiveCompactBlock(CompactBlocks.PartialBlock pb, MetricLog mlog)
+    throws Exception
+  {
+    if (!pb.checkMerkle())
+    {
+      logger.fine("Compact block merkle mismatch, requesting full block: " + pb.getBlockHash());
+      mlog.set("compact_mismatch", 1);
+      writeMessage( PeerMessage.newBuilder()
+        .setReqBlock(
+          RequestBlock.newBuilder().setBlockHash(pb.getBlockHash().getBytes()).build())
+        .build());
+      return;
+    }
+    receiveBlock(pb.getBlock(), mlog);
+  }
+
   private void sendCluster(ChainHash tx_id)
   {
     List<Transaction> tx_list = node.getMemPool().getTxClusterForTransaction(tx_id);
@@ -415,85 +581,50 @@ public class PeerLink implements StreamObserver<PeerMessage>
     }
   }
 
-  /** See if we want to do anything with this preview */
+  /**
+   * See if we want to do anything with this preview.
+   * Blocks we don't have go to the BlockDownloader.  If we don't know how to get
+   * back from it to a block we have, ask for more previews going back.
+   */
   private void investigatePreview(BlockPreview bp)
   {
     ChainHash hash = new ChainHash(bp.getSnowHash());
     logger.fine(String.format("Investigating preview s:%d h:%d - %s", bp.getShardId(), bp.getBlockHeight(), hash));
 
-    int shard_id = bp.getShardId();
     if (!node.getInterestShards().contains(bp.getShardId())) return;
-    ChainHash prev = new ChainHash(bp.getPrevBlockHash());
-
-    boolean prev_plan;
-    synchronized(plan_lock)
-    {
-      if (plan_block_set.contains(hash)) return; //already have a plan
-      prev_plan = plan_block_set.contains(prev);
-    }
-
     if (node.getForgeInfo().getSummary(hash) != null) return; //already have it
 
-    if (bp.getBlockHeight() == 0)
-    {
-      logger.info("Requesting block: " + hash);
-        writeMessage( PeerMessage.newBuilder()
-          .setReqBlock(
-            RequestBlock.newBuilder().setBlockHash(hash.getBytes()).build())
-          .build());
+    BlockDownloader downloader = node.getBlockDownloader();
+    ChainHash prev = new ChainHash(bp.getPrevBlockHash());
+    boolean prev_known = downloader.isWanted(prev);
 
-      synchronized(plan_lock)
-      {
-        plan_block_set.add(hash);
-      }
-      return;
-    }
+    // Even if we knew about it already, now we know this peer has it.
+    // If there are plenty of lower blocks to get first, leave this one for later.
+    if (!downloader.addPreview(bp, this)) return;
 
-    boolean prev_db = (node.getForgeInfo().getSummary(prev) != null);
-    if (prev_db)
+    if (bp.getBlockHeight() == 0) return;
+    if (prev_known) return;
+    if (node.getForgeInfo().getSummary(prev) != null) return;
+
+    synchronized(preview_req_map)
     {
-      // Request it now
-      if (node.getBlockIngestor(0).reserveBlock(hash))
-      {
-        logger.info("Requesting block: " + hash);
-        writeMessage( PeerMessage.newBuilder()
-          .setReqBlock(
-            RequestBlock.newBuilder().setBlockHash(hash.getBytes()).build())
-          .build());
-      }
-      synchronized(plan_lock)
+      long tm = System.currentTimeMillis();
+      if (preview_req_map.containsKey(prev) && (preview_req_map.get(prev) + 60000L > tm))
       {
-        plan_block_set.add(hash);
+        return;
       }
-      return;
+      preview_req_map.put(prev, tm);
     }
-    else
-    {
 
-      if (!prev_plan)
-      {
-        // If we don't have a plan to get the previous block
-        // and we don't have the previous block
-        // then request more previews
-
-        logger.info(String.format("Requesting preview at s:%d h:%d - %s", bp.getShardId(), bp.getBlockHeight()-1, prev));
-        writeMessage( PeerMessage.newBuilder()
-          .setReqPreviewChain(
-            RequestPreviewChain.newBuilder()
-              .setStartBlockHash( prev.getBytes() )
-              .setRequestedBlocksBack( Globals.MAX_PREVIEW_CHAIN_LENGTH )
-              .build()
-            )
-           .build());
-      }
-
-    }
-
-    synchronized(plan_lock)
-    {
-      plan_block_set.add(hash);
-      desire_block_map.put(prev, hash);
-    }
+    logger.info(String.format("Requesting preview at s:%d h:%d - %s", bp.getShardId(), bp.getBlockHeight()-1, prev));
+    writeMessage( PeerMessage.newBuilder()
+      .setReqPreviewChain(
+        RequestPreviewChain.newBuilder()
+          .setStartBlockHash( prev.getBytes() )
+          .setRequestedBlocksBack( Globals.MAX_PREVIEW_CHAIN_LENGTH )
+          .build()
+        )
+       .build());
 
   }
 
@@ -514,41 +645,6 @@ public class PeerLink implements StreamObserver<PeerMessage>
   }
 
 
-  /**
-   * This might be pretty slow - maybe not use this so much
-   */
-  private void scanForBlocksToRequest(ChainHash start)
-  {
-    synchronized(desire_block_map)
-    {
-      ChainHash parent = start;
-      //for(ChainHash parent : desire_block_map.keySet())
-      {
-        if (node.getDB().getBlockSummaryMap().get(parent.getBytes())!=null)
-        {
-          for(ChainHash child : desire_block_map.get(parent))
-          {
-            if (node.getDB().getBlockSummaryMap().get(child.getBytes())==null)
-            {
-              if (node.getBlockIngestor(0).reserveBlock(child))
-              {
-                logger.info("Requesting block from desire map: " + child);
-                writeMessage( PeerMessage.newBuilder()
-                  .setReqBlock(
-                    RequestBlock.newBuilder().setBlockHash(child.getBytes()).build())
-                  .build());
-              }
-            }
-
-          }
-
-        }
-      }
-
-    }
-
-  }
-
   /**
    * The basic plan is, keep asking about previous blocks
    * until we get to one we have heard of.  Then we start requesting the blocks.
@@ -616,6 +712,67 @@ public class PeerLink implements StreamObserver<PeerMessage>
     return link_id;
   }
 
+  /**
+   * True if the peer asked for tx inventory rather than full transactions
+   */
+  public boolean isTxInventoryPeer()
+  {
+    return tx_inventory_peer;
+  }
+
+  /**
+   * Announce this transaction on the next flush, unless the peer already has it
+   */
+  public void queueTxInv(ChainHash tx_id)
+  {
+    synchronized(known_tx_map)
+    {
+      if (known_tx_map.containsKey(tx_id)) return;
+      if (tx_inv_queue.size() >= TxBroadcaster.MAX_INV_QUEUE) return;
+      tx_inv_queue.add(tx_id);
+    }
+  }
+
+  private void markKnownTx(ChainHash tx_id)
+  {
+    synchronized(known_tx_map)
+    {
+      known_tx_map.put(tx_id, true);
+      tx_inv_queue.remove(tx_id);
+    }
+  }
+
+  /**
+   * Send what is in the tx inventory queue
+   */
+  public void flushTxInv()
+  {
+    TxInventory.Builder inv = TxInventory.newBuilder();
+    synchronized(known_tx_map)
+    {
+      Iterator<ChainHash> it = tx_inv_queue.iterator();
+      while((it.hasNext()) && (inv.getTxHashesCount() < TxBroadcaster.MAX_INV_SIZE))
+      {
+        ChainHash tx_id = it.next();
+        it.remove();
+        known_tx_map.put(tx_id, true);
+        inv.addTxHashes(tx_id.getBytes());
+      }
+    }
+    if (inv.getTxHashesCount() > 0)
+    {
+      writeMessage( PeerMessage.newBuilder().setTxInv(inv.build()).build());
+    }
+  }
+
+  /**
+   * Height of the last tip the peer sent for the shard, or -1 if none
+   */
+  public int getTipHeight(int shard_id)
+  {
+    return tip_height_map.getOrDefault(shard_id, -1);
+  }
+
   /**
    * Might be null, if we are the server and we haven't gotten a tip yet.
    * Might be lies, we just store whatever the other side sends.
@@ -197,6 +197,7 @@ public class Peerage
 
     tip.setNetworkName(node.getParams().getNetworkName());
     tip.setVersion(Globals.VERSION);
+    tip.setTxInventory(node.getTxBroadcaster().isInventoryRelay());
 
     if (summary != null)
     {
@@ -361,10 +362,15 @@ public class Peerage
     }
   }
 
+  /**
+   * Sends the full transaction to every peer that doesn't get it from tx inventory
+   */
   public void broadcastTransaction(Transaction tx)
   {
+    boolean inv_relay = node.getTxBroadcaster().isInventoryRelay();
     for(PeerLink link : getLinkList())
     {
+      if (inv_relay && link.isTxInventoryPeer()) continue;
       try
       {
         link.writeMessage(PeerMessage.newBuilder().setTx(tx).build());
@@ -26,6 +26,7 @@ import java.util.logging.Logger;
 import duckutil.MetricLog;
 import snowblossom.lib.*;
 import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.IncrementalMerge;
 import snowblossom.proto.*;
 import java.util.Collections;
 
@@ -44,11 +45,15 @@ public class ShardBlockForge
 
   private LRUCache<ChainHash, Boolean> signature_cache = new LRUCache<>(2000);
 
+  // Concepts are fleshed out from several different prev blocks, keep state for each
+  private final IncrementalMerge utxo_merge;
+
   public ShardBlockForge(SnowBlossomNode node)
     throws Exception
   {
     this.node = node;
     this.params = node.getParams();
+    this.utxo_merge = new IncrementalMerge(node.getUtxoHashedTrie(), 32);
 
     this.dancer = new Dancer(node);
 
@@ -695,7 +700,7 @@ public class ShardBlockForge
       }
 
       header_builder.setMerkleRootHash( DigestUtil.getMerkleRootForTxList(tx_list).getBytes());
-      header_builder.setUtxoRootHash( utxo_buffer.simulateUpdates().getBytes());
+      header_builder.setUtxoRootHash( utxo_buffer.simulateUpdates(utxo_merge).getBytes());
 
       block_builder.setHeader(header_builder.build());
 
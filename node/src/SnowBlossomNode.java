@@ -72,7 +72,9 @@ public class SnowBlossomNode
   private MetaMemPool meta_mem_pool;
   private WalletDatabase trustnet_wallet_db;
   private TxBroadcaster tx_broadcaster;
+  private BlockDownloader block_downloader;
   private DBMaintThread db_maint_thread;
+  private UtxoPruner utxo_pruner;
 
   private ImmutableList<Integer> service_ports;
   private ImmutableList<Integer> tls_service_ports;
@@ -108,6 +110,7 @@ public class SnowBlossomNode
 
     setupProfiler();
     setupParams();
+    setupValidation();
     loadDB();
     loadWidgets();
     openShards();
@@ -136,6 +139,24 @@ public class SnowBlossomNode
   }
 
 
+  private void setupValidation()
+  {
+    if (config.isSet("validation_threads"))
+    {
+      SignatureBatch.setThreadCount(config.getInt("validation_threads"));
+    }
+    logger.info(String.format("Signature validation threads: %d", SignatureBatch.getThreadCount()));
+
+    if (config.isSet("signature_cache_mb"))
+    {
+      SignatureCache.setMaxBytes(config.getInt("signature_cache_mb") * 1048576L);
+    }
+
+    HashedTrie.setParallelMerge(
+      config.getIntWithDefault("trie_merge_threads", HashedTrie.getMergeThreads()),
+      config.getIntWithDefault("trie_parallel_merge_min", HashedTrie.getParallelMergeMin()));
+  }
+
   private void setupParams()
   {
     params = NetworkParams.loadFromConfig(config);
@@ -190,13 +211,35 @@ public class SnowBlossomNode
     }
 
     peerage = new Peerage(this);
-    tx_broadcaster = new TxBroadcaster(peerage);
+    tx_broadcaster = new TxBroadcaster(peerage,
+      (!config.isSet("tx_relay_inventory")) || config.getBoolean("tx_relay_inventory"),
+      config.getLongWithDefault("tx_inv_interval_ms", TxBroadcaster.DEFAULT_INV_INTERVAL_MS));
+    block_downloader = new BlockDownloader(this,
+      config.getIntWithDefault("sync_window", BlockDownloader.DEFAULT_WINDOW),
+      config.getIntWithDefault("sync_per_link", BlockDownloader.DEFAULT_PER_LINK),
+      config.getIntWithDefault("sync_check_threads", Runtime.getRuntime().availableProcessors()));
     forge_info = new ForgeInfo(this);
     shard_utxo_import = new ShardUtxoImport(this);
     shard_blockforge = new ShardBlockForge(this);
     meta_mem_pool = new MetaMemPool(this);
     db_maint_thread = new DBMaintThread(this);
 
+    if (config.isSet("utxo_prune_blocks"))
+    {
+      int keep_blocks = config.getInt("utxo_prune_blocks");
+      if (keep_blocks < 20)
+      {
+        throw new RuntimeException("utxo_prune_blocks must be at least 20");
+      }
+      if (!config.get("db_type").equals("rocksdb"))
+      {
+        throw new RuntimeException("utxo_prune_blocks needs db_type=rocksdb");
+      }
+      long period = config.getIntWithDefault("utxo_prune_period_min", 360) * 60000L;
+      utxo_pruner = new UtxoPruner(this, keep_blocks, period);
+      logger.info(String.format("Utxo pruning on, keeping %d blocks", keep_blocks));
+    }
+
   }
 
   /**
@@ -267,6 +310,7 @@ public class SnowBlossomNode
     peerage.start();
     new TimeWatcher().start();
     tx_broadcaster.start();
+    block_downloader.start();
 
     //new Ender(this).start();
   }
@@ -332,6 +376,10 @@ public class SnowBlossomNode
 
     user_service.start();
     db_maint_thread.start();
+    if (utxo_pruner != null)
+    {
+      utxo_pruner.start();
+    }
   }
 
 
@@ -408,6 +456,8 @@ public class SnowBlossomNode
 
   public Config getConfig(){return config;}
   public DB getDB(){return db;}
+  /** @return the pruner, or null if pruning is not on */
+  public UtxoPruner getUtxoPruner(){return utxo_pruner;}
   public NetworkParams getParams(){return params;}
 
   public ForgeInfo getForgeInfo(){return forge_info;}
@@ -415,6 +465,7 @@ public class SnowBlossomNode
   public ShardBlockForge getBlockForge(){return shard_blockforge;}
   public MetaMemPool getMemPool(){return meta_mem_pool;}
   public TxBroadcaster getTxBroadcaster(){return tx_broadcaster;}
+  public BlockDownloader getBlockDownloader(){return block_downloader;}
 
   public ShardUtxoImport getShardUtxoImport(){return shard_utxo_import;}
 
@@ -533,6 +584,7 @@ public class SnowBlossomNode
 
       mem_pool = new MemPool(db.getUtxoHashedTrie(), ingestor, Globals.LOW_FEE_SIZE_IN_BLOCK, accept_p2p);
       mem_pool.setPeerage(peerage);
+      mem_pool.setTemplateBudget(config.getLongWithDefault("mempool_template_ms", MemPool.DEFAULT_TEMPLATE_BUDGET_MS));
     }
 
   }
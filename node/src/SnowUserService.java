@@ -439,6 +439,11 @@ public class SnowUserService extends UserServiceGrpc.UserServiceImplBase impleme
       ns.addAllNetworkActiveShards(node.getForgeInfo().getNetworkActiveShards().keySet());
       ns.addAllInterestShards(node.getInterestShards());
 
+      ns.putAllDbStats(node.getDB().getStats());
+      ns.putDbStats("sig_cache.hits", SignatureCache.getHitCount());
+      ns.putDbStats("sig_cache.misses", SignatureCache.getMissCount());
+      ns.putDbStats("sig_cache.size", (long)SignatureCache.getSize());
+
       responseObserver.onNext(ns.build());
       responseObserver.onCompleted();
     }
@@ -1,13 +1,35 @@
 package snowblossom.node;
 
+import duckutil.PeriodicThread;
 import duckutil.RateLimit;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import snowblossom.lib.ChainHash;
+import snowblossom.proto.PeerMessage;
+import snowblossom.proto.RequestTxData;
 import snowblossom.proto.Transaction;
 
 /**
- * Buffers transactions to broadcast and sends them at a fixed rate
+ * Relays transactions to peers.
+ *
+ * Peers that say in their tip that they take tx inventory get batches of
+ * tx hashes, one batch per link each inv interval, and ask for the bodies they
+ * don't have.  Each link keeps track of what the peer is known to have so we
+ * don't announce things back to them.
+ *
+ * Each tx is only asked for from one peer at a time.  The other peers that announce it
+ * are remembered, and if the body doesn't come within TX_REQUEST_TIMEOUT_MS the
+ * flush thread asks the next one of them.
+ *
+ * Older peers get the full transactions at a fixed rate.
  */
 public class TxBroadcaster extends Thread
 {
@@ -18,28 +40,176 @@ public class TxBroadcaster extends Thread
   public static final double TPS=2.0;
   public static final double BURST_SEC=5.0;
 
+  public static final long DEFAULT_INV_INTERVAL_MS=1000L;
+  /** Most tx hashes in one inventory or data request message */
+  public static final int MAX_INV_SIZE=5000;
+  /** Most tx hashes waiting to be announced to one link */
+  public static final int MAX_INV_QUEUE=50000;
+  /** If we asked a peer for a tx and didn't get it in this long, ask someone else */
+  public static final long TX_REQUEST_TIMEOUT_MS=10000L;
+  /** Most transactions we keep track of requests for */
+  public static final int MAX_TX_REQUESTS=25000;
+  /** Most peers we remember announcing any one tx */
+  public static final int MAX_TX_ANNOUNCERS=8;
+
   private final Peerage peerage;
   private final LinkedBlockingQueue<Transaction> queue;
   private final RateLimit rate_limit;
 
-  public TxBroadcaster(Peerage peerage)
+  private final boolean inv_relay;
+  private final InvFlushThread inv_flush_thread;
+  // Outstanding requests, oldest request first
+  private final LinkedHashMap<ChainHash, TxRequest> tx_request_map = new LinkedHashMap<>();
+
+  public TxBroadcaster(Peerage peerage, boolean inv_relay, long inv_interval_ms)
   {
     this.peerage = peerage;
     this.queue = new LinkedBlockingQueue<>(MAX_QUEUE_SIZE);
     this.rate_limit = new RateLimit(TPS, BURST_SEC);
+    this.inv_relay = inv_relay;
+    this.inv_flush_thread = new InvFlushThread(inv_interval_ms);
 
     setName("TxBroadcaster");
     setDaemon(true);
   }
 
   /**
-   * Might drop the TX if the buffer is full
+   * If true we take and send tx inventory with peers that also do
+   */
+  public boolean isInventoryRelay()
+  {
+    return inv_relay;
+  }
+
+  /**
+   * Might drop the TX for older peers if the buffer is full
    */
   public boolean send(Transaction tx)
   {
+    if (inv_relay)
+    {
+      ChainHash tx_id = new ChainHash(tx.getTxHash());
+      boolean any_full = false;
+      for(PeerLink link : peerage.getLinkList())
+      {
+        if (link.isTxInventoryPeer())
+        {
+          link.queueTxInv(tx_id);
+        }
+        else
+        {
+          any_full = true;
+        }
+      }
+      if (!any_full) return true;
+    }
     return queue.offer(tx);
   }
 
+  /**
+   * The link has announced this transaction.
+   * Returns true if we should request it from that link now,
+   * false if it is already requested from some peer, in which case
+   * this link is asked if that one doesn't come through.
+   */
+  public boolean reserveTx(ChainHash tx_id, PeerLink link)
+  {
+    synchronized(tx_request_map)
+    {
+      TxRequest req = tx_request_map.get(tx_id);
+      if (req != null)
+      {
+        if ((req.requested_from != link) && (req.announcers.size() < MAX_TX_ANNOUNCERS))
+        {
+          req.announcers.add(link);
+        }
+        return false;
+      }
+
+      if (tx_request_map.size() >= MAX_TX_REQUESTS)
+      {
+        Iterator<ChainHash> it = tx_request_map.keySet().iterator();
+        it.next();
+        it.remove();
+      }
+      tx_request_map.put(tx_id, new TxRequest(link, System.currentTimeMillis()));
+      return true;
+    }
+  }
+
+  /**
+   * We have the body, so stop asking for it
+   */
+  public void txReceived(ChainHash tx_id)
+  {
+    synchronized(tx_request_map)
+    {
+      tx_request_map.remove(tx_id);
+    }
+  }
+
+  /**
+   * Ask the next peer that announced it for each transaction that hasn't come
+   * in time.  Transactions with no one left to ask are forgotten.
+   */
+  public void retryTxRequests(long now)
+  {
+    HashMap<PeerLink, RequestTxData.Builder> req_map = new HashMap<>();
+    ArrayList<Map.Entry<PeerLink, RequestTxData.Builder>> full_list = new ArrayList<>();
+    synchronized(tx_request_map)
+    {
+      ArrayList<Map.Entry<ChainHash, TxRequest>> retry = new ArrayList<>();
+      Iterator<Map.Entry<ChainHash, TxRequest>> it = tx_request_map.entrySet().iterator();
+      while(it.hasNext())
+      {
+        Map.Entry<ChainHash, TxRequest> me = it.next();
+        // In request time order, so the rest are still waiting
+        if (me.getValue().request_time + TX_REQUEST_TIMEOUT_MS > now) break;
+        it.remove();
+        retry.add(me);
+      }
+
+      for(Map.Entry<ChainHash, TxRequest> me : retry)
+      {
+        TxRequest req = me.getValue();
+        PeerLink link = req.nextAnnouncer();
+        if (link == null) continue;
+
+        RequestTxData.Builder link_req = req_map.computeIfAbsent(link, k -> RequestTxData.newBuilder());
+        if (link_req.getTxHashesCount() >= MAX_INV_SIZE)
+        {
+          full_list.add(new AbstractMap.SimpleEntry<>(link, link_req));
+          link_req = RequestTxData.newBuilder();
+          req_map.put(link, link_req);
+        }
+        link_req.addTxHashes(me.getKey().getBytes());
+
+        req.requested_from = link;
+        req.request_time = now;
+        // Back on the end, as the newest request
+        tx_request_map.put(me.getKey(), req);
+      }
+    }
+
+    full_list.addAll(req_map.entrySet());
+    for(Map.Entry<PeerLink, RequestTxData.Builder> me : full_list)
+    {
+      logger.fine(String.format("Asking %s for %d transactions that didn't come from other peers",
+        me.getKey().getLinkId(), me.getValue().getTxHashesCount()));
+      me.getKey().writeMessage( PeerMessage.newBuilder().setReqTxData(me.getValue().build()).build());
+    }
+  }
+
+  @Override
+  public void start()
+  {
+    super.start();
+    if (inv_relay)
+    {
+      inv_flush_thread.start();
+    }
+  }
+
   public void run()
   {
     while(true)
@@ -64,8 +234,60 @@ public class TxBroadcaster extends Thread
 
   }
 
+  public class InvFlushThread extends PeriodicThread
+  {
+    public InvFlushThread(long inv_interval_ms)
+    {
+      super(inv_interval_ms);
+      setName("TxBroadcaster.InvFlush");
+      setDaemon(true);
+    }
+
+    @Override
+    public void runPass()
+    {
+      retryTxRequests(System.currentTimeMillis());
+
+      for(PeerLink link : peerage.getLinkList())
+      {
+        try
+        {
+          link.flushTxInv();
+        }
+        catch(Throwable e)
+        {
+          link.close();
+        }
+      }
+    }
+  }
 
+  private static class TxRequest
+  {
+    PeerLink requested_from;
+    long request_time;
+    final LinkedHashSet<PeerLink> announcers = new LinkedHashSet<>();
 
+    TxRequest(PeerLink requested_from, long request_time)
+    {
+      this.requested_from = requested_from;
+      this.request_time = request_time;
+    }
 
+    /**
+     * @return the next announcer with an open link, or null if there are none
+     */
+    PeerLink nextAnnouncer()
+    {
+      Iterator<PeerLink> it = announcers.iterator();
+      while(it.hasNext())
+      {
+        PeerLink link = it.next();
+        it.remove();
+        if (link.isOpen()) return link;
+      }
+      return null;
+    }
+  }
 
 }
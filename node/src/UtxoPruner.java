@@ -0,0 +1,224 @@
+package snowblossom.node;
+
+import com.google.protobuf.ByteString;
+import duckutil.PeriodicThread;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.db.DB;
+import snowblossom.lib.db.DBBatch;
+import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBMap;
+import snowblossom.proto.BlockSummary;
+
+/**
+ * Removes utxo trie nodes that are no longer needed.
+ *
+ * Mark and sweep: mark every node reachable from the utxo roots of the last keep_blocks
+ * blocks of each shard (including forks off that part of the chain, found with the child block map),
+ * then go over the whole utxo node map and remove anything not marked.
+ *
+ * Nodes are shared between roots, and a new block can point to an old node without writing it again.
+ * So to be safe while blocks keep coming in:
+ * - Everything saved to the trie while a prune is running is kept.
+ * - Blocks are only accepted if their prev block descends from the main chain within
+ *   keep_blocks/2 of the head, so they only build on roots that got marked.
+ * - Block ingestion holds the ingest lock while it writes trie nodes, and the sweep holds
+ *   it exclusively while it removes each chunk.  So a node can't be written between the sweep
+ *   checking it and removing it.
+ */
+public class UtxoPruner extends PeriodicThread
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.db");
+
+  public static final int DELETE_CHUNK = 10000;
+
+  private final SnowBlossomNode node;
+  private final int keep_blocks;
+
+  private final ReentrantReadWriteLock prune_lock = new ReentrantReadWriteLock();
+
+  public UtxoPruner(SnowBlossomNode node, int keep_blocks, long period_ms)
+  {
+    super(period_ms);
+    setName("UtxoPruner");
+    setDaemon(true);
+
+    this.node = node;
+    this.keep_blocks = keep_blocks;
+  }
+
+  /**
+   * Held by block ingestion from validation until the block is saved.
+   * Many blocks can hold it at once.
+   */
+  public Lock getIngestLock()
+  {
+    return prune_lock.readLock();
+  }
+
+  /**
+   * Can a block be built on prev, or might the nodes under its utxo root have been pruned
+   */
+  public boolean isPrevAvailable(int shard_id, BlockSummary head, BlockSummary prev)
+  {
+    if (head == null) return true;
+    if (prev.getHeader().getUtxoRootHash().equals(HashUtils.hashOfEmpty())) return true;
+
+    DB db = node.getDB();
+    int min_height = head.getHeader().getBlockHeight() - keep_blocks / 2;
+
+    BlockSummary s = prev;
+    while(true)
+    {
+      int h = s.getHeader().getBlockHeight();
+      if (h < min_height) return false;
+
+      ChainHash main_hash = db.getBlockHashAtHeight(shard_id, h);
+      if (new ChainHash(s.getHeader().getSnowHash()).equals(main_hash)) return true;
+
+      s = db.getBlockSummaryMap().get(s.getHeader().getPrevBlockHash());
+      if (s == null) return false;
+    }
+  }
+
+  @Override
+  public void runPass()
+    throws Exception
+  {
+    DB db = node.getDB();
+    TrieDBMap trie_db = db.getUtxoTrieDB();
+    HashedTrie trie = db.getUtxoHashedTrie();
+
+    long t1 = System.currentTimeMillis();
+
+    // With the lock, we know no block is partway through saving nodes we won't see
+    prune_lock.writeLock().lock();
+    try
+    {
+      trie_db.startWriteTracking();
+    }
+    finally
+    {
+      prune_lock.writeLock().unlock();
+    }
+
+    try
+    {
+      HashSet<ByteString> roots = getKeepRoots();
+
+      HashSet<ByteString> marked = new HashSet<>();
+      for(ByteString root : roots)
+      {
+        trie.markReachable(root, marked);
+      }
+      long t2 = System.currentTimeMillis();
+      logger.info(String.format("Utxo prune: marked %d nodes from %d roots in %d ms", marked.size(), roots.size(), t2 - t1));
+
+      ArrayList<ByteString> chunk = new ArrayList<>();
+      long[] counts = new long[2];
+
+      trie_db.getDBMap().scanKeys( key ->
+      {
+        counts[0]++;
+        if (!marked.contains(key))
+        {
+          chunk.add(key);
+          if (chunk.size() >= DELETE_CHUNK)
+          {
+            counts[1] += removeChunk(trie_db, chunk);
+            chunk.clear();
+          }
+        }
+      });
+      counts[1] += removeChunk(trie_db, chunk);
+
+      long t3 = System.currentTimeMillis();
+      logger.info(String.format("Utxo prune: removed %d of %d nodes in %d ms", counts[1], counts[0], t3 - t2));
+    }
+    finally
+    {
+      trie_db.stopWriteTracking();
+    }
+  }
+
+  private int removeChunk(TrieDBMap trie_db, ArrayList<ByteString> chunk)
+  {
+    if (chunk.size() == 0) return 0;
+    int removed = 0;
+
+    prune_lock.writeLock().lock();
+    try(DBBatch batch = node.getDB().newBatch())
+    {
+      for(ByteString key : chunk)
+      {
+        if (!trie_db.wasWritten(key))
+        {
+          trie_db.remove(key, batch);
+          removed++;
+        }
+      }
+      batch.commit();
+    }
+    finally
+    {
+      prune_lock.writeLock().unlock();
+    }
+    return removed;
+  }
+
+  /**
+   * The utxo roots of the last keep_blocks of the main chain of each shard and anything
+   * that forks off after that
+   */
+  private HashSet<ByteString> getKeepRoots()
+  {
+    DB db = node.getDB();
+    HashSet<ByteString> roots = new HashSet<>();
+    roots.add(HashUtils.hashOfEmpty());
+
+    for(int shard_id : node.getActiveShards())
+    {
+      BlockSummary head = node.getBlockIngestor(shard_id).getHead();
+      if (head == null) continue;
+
+      // Back down the main chain
+      BlockSummary start = head;
+      for(int i=0; i<keep_blocks; i++)
+      {
+        roots.add(start.getHeader().getUtxoRootHash());
+        BlockSummary prev = db.getBlockSummaryMap().get(start.getHeader().getPrevBlockHash());
+        if (prev == null) break;
+        start = prev;
+      }
+
+      if (db.getChildBlockMapSet() == null) continue;
+
+      // And forward from there to get any forks
+      HashSet<ChainHash> visited = new HashSet<>();
+      LinkedList<ChainHash> queue = new LinkedList<>();
+      queue.add(new ChainHash(start.getHeader().getSnowHash()));
+      while((queue.size() > 0) && (visited.size() < keep_blocks * 16))
+      {
+        ChainHash hash = queue.poll();
+        if (!visited.add(hash)) continue;
+
+        BlockSummary summary = db.getBlockSummaryMap().get(hash.getBytes());
+        if (summary == null) continue;
+        roots.add(summary.getHeader().getUtxoRootHash());
+
+        for(ByteString child : db.getChildBlockMapSet().getSet(hash.getBytes(), 10000))
+        {
+          queue.add(new ChainHash(child));
+        }
+      }
+    }
+    return roots;
+  }
+
+}
@@ -0,0 +1,228 @@
+package node.test;
+
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.Globals;
+import snowblossom.lib.NetworkParams;
+import snowblossom.lib.NetworkParamsRegtest;
+import snowblossom.lib.ValidationException;
+import snowblossom.node.BlockDownloader;
+import snowblossom.node.PeerLink;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockPreview;
+import snowblossom.proto.PeerMessage;
+
+public class BlockDownloaderTest
+{
+  private Random rnd = new Random();
+
+  /**
+   * A peer that announces lots of blocks on top of real saved blocks and never sends them
+   * should not keep the real blocks above them from being fetched.
+   */
+  @Test
+  public void testFakePreviewsDontStallSync()
+  {
+    TestNode node = new TestNode();
+    ChainHash genesis = randomHash();
+    ChainHash h1 = randomHash();
+    node.saved.add(genesis);
+    node.saved.add(h1);
+
+    RecordingSink fake_sink = new RecordingSink();
+    RecordingSink honest_sink = new RecordingSink();
+    PeerLink fake = new PeerLink(null, fake_sink);
+    PeerLink honest = new PeerLink(null, honest_sink);
+    node.links.add(fake);
+    node.links.add(honest);
+
+    BlockDownloader downloader = new BlockDownloader(node, 4, 16, 1);
+
+    for(int i=0; i<300; i++)
+    {
+      Assert.assertTrue(downloader.addPreview(getPreview(randomHash(), genesis, 1), fake));
+    }
+    ChainHash real = randomHash();
+    Assert.assertTrue(downloader.addPreview(getPreview(real, h1, 2), honest));
+    Assert.assertEquals(301, downloader.getWantedCount());
+
+    long now = System.currentTimeMillis();
+    downloader.runPass(now);
+    Assert.assertEquals(4, fake_sink.getRequested().size());
+    Assert.assertEquals(0, honest_sink.getRequested().size());
+
+    for(int round=0; round<10; round++)
+    {
+      if (honest_sink.getRequested().size() > 0) break;
+      now += BlockDownloader.REQUEST_TIMEOUT_MS + 1;
+      downloader.runPass(now);
+    }
+
+    Assert.assertEquals(1, honest_sink.getRequested().size());
+    Assert.assertEquals(real, honest_sink.getRequested().get(0));
+    Assert.assertFalse(fake.isOpen());
+    Assert.assertTrue(fake_sink.getRequested().size() <= BlockDownloader.MAX_LINK_FAILURES);
+    Assert.assertEquals(1, downloader.getWantedCount());
+  }
+
+  @Test
+  public void testRequestRoundsExpire()
+  {
+    TestNode node = new TestNode();
+    ChainHash genesis = randomHash();
+    node.saved.add(genesis);
+
+    BlockDownloader downloader = new BlockDownloader(node, 4, 16, 1);
+    ChainHash hash = randomHash();
+    // Lots of peers announce it, none of them ever send it
+    for(int i=0; i<BlockDownloader.MAX_REQUEST_ROUNDS * 2; i++)
+    {
+      PeerLink link = new PeerLink(null, new RecordingSink());
+      node.links.add(link);
+      downloader.addPreview(getPreview(hash, genesis, 1), link);
+    }
+
+    long now = System.currentTimeMillis();
+    for(int round=0; round<BlockDownloader.MAX_REQUEST_ROUNDS; round++)
+    {
+      downloader.runPass(now);
+      Assert.assertEquals(1, downloader.getWantedCount());
+      now += BlockDownloader.REQUEST_TIMEOUT_MS + 1;
+    }
+    downloader.runPass(now);
+    Assert.assertEquals(0, downloader.getWantedCount());
+  }
+
+  @Test
+  public void testClosedSourcesDropped()
+  {
+    TestNode node = new TestNode();
+    PeerLink link = new PeerLink(null, new RecordingSink());
+    node.links.add(link);
+
+    BlockDownloader downloader = new BlockDownloader(node, 4, 16, 1);
+
+    ChainHash prev = randomHash();
+    node.saved.add(prev);
+    for(int i=1; i<=20; i++)
+    {
+      ChainHash hash = randomHash();
+      downloader.addPreview(getPreview(hash, prev, i), link);
+      prev = hash;
+    }
+    Assert.assertEquals(20, downloader.getWantedCount());
+
+    link.close();
+    downloader.runPass(System.currentTimeMillis());
+    Assert.assertEquals(0, downloader.getWantedCount());
+  }
+
+  @Test
+  public void testLinkCapKeepsLowest()
+  {
+    TestNode node = new TestNode();
+    PeerLink link = new PeerLink(null, new RecordingSink());
+    node.links.add(link);
+    BlockDownloader downloader = new BlockDownloader(node, 4, 16, 1);
+
+    int max = BlockDownloader.MAX_WANTED_PER_LINK;
+    for(int i=0; i<max; i++)
+    {
+      Assert.assertTrue(downloader.addPreview(getPreview(randomHash(), randomHash(), 1000 + i), link));
+    }
+    Assert.assertEquals(max, downloader.getWantedCount());
+
+    // Higher than everything we have from it, so not now
+    ChainHash high = randomHash();
+    Assert.assertFalse(downloader.addPreview(getPreview(high, randomHash(), 1000 + max), link));
+    Assert.assertFalse(downloader.isWanted(high));
+
+    // Lower, so the highest goes instead
+    ChainHash low = randomHash();
+    Assert.assertTrue(downloader.addPreview(getPreview(low, randomHash(), 10), link));
+    Assert.assertTrue(downloader.isWanted(low));
+    Assert.assertEquals(max, downloader.getWantedCount());
+
+    // Another link can still tell us about things
+    PeerLink other = new PeerLink(null, new RecordingSink());
+    Assert.assertTrue(downloader.addPreview(getPreview(high, randomHash(), 1000 + max), other));
+    Assert.assertEquals(max + 1, downloader.getWantedCount());
+  }
+
+  private ChainHash randomHash()
+  {
+    byte[] b = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    rnd.nextBytes(b);
+    return new ChainHash(b);
+  }
+
+  private static BlockPreview getPreview(ChainHash hash, ChainHash prev, int height)
+  {
+    return BlockPreview.newBuilder()
+      .setSnowHash(hash.getBytes())
+      .setPrevBlockHash(prev.getBytes())
+      .setBlockHeight(height)
+      .build();
+  }
+
+  public class TestNode implements BlockDownloader.NodeAccess
+  {
+    final HashSet<ChainHash> saved = new HashSet<>();
+    final ArrayList<PeerLink> links = new ArrayList<>();
+
+    @Override
+    public NetworkParams getParams() { return new NetworkParamsRegtest(); }
+
+    @Override
+    public boolean haveBlock(ChainHash hash) { return saved.contains(hash); }
+
+    @Override
+    public Collection<PeerLink> getLinks() { return links; }
+
+    @Override
+    public boolean areWeSynced() { return false; }
+
+    @Override
+    public void ingestBlock(Block blk)
+      throws ValidationException
+    {
+      saved.add(new ChainHash(blk.getHeader().getSnowHash()));
+    }
+  }
+
+  /**
+   * Keeps the hashes of blocks requested over the link
+   */
+  public static class RecordingSink implements StreamObserver<PeerMessage>
+  {
+    private final ArrayList<ChainHash> requested = new ArrayList<>();
+
+    public synchronized List<ChainHash> getRequested()
+    {
+      return new ArrayList<ChainHash>(requested);
+    }
+
+    @Override
+    public synchronized void onNext(PeerMessage msg)
+    {
+      if (msg.hasReqBlock())
+      {
+        requested.add(new ChainHash(msg.getReqBlock().getBlockHash()));
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {}
+
+    @Override
+    public void onCompleted() {}
+  }
+
+}
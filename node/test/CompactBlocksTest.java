@@ -0,0 +1,242 @@
+package node.test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import java.security.KeyPair;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import snowblossom.lib.*;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBMem;
+import snowblossom.node.ChainStateSource;
+import snowblossom.node.CompactBlocks;
+import snowblossom.node.MemPool;
+import snowblossom.proto.AddressSpec;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockTxs;
+import snowblossom.proto.CompactBlock;
+import snowblossom.proto.Transaction;
+import snowblossom.proto.TransactionInput;
+import snowblossom.proto.TransactionOutput;
+
+public class CompactBlocksTest
+{
+  private KeyPair keys;
+  private HashedTrie utxo_trie;
+  private MemPool mem_pool;
+
+  private Transaction coinbase;
+  private Transaction tx_a;
+  private Transaction tx_b;
+  private Block blk;
+
+  @BeforeClass
+  public static void loadProvider()
+  {
+    Globals.addCryptoProvider();
+  }
+
+  /**
+   * A block of coinbase, tx_a and tx_b with only tx_a in the mempool
+   */
+  private void setupBlock()
+    throws Exception
+  {
+    keys = KeyUtil.generateECCompressedKey();
+    utxo_trie = new HashedTrie(new TrieDBMem(), true, false);
+
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+    TransactionInput in_a = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+    TransactionInput in_b = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+    ChainHash utxo_root = utxo_buffer.commit();
+
+    TransactionOutput out = TransactionOutput.newBuilder()
+      .setRecipientSpecHash(in_a.getSpecHash())
+      .setValue(100000L)
+      .build();
+
+    coinbase = TransactionUtil.createTransaction(ImmutableList.of(in_a), ImmutableList.of(out, out), keys);
+    tx_a = TransactionUtil.createTransaction(ImmutableList.of(in_a), ImmutableList.of(out), keys);
+    tx_b = TransactionUtil.createTransaction(ImmutableList.of(in_b), ImmutableList.of(out), keys);
+
+    mem_pool = new MemPool(utxo_trie, new DummyChainState(100));
+    mem_pool.rebuildPriorityMap(utxo_root);
+    mem_pool.addTransaction(tx_a, false);
+
+    blk = makeBlock(ImmutableList.of(coinbase, tx_a, tx_b));
+  }
+
+  @Test
+  public void testCompactBlock()
+    throws Exception
+  {
+    setupBlock();
+
+    CompactBlock cb = CompactBlocks.compact(blk);
+    Assert.assertEquals(2, cb.getShortTxIdsCount());
+    Assert.assertEquals(coinbase, cb.getCoinbase());
+
+    // Only tx_b needs to be fetched
+    CompactBlocks.PartialBlock pb = new CompactBlocks.PartialBlock(cb, mem_pool);
+    Assert.assertEquals(new ChainHash(blk.getHeader().getSnowHash()), pb.getBlockHash());
+    Assert.assertEquals(ImmutableList.of(2), pb.getMissing());
+    Assert.assertFalse(pb.isComplete());
+
+    pb.fill(BlockTxs.newBuilder().addTransactions(tx_b).build());
+    Assert.assertTrue(pb.isComplete());
+    Assert.assertTrue(pb.checkMerkle());
+    Assert.assertEquals(blk, pb.getBlock());
+  }
+
+  @Test
+  public void testWrongTx()
+    throws Exception
+  {
+    setupBlock();
+    CompactBlocks.PartialBlock pb = new CompactBlocks.PartialBlock(CompactBlocks.compact(blk), mem_pool);
+
+    // Right count, wrong transaction, gets caught by the merkle root
+    pb.fill(BlockTxs.newBuilder().addTransactions(tx_a).build());
+    Assert.assertTrue(pb.isComplete());
+    Assert.assertFalse(pb.checkMerkle());
+  }
+
+  @Test
+  public void testWrongCount()
+    throws Exception
+  {
+    setupBlock();
+    CompactBlocks.PartialBlock pb = new CompactBlocks.PartialBlock(CompactBlocks.compact(blk), mem_pool);
+
+    List<BlockTxs> bad_list = ImmutableList.of(
+      BlockTxs.newBuilder().build(),
+      BlockTxs.newBuilder().addTransactions(tx_b).addTransactions(tx_a).build());
+
+    for(BlockTxs bad : bad_list)
+    {
+      try
+      {
+        pb.fill(bad);
+        Assert.fail("Filled with " + bad.getTransactionsCount() + " transactions");
+      }
+      catch(ValidationException e){}
+
+      // Nothing is filled in from a bad reply
+      Assert.assertEquals(ImmutableList.of(2), pb.getMissing());
+    }
+
+    pb.fill(BlockTxs.newBuilder().addTransactions(tx_b).build());
+    Assert.assertTrue(pb.checkMerkle());
+  }
+
+  @Test
+  public void testNoMemPool()
+    throws Exception
+  {
+    setupBlock();
+
+    // Everything but the coinbase has to be asked for
+    CompactBlocks.PartialBlock pb = new CompactBlocks.PartialBlock(CompactBlocks.compact(blk), null);
+    Assert.assertEquals(ImmutableList.of(1, 2), pb.getMissing());
+
+    pb.fill(BlockTxs.newBuilder().addTransactions(tx_a).addTransactions(tx_b).build());
+    Assert.assertTrue(pb.checkMerkle());
+    Assert.assertEquals(blk, pb.getBlock());
+  }
+
+  @Test
+  public void testCoinbaseOnly()
+    throws Exception
+  {
+    setupBlock();
+    Block cb_blk = makeBlock(ImmutableList.of(coinbase));
+
+    CompactBlock cb = CompactBlocks.compact(cb_blk);
+    Assert.assertEquals(0, cb.getShortTxIdsCount());
+
+    CompactBlocks.PartialBlock pb = new CompactBlocks.PartialBlock(cb, mem_pool);
+    Assert.assertTrue(pb.isComplete());
+    Assert.assertTrue(pb.checkMerkle());
+    Assert.assertEquals(cb_blk, pb.getBlock());
+  }
+
+  private static Block makeBlock(List<Transaction> tx_list)
+  {
+    ImmutableList.Builder<ChainHash> hash_list = ImmutableList.builder();
+    for(Transaction tx : tx_list)
+    {
+      hash_list.add(new ChainHash(tx.getTxHash()));
+    }
+    ChainHash merkle_root = DigestUtil.getMerkleRootForTxList(hash_list.build());
+
+    Random rnd = new Random();
+    byte[] snow_hash = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    rnd.nextBytes(snow_hash);
+
+    return Block.newBuilder()
+      .setHeader(BlockHeader.newBuilder()
+        .setSnowHash(ByteString.copyFrom(snow_hash))
+        .setMerkleRootHash(merkle_root.getBytes())
+        .build())
+      .addAllTransactions(tx_list)
+      .build();
+  }
+
+  private static TransactionInput addUtxoToUseAtInput(UtxoUpdateBuffer utxo_buffer, KeyPair keys, long value)
+    throws Exception
+  {
+    Random rnd = new Random();
+    byte[] tx_id_buff = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    rnd.nextBytes(tx_id_buff);
+    ChainHash tx_id = new ChainHash(tx_id_buff);
+
+    AddressSpec claim = AddressUtil.getSimpleSpecForKey(keys.getPublic(), SignatureUtil.SIG_TYPE_ECDSA_COMPRESSED);
+    AddressSpecHash addr = AddressUtil.getHashForSpec(claim);
+
+    TransactionInput tx_in = TransactionInput.newBuilder()
+      .setSpecHash(addr.getBytes())
+      .setSrcTxId(tx_id.getBytes())
+      .setSrcTxOutIdx(0)
+      .build();
+
+    TransactionOutput tx_out = TransactionOutput.newBuilder()
+      .setRecipientSpecHash(addr.getBytes())
+      .setValue(value)
+      .build();
+
+    utxo_buffer.addOutput(ImmutableList.of(tx_out.toByteString()), tx_out, tx_id, 0);
+
+    return tx_in;
+  }
+
+  public class DummyChainState implements ChainStateSource
+  {
+    private int height;
+    public DummyChainState(int height)
+    {
+      this.height = height;
+    }
+
+    @Override
+    public int getHeight() {return height; }
+
+    @Override
+    public int getShardId() {return 0;}
+
+    @Override
+    public NetworkParams getParams() {return new NetworkParamsRegtest(); }
+
+    @Override
+    public Set<Integer> getShardCoverSet()
+    {
+      return ImmutableSet.of(0);
+    }
+  }
+
+}
@@ -4,9 +4,16 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import duckutil.TimeRecord;
 import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 import java.util.TreeMap;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -16,6 +23,8 @@ import snowblossom.lib.trie.TrieDBMem;
 import snowblossom.node.ChainStateSource;
 import snowblossom.node.MemPool;
 import snowblossom.proto.AddressSpec;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
 import snowblossom.proto.Transaction;
 import snowblossom.proto.TransactionInput;
 import snowblossom.proto.TransactionOutput;
@@ -178,6 +187,185 @@ public class MemPoolTest
   }
 
 
+  @Test
+  public void testApplyBlock()
+    throws Exception
+  {
+    HashedTrie utxo_trie = newMemoryTrie();
+    KeyPair keys = KeyUtil.generateECCompressedKey();
+
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+    TransactionInput in_a = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+    TransactionInput in_b = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+    TransactionInput in_d = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+    ChainHash utxo_root = utxo_buffer.commit();
+
+    TransactionOutput out = TransactionOutput.newBuilder()
+      .setRecipientSpecHash(in_a.getSpecHash())
+      .setValue(100000L)
+      .build();
+    // Same total in two outputs, so it is a different tx from tx_b
+    TransactionOutput out_x = TransactionOutput.newBuilder()
+      .setRecipientSpecHash(in_a.getSpecHash())
+      .setValue(50000L)
+      .build();
+
+    Transaction tx_a = TransactionUtil.createTransaction(ImmutableList.of(in_a), ImmutableList.of(out), keys);
+    Transaction tx_b = TransactionUtil.createTransaction(ImmutableList.of(in_b), ImmutableList.of(out), keys);
+    TransactionInput in_c = TransactionInput.newBuilder()
+      .setSpecHash(in_a.getSpecHash())
+      .setSrcTxId(tx_a.getTxHash())
+      .setSrcTxOutIdx(0)
+      .build();
+    Transaction tx_c = TransactionUtil.createTransaction(ImmutableList.of(in_c), ImmutableList.of(out), keys);
+    Transaction tx_d = TransactionUtil.createTransaction(ImmutableList.of(in_d), ImmutableList.of(out), keys);
+
+    // Spends the same as tx_b
+    Transaction tx_x = TransactionUtil.createTransaction(ImmutableList.of(in_b), ImmutableList.of(out_x, out_x), keys);
+
+    MemPool mem_pool = new MemPool(utxo_trie, new DummyChainState(100));
+    mem_pool.rebuildPriorityMap(utxo_root);
+    mem_pool.addTransaction(tx_a, false);
+    mem_pool.addTransaction(tx_b, false);
+    mem_pool.addTransaction(tx_c, false);
+    mem_pool.addTransaction(tx_d, false);
+    Assert.assertEquals(4, mem_pool.getTransactionsForBlock(utxo_root, 1048576).size());
+
+    // Block with tx_a and tx_x
+    NetworkParams params = new NetworkParamsRegtest();
+    int header_version = 1;
+    if (params.getActivationHeightShards() <= 101) header_version = 2;
+    BlockHeader header = BlockHeader.newBuilder()
+      .setBlockHeight(101)
+      .setTimestamp(System.currentTimeMillis())
+      .setVersion(header_version)
+      .build();
+    UtxoUpdateBuffer block_buffer = new UtxoUpdateBuffer(utxo_trie, utxo_root);
+    for(Transaction tx : ImmutableList.of(tx_a, tx_x))
+    {
+      Validation.deepTransactionCheck(tx, block_buffer, header, params, ImmutableSet.of(0), new TreeMap<>());
+    }
+    ChainHash new_root = block_buffer.commit();
+
+    Block blk = Block.newBuilder()
+      .setHeader(BlockHeader.newBuilder().mergeFrom(header).setUtxoRootHash(new_root.getBytes()).build())
+      .addTransactions(tx_a)
+      .addTransactions(tx_x)
+      .build();
+
+    mem_pool.tickleBlocks(utxo_root, blk);
+
+    // tx_a is confirmed, tx_b lost to tx_x, tx_c now only needs the utxo
+    List<Transaction> block_list = mem_pool.getTransactionsForBlock(new_root, 1048576);
+    Assert.assertEquals(ImmutableSet.of(tx_c, tx_d), ImmutableSet.copyOf(block_list));
+    Assert.assertEquals(2, mem_pool.getMemPoolSize());
+    Assert.assertNull(mem_pool.getTransaction(new ChainHash(tx_b.getTxHash())));
+  }
+
+  @Test
+  public void testPackageSelection()
+    throws Exception
+  {
+    HashedTrie utxo_trie = newMemoryTrie();
+    KeyPair keys = KeyUtil.generateECCompressedKey();
+
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+    TransactionInput in_p = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+    ChainHash utxo_root = utxo_buffer.commit();
+
+    TransactionOutput out = TransactionOutput.newBuilder()
+      .setRecipientSpecHash(in_p.getSpecHash())
+      .setValue(50000L)
+      .build();
+
+    // Two children of the same parent
+    Transaction tx_p = TransactionUtil.createTransaction(ImmutableList.of(in_p), ImmutableList.of(out, out), keys);
+    ArrayList<Transaction> children = new ArrayList<>();
+    for(int i=0; i<2; i++)
+    {
+      TransactionInput in = TransactionInput.newBuilder()
+        .setSpecHash(in_p.getSpecHash())
+        .setSrcTxId(tx_p.getTxHash())
+        .setSrcTxOutIdx(i)
+        .build();
+      children.add(TransactionUtil.createTransaction(ImmutableList.of(in), ImmutableList.of(out), keys));
+    }
+
+    MemPool mem_pool = new MemPool(utxo_trie, new DummyChainState(100));
+    mem_pool.rebuildPriorityMap(utxo_root);
+    mem_pool.addTransaction(tx_p, false);
+    for(Transaction tx : children)
+    {
+      mem_pool.addTransaction(tx, false);
+    }
+
+    // Exactly enough room for all three, as long as the parent is only counted once
+    int max_size = tx_p.getSerializedSize();
+    for(Transaction tx : children) max_size += tx.getSerializedSize();
+
+    List<Transaction> block_list = mem_pool.getTransactionsForBlock(utxo_root, max_size);
+    Assert.assertEquals(3, block_list.size());
+    Assert.assertEquals(tx_p, block_list.get(0));
+    Assert.assertEquals(ImmutableSet.copyOf(children), ImmutableSet.copyOf(block_list.subList(1,3)));
+
+    // One short and only one child fits
+    block_list = mem_pool.getTransactionsForBlock(utxo_root, max_size - 1);
+    Assert.assertEquals(2, block_list.size());
+    Assert.assertEquals(tx_p, block_list.get(0));
+  }
+
+  @Test
+  public void testConcurrentDoubleSpend()
+    throws Exception
+  {
+    HashedTrie utxo_trie = newMemoryTrie();
+    KeyPair keys = KeyUtil.generateECCompressedKey();
+
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+
+    int inputs = 20;
+    int spends = 4;
+    ArrayList<Transaction> tx_list = new ArrayList<>();
+    for(int i=0; i<inputs; i++)
+    {
+      TransactionInput in = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+      for(int j=0; j<spends; j++)
+      {
+        TransactionOutput out = TransactionOutput.newBuilder()
+          .setRecipientSpecHash(in.getSpecHash())
+          .setValue(100000L - j)
+          .build();
+        tx_list.add(TransactionUtil.createTransaction(ImmutableList.of(in), ImmutableList.of(out), keys));
+      }
+    }
+    ChainHash utxo_root = utxo_buffer.commit();
+    Collections.shuffle(tx_list);
+
+    MemPool mem_pool = new MemPool(utxo_trie, new DummyChainState(100));
+    mem_pool.rebuildPriorityMap(utxo_root);
+
+    AtomicInteger added = new AtomicInteger(0);
+    ExecutorService exec = Executors.newFixedThreadPool(8);
+    for(Transaction tx : tx_list)
+    {
+      exec.submit( () ->
+      {
+        try
+        {
+          if (mem_pool.addTransaction(tx, false)) added.incrementAndGet();
+        }
+        catch(ValidationException e){}
+      });
+    }
+    exec.shutdown();
+    Assert.assertTrue(exec.awaitTermination(60, TimeUnit.SECONDS));
+
+    // Exactly one spend of each input wins
+    Assert.assertEquals(inputs, added.get());
+    Assert.assertEquals(inputs, mem_pool.getMemPoolSize());
+    Assert.assertEquals(inputs, mem_pool.getTransactionsForBlock(utxo_root, 1048576).size());
+  }
+
   @Test
   public void testBasicTxNoDoubleInput()
     throws Exception
@@ -277,6 +465,12 @@ public class MemPoolTest
     mem_pool.addTransaction(tx_c, false);
     
     Assert.assertEquals(3, mem_pool.getTransactionsForBlock(utxo_root, 1048576).size());
+
+    // Each tx comes with just its parents, even though tx_a is in all three clusters
+    Assert.assertEquals(ImmutableList.of(tx_a), mem_pool.getTxClusterForTransaction(new ChainHash(tx_a.getTxHash())));
+    Assert.assertEquals(ImmutableList.of(tx_a, tx_b), mem_pool.getTxClusterForTransaction(new ChainHash(tx_b.getTxHash())));
+    Assert.assertEquals(ImmutableList.of(tx_a, tx_b, tx_c), mem_pool.getTxClusterForTransaction(new ChainHash(tx_c.getTxHash())));
+    Assert.assertNull(mem_pool.getTxClusterForTransaction(new ChainHash(in_a.getSrcTxId())));
   }
 
   @Test
@@ -309,6 +503,8 @@ public class MemPoolTest
     ChainHash utxo_root = utxo_buffer.commit();
 
     MemPool mem_pool = new MemPool(utxo_trie, new DummyChainState(100), 10000000);
+    // All 500 have to make it in, however slow this machine is
+    mem_pool.setTemplateBudget(600000L);
     Assert.assertEquals(0, mem_pool.getTransactionsForBlock(utxo_root, 1048576).size());
 
     TimeRecord tr = new TimeRecord();
@@ -0,0 +1,130 @@
+package node.test;
+
+import com.google.protobuf.ByteString;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.Globals;
+import snowblossom.node.PeerLink;
+import snowblossom.node.TxBroadcaster;
+import snowblossom.proto.PeerMessage;
+
+public class TxBroadcasterTest
+{
+  private Random rnd = new Random();
+
+  /**
+   * Inventory from three peers, one request, body comes in
+   */
+  @Test
+  public void testInvRequestBody()
+  {
+    TxBroadcaster broadcaster = new TxBroadcaster(null, true, 1000L);
+    RequestSink sink_a = new RequestSink();
+    PeerLink a = new PeerLink(null, sink_a);
+    PeerLink b = new PeerLink(null, new RequestSink());
+    PeerLink c = new PeerLink(null, new RequestSink());
+
+    ChainHash tx_id = randomHash();
+    Assert.assertTrue(broadcaster.reserveTx(tx_id, a));
+    Assert.assertFalse(broadcaster.reserveTx(tx_id, b));
+    Assert.assertFalse(broadcaster.reserveTx(tx_id, c));
+
+    broadcaster.txReceived(tx_id);
+
+    // Nothing more to ask for, even well past the timeout
+    broadcaster.retryTxRequests(System.currentTimeMillis() + TxBroadcaster.TX_REQUEST_TIMEOUT_MS * 10);
+    Assert.assertEquals(0, sink_a.getRequested().size());
+
+    // And a new announcement is asked for right away
+    Assert.assertTrue(broadcaster.reserveTx(tx_id, b));
+  }
+
+  /**
+   * The peer we asked never answers, so the others that announced it get asked in turn
+   */
+  @Test
+  public void testRequestTimeout()
+  {
+    TxBroadcaster broadcaster = new TxBroadcaster(null, true, 1000L);
+    RequestSink sink_a = new RequestSink();
+    RequestSink sink_b = new RequestSink();
+    RequestSink sink_c = new RequestSink();
+    PeerLink a = new PeerLink(null, sink_a);
+    PeerLink b = new PeerLink(null, sink_b);
+    PeerLink c = new PeerLink(null, sink_c);
+
+    ChainHash tx_id = randomHash();
+    ChainHash other_id = randomHash();
+    Assert.assertTrue(broadcaster.reserveTx(tx_id, a));
+    Assert.assertTrue(broadcaster.reserveTx(other_id, a));
+    Assert.assertFalse(broadcaster.reserveTx(tx_id, b));
+    Assert.assertFalse(broadcaster.reserveTx(tx_id, c));
+    // After the requests, so their times are not after it
+    long now = System.currentTimeMillis();
+
+    // Not timed out yet
+    broadcaster.retryTxRequests(now);
+    Assert.assertEquals(0, sink_b.getRequested().size());
+
+    now += TxBroadcaster.TX_REQUEST_TIMEOUT_MS + 1;
+    broadcaster.retryTxRequests(now);
+    Assert.assertEquals(1, sink_b.getRequested().size());
+    Assert.assertEquals(tx_id, sink_b.getRequested().get(0));
+    Assert.assertEquals(0, sink_c.getRequested().size());
+    Assert.assertEquals(0, sink_a.getRequested().size());
+
+    // b doesn't answer either, and c is gone
+    c.close();
+    now += TxBroadcaster.TX_REQUEST_TIMEOUT_MS + 1;
+    broadcaster.retryTxRequests(now);
+    Assert.assertEquals(1, sink_b.getRequested().size());
+    Assert.assertEquals(0, sink_c.getRequested().size());
+
+    // Everyone has been tried, so the next announcement is asked for right away
+    Assert.assertTrue(broadcaster.reserveTx(tx_id, c));
+  }
+
+  private ChainHash randomHash()
+  {
+    byte[] b = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    rnd.nextBytes(b);
+    return new ChainHash(b);
+  }
+
+  /**
+   * Keeps the tx hashes asked for over the link
+   */
+  public static class RequestSink implements StreamObserver<PeerMessage>
+  {
+    private final ArrayList<ChainHash> requested = new ArrayList<>();
+
+    public synchronized List<ChainHash> getRequested()
+    {
+      return new ArrayList<ChainHash>(requested);
+    }
+
+    @Override
+    public synchronized void onNext(PeerMessage msg)
+    {
+      if (msg.hasReqTxData())
+      {
+        for(ByteString hash : msg.getReqTxData().getTxHashesList())
+        {
+          requested.add(new ChainHash(hash));
+        }
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {}
+
+    @Override
+    public void onCompleted() {}
+  }
+
+}